@@ -0,0 +1,148 @@
+package com.microsoft.applicationinsights.library;
+
+import android.app.Activity;
+import android.test.InstrumentationTestCase;
+import android.view.View;
+import android.view.Window;
+
+import com.microsoft.applicationinsights.library.config.Configuration;
+
+import junit.framework.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AutoCollectionTest extends InstrumentationTestCase {
+
+    private MockAutoCollection sut;
+
+    private TestActivity activity;
+
+    private View decorView;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        System.setProperty("dexmaker.dexcache", getInstrumentation().getTargetContext().getCacheDir().getPath());
+        AutoCollection.enableAutoPageViews(new MockApplication());
+        sut = new MockAutoCollection(new Configuration());
+        decorView = new View(getInstrumentation().getTargetContext());
+        Window window = mock(Window.class);
+        when(window.getDecorView()).thenReturn(decorView);
+        activity = new TestActivity(window);
+    }
+
+    public void tearDown() throws Exception {
+        AutoCollection.disableAutoPageViews();
+        super.tearDown();
+    }
+
+    public void testRenderTimeIsMeasuredFromCreation() {
+        sut.uptime = 100;
+        sut.onActivityCreated(activity, null);
+        sut.uptime = 150;
+        sut.onActivityResumed(activity);
+        Assert.assertTrue("the page view waits for the first frame", sut.pageViews.isEmpty());
+
+        sut.uptime = 180;
+        decorView.getViewTreeObserver().dispatchOnPreDraw();
+
+        Assert.assertEquals(1, sut.pageViews.size());
+        Assert.assertEquals(TestActivity.class.getName() + ":80", sut.pageViews.get(0));
+    }
+
+    public void testRenderTimeIsMeasuredFromResumeWithoutCreation() {
+        sut.uptime = 150;
+        sut.onActivityResumed(activity);
+        sut.uptime = 180;
+        decorView.getViewTreeObserver().dispatchOnPreDraw();
+
+        Assert.assertEquals(TestActivity.class.getName() + ":30", sut.pageViews.get(0));
+    }
+
+    public void testCreationTimeIsUsedOnce() {
+        sut.uptime = 100;
+        sut.onActivityCreated(activity, null);
+        sut.onActivityResumed(activity);
+        decorView.getViewTreeObserver().dispatchOnPreDraw();
+        sut.onActivityPaused(activity);
+
+        sut.uptime = 500;
+        sut.onActivityResumed(activity);
+        sut.uptime = 520;
+        decorView.getViewTreeObserver().dispatchOnPreDraw();
+
+        Assert.assertEquals(2, sut.pageViews.size());
+        Assert.assertEquals(TestActivity.class.getName() + ":20", sut.pageViews.get(1));
+    }
+
+    public void testPageViewIsSentForTheFirstFrameOnly() {
+        sut.onActivityResumed(activity);
+        decorView.getViewTreeObserver().dispatchOnPreDraw();
+        decorView.getViewTreeObserver().dispatchOnPreDraw();
+        sut.onActivityPaused(activity);
+
+        Assert.assertEquals(1, sut.pageViews.size());
+    }
+
+    public void testPageViewIsSentWhenPausedBeforeTheFirstFrame() {
+        sut.onActivityResumed(activity);
+        sut.onActivityPaused(activity);
+        Assert.assertEquals(1, sut.pageViews.size());
+        Assert.assertEquals(TestActivity.class.getName() + ":-1", sut.pageViews.get(0));
+
+        decorView.getViewTreeObserver().dispatchOnPreDraw();
+        Assert.assertEquals("the listener has been removed", 1, sut.pageViews.size());
+    }
+
+    public void testPageViewIsSentRightAwayWithoutDecorView() {
+        Window window = mock(Window.class);
+        sut.onActivityResumed(new TestActivity(window));
+
+        Assert.assertEquals(1, sut.pageViews.size());
+        Assert.assertEquals(TestActivity.class.getName() + ":-1", sut.pageViews.get(0));
+    }
+
+    private static class MockAutoCollection extends AutoCollection {
+
+        private final List<String> pageViews;
+
+        private long uptime;
+
+        MockAutoCollection(Configuration config) {
+            super(config, null);
+            this.pageViews = new ArrayList<String>();
+        }
+
+        @Override
+        protected void trackPageView(String pageName, long renderTime) {
+            this.pageViews.add(pageName + ":" + renderTime);
+        }
+
+        @Override
+        protected void track(TrackDataOperation operation) {
+            // session management isn't tested here
+        }
+
+        @Override
+        protected long getUptime() {
+            return this.uptime;
+        }
+    }
+
+    private static class TestActivity extends Activity {
+
+        private final Window window;
+
+        TestActivity(Window window) {
+            this.window = window;
+        }
+
+        @Override
+        public Window getWindow() {
+            return this.window;
+        }
+    }
+}
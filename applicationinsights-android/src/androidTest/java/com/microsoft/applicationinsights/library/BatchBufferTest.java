@@ -0,0 +1,56 @@
+package com.microsoft.applicationinsights.library;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+public class BatchBufferTest extends TestCase {
+
+    private BatchBuffer sut;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        sut = new BatchBuffer();
+    }
+
+    public void testItemsAreEncodedAsUtf8() throws Exception {
+        String item = "{\"name\":\"caf\u00e9 \u65e5\u672c \ud83d\ude00\"}";
+        sut.append('\n');
+        sut.append(item);
+
+        String expected = "\n" + item;
+        Assert.assertEquals(expected.getBytes("UTF-8").length, sut.size());
+        Assert.assertEquals(expected, readString(sut.toByteBuffer()));
+    }
+
+    public void testBufferGrowsForLargeBatches() throws Exception {
+        StringBuilder item = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            item.append("\u00fcber-long-item-");
+        }
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            sut.append('\n');
+            sut.append(item);
+            expected.append('\n').append(item);
+        }
+
+        Assert.assertEquals(expected.toString(), readString(sut.toByteBuffer()));
+    }
+
+    public void testClearDiscardsContent() throws Exception {
+        sut.append("first batch");
+        sut.clear();
+        sut.append("second");
+
+        Assert.assertEquals("second", readString(sut.toByteBuffer()));
+    }
+
+    private String readString(ByteBuffer buffer) throws Exception {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
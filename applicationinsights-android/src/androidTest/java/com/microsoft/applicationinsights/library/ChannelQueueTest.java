@@ -6,6 +6,8 @@ import com.microsoft.applicationinsights.library.config.IQueueConfig;
 
 import junit.framework.Assert;
 
+import java.io.File;
+
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Mockito.after;
@@ -33,8 +35,8 @@ public class ChannelQueueTest extends InstrumentationTestCase {
     public void testInitialisationWorks() {
         Assert.assertNotNull(sut.config);
         Assert.assertNotNull(sut.timer);
-        Assert.assertNotNull(sut.list);
-        Assert.assertEquals(0, sut.list.size());
+        Assert.assertNotNull(sut.buffer);
+        Assert.assertEquals(0, sut.buffer.size());
         Assert.assertFalse(sut.isCrashing);
     }
 
@@ -48,7 +50,7 @@ public class ChannelQueueTest extends InstrumentationTestCase {
         sut.enqueue("");
 
         // Verify
-        Assert.assertEquals(2, sut.list.size());
+        Assert.assertEquals(2, sut.buffer.size());
     }
 
     public void testQueueFlushedIfMaxBatchCountReached() {
@@ -61,12 +63,12 @@ public class ChannelQueueTest extends InstrumentationTestCase {
         sut.enqueue("");
 
         // Verify
-        Assert.assertEquals(2, sut.list.size());
+        Assert.assertEquals(2, sut.buffer.size());
         verify(mockPersistence, never()).persist(any(String[].class), anyBoolean());
 
         sut.enqueue("");
 
-        Assert.assertEquals(0, sut.list.size());
+        Assert.assertEquals(0, sut.buffer.size());
         verify(mockPersistence, times(1)).persist(any(String[].class), anyBoolean());
     }
 
@@ -79,10 +81,10 @@ public class ChannelQueueTest extends InstrumentationTestCase {
         sut.enqueue("");
 
         // Verify
-        Assert.assertEquals(1, sut.list.size());
+        Assert.assertEquals(1, sut.buffer.size());
         verify(mockPersistence, never()).persist(any(String[].class), anyBoolean());
         verify(mockPersistence, after(250).times(1)).persist(any(String[].class), anyBoolean());
-        Assert.assertEquals(0, sut.list.size());
+        Assert.assertEquals(0, sut.buffer.size());
     }
 
     public void testFlushingQueueWorks() {
@@ -91,16 +93,65 @@ public class ChannelQueueTest extends InstrumentationTestCase {
         when(mockConfig.getMaxBatchCount()).thenReturn(3);
 
         sut.enqueue("");
-        Assert.assertEquals(1, sut.list.size());
+        Assert.assertEquals(1, sut.buffer.size());
         verify(mockPersistence, never()).persist(any(String[].class), anyBoolean());
 
         // Test
         sut.flush();
 
         // Verify
-        Assert.assertEquals(0, sut.list.size());
+        Assert.assertEquals(0, sut.buffer.size());
         verify(mockPersistence, times(1)).persist(any(String[].class), anyBoolean());
     }
 
+    public void testStagedItemsAreConsumedOncePersisted() throws Exception {
+        //Setup
+        when(mockConfig.getMaxBatchIntervalMs()).thenReturn(10000);
+        when(mockConfig.getMaxBatchCount()).thenReturn(3);
+        File file = new File(getInstrumentation().getTargetContext().getCacheDir(), "staging");
+        file.delete();
+        StagingBuffer stagingBuffer = new StagingBuffer(file, 1024);
+        stagingBuffer.append("left by a previous process");
+
+        // Test
+        sut.setStagingBuffer(stagingBuffer);
+        verify(mockPersistence, times(1)).persist(any(String[].class), anyBoolean());
+        Assert.assertEquals("recovered items are consumed", 0, stagingBuffer.pendingCount());
+
+        sut.enqueue("");
+        sut.enqueue("");
+        Assert.assertEquals(2, stagingBuffer.pendingCount());
+        sut.flush();
 
+        // Verify
+        Assert.assertEquals(0, stagingBuffer.pendingCount());
+        verify(mockPersistence, times(2)).persist(any(String[].class), anyBoolean());
+        file.delete();
+    }
+
+    public void testFullStagingBufferIsFlushedOnTheTimerThread() throws Exception {
+        //Setup
+        when(mockConfig.getMaxBatchIntervalMs()).thenReturn(10000);
+        when(mockConfig.getMaxBatchCount()).thenReturn(100);
+        File file = new File(getInstrumentation().getTargetContext().getCacheDir(), "staging");
+        file.delete();
+        // room for three records of ten bytes
+        StagingBuffer stagingBuffer = new StagingBuffer(file, 64);
+        sut.setStagingBuffer(stagingBuffer);
+
+        // Test
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(sut.enqueue("item" + i + "....."));
+        }
+
+        // Verify
+        verify(mockPersistence, after(500).times(1)).persist(any(String[].class), anyBoolean());
+        sut.flush();
+        Assert.assertEquals(0, sut.buffer.size());
+        Assert.assertEquals(0, stagingBuffer.pendingCount());
+
+        sut.enqueue("item5.....");
+        Assert.assertEquals("staging resumes once the buffer is empty", 1, stagingBuffer.pendingCount());
+        file.delete();
+    }
 }
@@ -0,0 +1,79 @@
+package com.microsoft.applicationinsights.library;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+public class CompactRecordFormatTest extends TestCase {
+
+    private static final String ITEM = "{\"ver\":1,\"name\":\"Microsoft.ApplicationInsights.Event\","
+          + "\"time\":\"2015-05-04T10:00:00.000Z\",\"iKey\":\"key\","
+          + "\"tags\":{\"ai.device.osVersion\":\"5.0\",\"ai.device.model\":\"Nexus 5\","
+          + "\"ai.session.id\":\"a5e1f4b2\",\"ai.user.id\":\"u\\\"1\\\\\"},"
+          + "\"data\":{\"baseType\":\"EventData\",\"baseData\":{\"ver\":2,\"name\":\"click %d\"}}}";
+
+    public void testEncodingIsLossless() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            builder.append('\n').append(String.format(ITEM, i));
+        }
+        String json = builder.toString();
+
+        ByteBuffer encoded = CompactRecordFormat.encode(ByteBuffer.wrap(json.getBytes("UTF-8")));
+        Assert.assertEquals(json, decode(encoded));
+        Assert.assertTrue("repeated keys and context are written once",
+              encoded.remaining() * 3 < json.length());
+    }
+
+    public void testUnusualContentIsPreserved() throws Exception {
+        String[] samples = {
+              "",
+              "\nSAVE THIS DATA",
+              "\n{\"tags\":{}}\n{\"tags\":{\"a\":\"}{\"}}\n{\"tags\":{\"a\":\"}{\"}}",
+              "\n{\"tags\":\"not an object\",\"\":\"\",\"ü\":\"€\"}",
+              "\n{\"truncated\":\"value",
+              "\n{\"tags\":{\"truncated\":\"value\""
+        };
+        for (String sample : samples) {
+            ByteBuffer encoded = CompactRecordFormat.encode(ByteBuffer.wrap(sample.getBytes("UTF-8")));
+            Assert.assertEquals(sample, decode(encoded));
+        }
+    }
+
+    public void testMagicBytesAreDetected() throws Exception {
+        ByteBuffer encoded = CompactRecordFormat.encode(ByteBuffer.wrap("\n{}".getBytes("UTF-8")));
+        Assert.assertTrue(CompactRecordFormat.isCompact(encoded.array(), encoded.remaining()));
+        Assert.assertFalse(CompactRecordFormat.isCompact("\n{}".getBytes("UTF-8"), 3));
+        Assert.assertFalse(CompactRecordFormat.isCompact(encoded.array(), 2));
+    }
+
+    public void testTruncatedRecordFailsToDecode() throws Exception {
+        ByteBuffer encoded = CompactRecordFormat.encode(ByteBuffer.wrap("\n{\"a\":\"b\"}".getBytes("UTF-8")));
+        ByteBuffer truncated = ByteBuffer.wrap(encoded.array(), 0, encoded.remaining() - 3);
+        try {
+            decode(truncated);
+            Assert.fail("truncated record must not be decoded silently");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static String decode(ByteBuffer encoded) throws IOException {
+        int offset = CompactRecordFormat.MAGIC.length;
+        InputStream inputStream = new CompactRecordFormat.Decoder(new ByteArrayInputStream(
+              encoded.array(), encoded.arrayOffset() + offset, encoded.remaining() - offset));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[7];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, count);
+        }
+        inputStream.close();
+        return outputStream.toString("UTF-8");
+    }
+}
@@ -0,0 +1,48 @@
+package com.microsoft.applicationinsights.library;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ContextTagsEnvelopeTest extends TestCase {
+
+    private ContextSnapshot snapshot;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        Map<String, String> tags = new LinkedHashMap<String, String>();
+        tags.put("ai.device.osVersion", "5.0");
+        tags.put("ai.session.id", "session");
+        snapshot = new ContextSnapshot(1, "ikey", "com.example", tags);
+    }
+
+    public void testSnapshotIsSerializedOnce() {
+        Assert.assertEquals("{\"ai.device.osVersion\":\"5.0\",\"ai.session.id\":\"session\"}", snapshot.getJson());
+        Assert.assertSame(snapshot.getJson(), snapshot.getJson());
+        try {
+            snapshot.getTags().put("ai.user.id", "user");
+            Assert.fail("snapshot can't be modified");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    public void testSharedTagsAreWrittenAsEnvelopeTags() throws Exception {
+        ContextTagsEnvelope envelope = new ContextTagsEnvelope(snapshot);
+        envelope.setName("Microsoft.ApplicationInsights.Event");
+
+        StringWriter writer = new StringWriter();
+        writer.write("\n");
+        envelope.serialize(writer);
+        String json = writer.toString();
+
+        Assert.assertTrue(json.startsWith("\n{"));
+        Assert.assertTrue(json.contains("\"tags\":" + snapshot.getJson()));
+        Assert.assertEquals("tags are written once", json.indexOf("\"tags\":"), json.lastIndexOf("\"tags\":"));
+        Assert.assertTrue(json.contains("\"name\":\"Microsoft.ApplicationInsights.Event\""));
+        Assert.assertEquals(snapshot.getTags(), envelope.getContextTags());
+    }
+}
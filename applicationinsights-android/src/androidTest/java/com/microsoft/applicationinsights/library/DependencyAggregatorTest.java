@@ -0,0 +1,105 @@
+package com.microsoft.applicationinsights.library;
+
+import com.microsoft.applicationinsights.contracts.DataPointType;
+import com.microsoft.applicationinsights.contracts.DependencyKind;
+import com.microsoft.applicationinsights.contracts.RemoteDependencyData;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DependencyAggregatorTest extends TestCase {
+
+    private MockAggregator sut;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        sut = new MockAggregator();
+    }
+
+    public void testCallsToSameTargetAreAggregated() {
+        sut.track(DependencyKind.HTTP, "example.com", "GET /items", 10, true, "200", null);
+        sut.track(DependencyKind.HTTP, "example.com", "GET /items", 30, true, "200", null);
+        sut.track(DependencyKind.HTTP, "example.com", "GET /items", 20, true, "200", null);
+        sut.flush();
+
+        Assert.assertEquals(1, sut.emitted.size());
+        RemoteDependencyData data = sut.emitted.get(0);
+        Assert.assertEquals(DependencyKind.HTTP, data.getDependencyKind());
+        Assert.assertEquals(DataPointType.AGGREGATION, data.getKind());
+        Assert.assertEquals("example.com", data.getName());
+        Assert.assertEquals("GET /items", data.getCommandName());
+        Assert.assertTrue(data.getSuccess());
+        Assert.assertEquals("200", data.getProperties().get(DependencyAggregator.RESULT_CODE_PROPERTY));
+        Assert.assertEquals(3, data.getCount().intValue());
+        Assert.assertEquals(60.0, data.getValue(), 0.0);
+        Assert.assertEquals(10.0, data.getMin(), 0.0);
+        Assert.assertEquals(30.0, data.getMax(), 0.0);
+    }
+
+    public void testOutcomesAreSeparated() {
+        sut.track(DependencyKind.HTTP, "example.com", "GET /items", 10, true, "200", null);
+        sut.track(DependencyKind.HTTP, "example.com", "GET /items", 10, false, "500", null);
+        sut.track(DependencyKind.HTTP, "example.com", "GET /items", 10, false, "503", null);
+        sut.track(DependencyKind.HTTP, "example.com", "GET /other", 10, true, "200", null);
+        sut.flush();
+
+        Assert.assertEquals(4, sut.emitted.size());
+    }
+
+    public void testPropertiesAreCopied() {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("screen", "main");
+        sut.track(DependencyKind.OTHER, "database", "query", 5, true, null, properties);
+        properties.put("screen", "settings");
+        sut.flush();
+
+        Map<String, String> emitted = sut.emitted.get(0).getProperties();
+        Assert.assertEquals("main", emitted.get("screen"));
+        Assert.assertFalse(emitted.containsKey(DependencyAggregator.RESULT_CODE_PROPERTY));
+
+        // the envelope gets common properties added, the series must not see them
+        emitted.put("common", "value");
+        sut.track(DependencyKind.OTHER, "database", "query", 5, true, null, properties);
+        sut.flush();
+        Assert.assertFalse(sut.emitted.get(1).getProperties().containsKey("common"));
+    }
+
+    public void testIdleSeriesAreRemoved() {
+        sut.track(DependencyKind.OTHER, "database", "query", 5, true, null, null);
+        sut.flush();
+        sut.flush();
+        Assert.assertEquals(1, sut.emitted.size());
+
+        sut.track(DependencyKind.OTHER, "database", "query", 7, true, null, null);
+        sut.flush();
+        Assert.assertEquals(2, sut.emitted.size());
+        Assert.assertEquals(1, sut.emitted.get(1).getCount().intValue());
+    }
+
+    public void testTrackFailsOnceThereAreTooManySeries() {
+        for (int i = 0; i < MetricAggregator.MAX_SERIES_COUNT; i++) {
+            Assert.assertTrue(sut.track(DependencyKind.HTTP, "example.com", "GET /items/" + i, 1, true, "200", null));
+        }
+        Assert.assertFalse(sut.track(DependencyKind.HTTP, "example.com", "GET /other", 1, true, "200", null));
+    }
+
+    private static class MockAggregator extends DependencyAggregator {
+
+        private final List<RemoteDependencyData> emitted;
+
+        MockAggregator() {
+            super(null);
+            this.emitted = new ArrayList<RemoteDependencyData>();
+        }
+
+        @Override
+        protected void emit(RemoteDependencyData data) {
+            this.emitted.add(data);
+        }
+    }
+}
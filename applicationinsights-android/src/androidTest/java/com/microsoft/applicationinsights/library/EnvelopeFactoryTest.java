@@ -7,6 +7,7 @@ import com.microsoft.applicationinsights.contracts.EventData;
 import com.microsoft.applicationinsights.contracts.MessageData;
 import com.microsoft.applicationinsights.contracts.MetricData;
 import com.microsoft.applicationinsights.contracts.PageViewData;
+import com.microsoft.applicationinsights.contracts.PageViewPerfData;
 import com.microsoft.applicationinsights.contracts.SessionState;
 import com.microsoft.applicationinsights.contracts.SessionStateData;
 import com.microsoft.applicationinsights.contracts.StackFrame;
@@ -95,6 +96,26 @@ public class EnvelopeFactoryTest extends InstrumentationTestCase {
         Assert.assertEquals(new PageViewData().getBaseType(), actualBaseType);
     }
 
+    public void testPageViewPerfEnvelope() {
+        String expectedName = "PAGEVIEW";
+        long expectedDuration = 1234;
+        Envelope envelope = sut.createEnvelope(sut.createPageViewPerfData(expectedName, expectedDuration, getCustomProperties(), getMeasurements()));
+
+        // Validate
+        validateEnvelopeTemplate(envelope);
+        Assert.assertNotNull(envelope.getData());
+        validateEnvelopeProperties(envelope);
+        validateEnvelopeMeasurements(envelope);
+
+        PageViewPerfData actual = (PageViewPerfData) ((Data<Domain>) envelope.getData()).getBaseData();
+        Assert.assertEquals(expectedName, actual.getName());
+        Assert.assertEquals("00:00:01.234", actual.getDuration());
+        Assert.assertEquals("00:00:01.234", actual.getPerfTotal());
+
+        String actualBaseType = envelope.getData().getBaseType();
+        Assert.assertEquals(new PageViewPerfData().getBaseType(), actualBaseType);
+    }
+
     public void testCreateSessionEnvelope() {
         Envelope envelope = sut.createEnvelope(sut.createNewSessionData());
 
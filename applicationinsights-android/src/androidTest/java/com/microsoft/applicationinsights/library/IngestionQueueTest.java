@@ -0,0 +1,265 @@
+package com.microsoft.applicationinsights.library;
+
+import com.microsoft.applicationinsights.library.config.Configuration;
+import com.microsoft.applicationinsights.library.config.OverflowPolicy;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class IngestionQueueTest extends TestCase {
+
+    private static final int CAPACITY = 4;
+
+    private Configuration config;
+
+    private List<String> processed;
+
+    private CountDownLatch release;
+
+    private CountDownLatch started;
+
+    private final List<String> spilled = new ArrayList<String>();
+
+    private String spillingThread;
+
+    private int batchCount;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        config = new Configuration();
+        config.setIngestionQueueCapacity(CAPACITY);
+        processed = new CopyOnWriteArrayList<String>();
+        release = new CountDownLatch(1);
+        started = new CountDownLatch(1);
+    }
+
+    public void testOperationsAreProcessedInOrder() throws Exception {
+        IngestionQueue sut = new IngestionQueue(config);
+        CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(sut.enqueue(new MockOperation("item" + i, done)));
+            if (i % 3 == 0) {
+                // let the worker go idle once in a while
+                Thread.sleep(5);
+            }
+        }
+
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals("item" + i, processed.get(i));
+        }
+        Assert.assertEquals(0, sut.getDroppedCount());
+    }
+
+    public void testDropOldestMakesRoom() throws Exception {
+        config.setOverflowPolicy(OverflowPolicy.DropOldest);
+        IngestionQueue sut = fillWhileWorkerIsBusy();
+
+        Assert.assertTrue(sut.enqueue(new MockOperation("new", null)));
+        Assert.assertEquals(1, sut.getDroppedCount());
+
+        CountDownLatch done = new CountDownLatch(1);
+        sut.enqueue(new MockOperation("last", done));
+        release.countDown();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse("oldest item is dropped", processed.contains("queued0"));
+        Assert.assertTrue(processed.contains("new"));
+    }
+
+    public void testBlockGivesUpAfterTimeout() throws Exception {
+        config.setOverflowPolicy(OverflowPolicy.Block);
+        config.setMaxOverflowBlockMs(50);
+        IngestionQueue sut = fillWhileWorkerIsBusy();
+
+        long start = System.currentTimeMillis();
+        Assert.assertFalse(sut.enqueue(new MockOperation("new", null)));
+        Assert.assertTrue(System.currentTimeMillis() - start >= 50);
+        Assert.assertEquals(1, sut.getDroppedCount());
+        release.countDown();
+    }
+
+    public void testBlockedCallerContinuesOnceThereIsRoom() throws Exception {
+        config.setOverflowPolicy(OverflowPolicy.Block);
+        config.setMaxOverflowBlockMs(5000);
+        IngestionQueue sut = fillWhileWorkerIsBusy();
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    // release right away
+                }
+                release.countDown();
+            }
+        }).start();
+
+        Assert.assertTrue(sut.enqueue(new MockOperation("new", null)));
+        Assert.assertEquals(0, sut.getDroppedCount());
+    }
+
+    public void testSpillToDiskDoesntRunOnCaller() throws Exception {
+        config.setOverflowPolicy(OverflowPolicy.SpillToDisk);
+        IngestionQueue sut = fillWhileWorkerIsBusy();
+
+        Assert.assertTrue(sut.enqueue(new MockOperation("new", null)));
+        Assert.assertEquals(1, sut.getSpilledCount());
+        Assert.assertEquals(0, sut.getDroppedCount());
+        Assert.assertEquals(Collections.singletonList("new"), awaitSpilled(1));
+        Assert.assertFalse("the caller doesn't write to disk",
+              Thread.currentThread().getName().equals(spillingThread));
+        release.countDown();
+    }
+
+    public void testSpilledBurstIsWrittenInBatches() throws Exception {
+        config.setOverflowPolicy(OverflowPolicy.SpillToDisk);
+        config.setMaxBatchCount(100);
+        IngestionQueue sut = fillWhileWorkerIsBusy();
+
+        // one file per spilled item would have evicted most of the burst
+        int burstCount = CAPACITY + Persistence.MAX_FILE_COUNT * 10;
+        for (int i = 0; i < burstCount; i++) {
+            Assert.assertTrue(sut.enqueue(new MockOperation("burst" + i, null)));
+        }
+
+        Assert.assertEquals(burstCount, sut.getSpilledCount());
+        Assert.assertEquals(0, sut.getDroppedCount());
+        List<String> spilled = awaitSpilled(burstCount);
+        for (int i = 0; i < burstCount; i++) {
+            Assert.assertTrue("burst" + i + " is written", spilled.contains("burst" + i));
+        }
+        Assert.assertTrue("spilled items share files", batchCount < Persistence.MAX_FILE_COUNT);
+        release.countDown();
+    }
+
+    public void testDrainProcessesQueuedOperations() throws Exception {
+        final IngestionQueue sut = fillWhileWorkerIsBusy();
+
+        Thread flushing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sut.drain();
+            }
+        });
+        flushing.start();
+        flushing.join(50);
+        Assert.assertTrue("drain waits for the batch of the worker", flushing.isAlive());
+
+        release.countDown();
+        flushing.join(5000);
+        Assert.assertFalse(flushing.isAlive());
+        Assert.assertEquals(Arrays.asList("queued0", "queued1", "queued2", "queued3"), processed);
+    }
+
+    public void testFlushRunsTaskOnWorkerAfterQueuedOperations() throws Exception {
+        IngestionQueue sut = fillWhileWorkerIsBusy();
+        final List<String> processedBeforeTask = new ArrayList<String>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final String[] taskThread = new String[1];
+
+        long start = System.currentTimeMillis();
+        sut.flush(new Runnable() {
+            @Override
+            public void run() {
+                processedBeforeTask.addAll(processed);
+                taskThread[0] = Thread.currentThread().getName();
+                done.countDown();
+            }
+        });
+        Assert.assertTrue("the caller doesn't wait for the worker", System.currentTimeMillis() - start < 50);
+        Assert.assertEquals(1, done.getCount());
+
+        release.countDown();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("queued0", "queued1", "queued2", "queued3"), processedBeforeTask);
+        Assert.assertEquals("Application Insights Ingestion", taskThread[0]);
+    }
+
+    /**
+     * @return the spilled items, once the given number has been written
+     */
+    private List<String> awaitSpilled(int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        synchronized (spilled) {
+            while (spilled.size() < count && System.currentTimeMillis() < deadline) {
+                spilled.wait(100);
+            }
+            return new ArrayList<String>(spilled);
+        }
+    }
+
+    /**
+     * @return a queue whose worker is blocked and whose buffer is full
+     */
+    private IngestionQueue fillWhileWorkerIsBusy() throws Exception {
+        IngestionQueue sut = new IngestionQueue(config) {
+            @Override
+            protected void persist(String[] items) {
+                synchronized (spilled) {
+                    spillingThread = Thread.currentThread().getName();
+                    batchCount++;
+                    spilled.addAll(Arrays.asList(items));
+                    spilled.notifyAll();
+                }
+            }
+        };
+        sut.enqueue(new BlockingOperation());
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < CAPACITY; i++) {
+            Assert.assertTrue(sut.enqueue(new MockOperation("queued" + i, null)));
+        }
+        return sut;
+    }
+
+    private class MockOperation extends TrackDataOperation {
+
+        private final String name;
+
+        private final CountDownLatch done;
+
+        MockOperation(String name, CountDownLatch done) {
+            super(DataType.EVENT);
+            this.name = name;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            processed.add(this.name);
+            if (this.done != null) {
+                this.done.countDown();
+            }
+        }
+
+        @Override
+        protected String spill() {
+            return this.name;
+        }
+    }
+
+    private class BlockingOperation extends TrackDataOperation {
+
+        BlockingOperation() {
+            super(DataType.EVENT);
+        }
+
+        @Override
+        public void run() {
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // stop blocking
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.microsoft.applicationinsights.library;
+
+import android.util.Log;
+
+import com.microsoft.applicationinsights.contracts.DataPoint;
+import com.microsoft.applicationinsights.contracts.DataPointType;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+public class MetricAggregatorTest extends TestCase {
+
+    private static final String TAG = "MetricAggregatorTest";
+
+    private static final int ITERATIONS = 100000;
+
+    private MockAggregator sut;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        sut = new MockAggregator();
+    }
+
+    public void testFlushEmitsStatisticsOfTrackedValues() {
+        double[] values = {2, 4, 4, 4, 5, 5, 7, 9};
+        for (double value : values) {
+            Assert.assertTrue(sut.track("metric", value, null));
+        }
+        sut.flush();
+
+        Assert.assertEquals(1, sut.dataPoints.size());
+        DataPoint dataPoint = sut.dataPoints.get(0);
+        Assert.assertEquals("metric", dataPoint.getName());
+        Assert.assertEquals(DataPointType.AGGREGATION, dataPoint.getKind());
+        Assert.assertEquals(8, dataPoint.getCount().intValue());
+        Assert.assertEquals(40.0, dataPoint.getValue(), 0.0);
+        Assert.assertEquals(2.0, dataPoint.getMin(), 0.0);
+        Assert.assertEquals(9.0, dataPoint.getMax(), 0.0);
+        Assert.assertEquals(2.0, dataPoint.getStdDev(), 1e-9);
+    }
+
+    public void testSeriesAreSeparatedByProperties() {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("region", "a");
+        sut.track("metric", 1, properties);
+        sut.track("metric", 2, null);
+        properties.put("region", "b");
+        sut.track("metric", 3, properties);
+        sut.flush();
+
+        Assert.assertEquals(3, sut.dataPoints.size());
+        Assert.assertTrue(sut.properties.contains(null));
+        Assert.assertTrue(sut.properties.contains(singletonProperties("region", "a")));
+        Assert.assertTrue(sut.properties.contains(singletonProperties("region", "b")));
+    }
+
+    public void testIdleSeriesAreRemoved() {
+        sut.track("metric", 1, null);
+        sut.flush();
+        sut.flush();
+        Assert.assertEquals("idle series isn't emitted", 1, sut.dataPoints.size());
+
+        sut.track("metric", 2, null);
+        sut.flush();
+        Assert.assertEquals(2, sut.dataPoints.size());
+        Assert.assertEquals(2.0, sut.dataPoints.get(1).getValue(), 0.0);
+        Assert.assertEquals(1, sut.dataPoints.get(1).getCount().intValue());
+    }
+
+    public void testHandedOutSeriesIsKeptWhileIdle() {
+        MetricSeries series = sut.getSeries("metric", null, false);
+        Assert.assertSame(series, sut.getSeries("metric", null, false));
+        sut.flush();
+        sut.flush();
+
+        series.record(1);
+        sut.track("metric", 2, null);
+        sut.flush();
+        Assert.assertEquals(1, sut.dataPoints.size());
+        Assert.assertEquals(2, sut.dataPoints.get(0).getCount().intValue());
+    }
+
+    public void testHistogramAddsPercentiles() {
+        Map<String, String> properties = singletonProperties("region", "a");
+        MetricSeries histogram = sut.getSeries("metric", properties, true);
+        Assert.assertNotSame(histogram, sut.getSeries("metric", properties, false));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        sut.flush();
+
+        Assert.assertEquals(1, sut.dataPoints.size());
+        Map<String, String> emitted = sut.properties.get(0);
+        Assert.assertEquals("a", emitted.get("region"));
+        Assert.assertEquals(50, Double.parseDouble(emitted.get("p50")), 50 * QuantileSketch.RELATIVE_ACCURACY);
+        Assert.assertEquals(90, Double.parseDouble(emitted.get("p90")), 90 * QuantileSketch.RELATIVE_ACCURACY);
+        Assert.assertEquals(99, Double.parseDouble(emitted.get("p99")), 99 * QuantileSketch.RELATIVE_ACCURACY);
+        Assert.assertNull("series properties are unchanged", histogram.getProperties().get("p50"));
+    }
+
+    public void testTrackFailsOnceThereAreTooManySeries() {
+        for (int i = 0; i < MetricAggregator.MAX_SERIES_COUNT; i++) {
+            Assert.assertTrue(sut.track("metric" + i, i, null));
+        }
+        Assert.assertFalse(sut.track("another metric", 1, null));
+        Assert.assertTrue("existing series still aggregate", sut.track("metric0", 1, null));
+    }
+
+    /**
+     * Benchmark: the cost of adding a value to an existing series.
+     */
+    public void testTrackPerformance() {
+        Map<String, String> properties = singletonProperties("region", "a");
+        for (int i = 0; i < ITERATIONS; i++) {
+            // warm up
+            sut.track("metric", i, properties);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sut.track("metric", i, properties);
+        }
+        long duration = System.nanoTime() - start;
+
+        Log.i(TAG, String.format(Locale.ROOT, "per tracked value: %dns", duration / ITERATIONS));
+    }
+
+    private static Map<String, String> singletonProperties(String key, String value) {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(key, value);
+        return properties;
+    }
+
+    private static class MockAggregator extends MetricAggregator {
+
+        private final List<DataPoint> dataPoints;
+
+        private final List<Map<String, String>> properties;
+
+        MockAggregator() {
+            super(null);
+            this.dataPoints = new ArrayList<DataPoint>();
+            this.properties = new ArrayList<Map<String, String>>();
+        }
+
+        @Override
+        protected void emit(DataPoint dataPoint, Map<String, String> properties) {
+            this.dataPoints.add(dataPoint);
+            this.properties.add(properties);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.microsoft.applicationinsights.library;
+
+import android.os.Debug;
+import android.util.Log;
+
+import com.microsoft.applicationinsights.contracts.DataPoint;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class MetricSeriesTest extends TestCase {
+
+    private static final String TAG = "MetricSeriesTest";
+
+    private static final int THREAD_COUNT = 4;
+
+    private static final int ITERATIONS = 100000;
+
+    private MetricSeries sut;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        sut = new MetricSeries("metric", null, false);
+    }
+
+    public void testAggregateMergesValuesOfAllThreads() throws Exception {
+        // thread i records the values i * 1000 ... i * 1000 + 999
+        runThreads(new ThreadBody() {
+            @Override
+            public void run(int thread) {
+                for (int i = 0; i < 1000; i++) {
+                    sut.record(thread * 1000 + i);
+                }
+            }
+        });
+
+        DataPoint dataPoint = sut.takeAggregate(null);
+        int count = THREAD_COUNT * 1000;
+        double mean = (count - 1) / 2.0;
+        Assert.assertEquals(count, dataPoint.getCount().intValue());
+        Assert.assertEquals(mean * count, dataPoint.getValue(), 1e-6);
+        Assert.assertEquals(0.0, dataPoint.getMin(), 0.0);
+        Assert.assertEquals(count - 1.0, dataPoint.getMax(), 0.0);
+        // the standard deviation of 0 ... n - 1 is sqrt((n^2 - 1) / 12)
+        Assert.assertEquals(Math.sqrt((count * (double) count - 1) / 12), dataPoint.getStdDev(), 1e-6);
+
+        Assert.assertNull("stripes start over", sut.takeAggregate(null));
+    }
+
+    public void testHistogramMergesValuesOfAllThreads() throws Exception {
+        sut = new MetricSeries("metric", null, true);
+        // thread i records the values i * 1000 + 1 ... i * 1000 + 1000
+        runThreads(new ThreadBody() {
+            @Override
+            public void run(int thread) {
+                for (int i = 1; i <= 1000; i++) {
+                    sut.record(thread * 1000 + i);
+                }
+            }
+        });
+
+        Map<String, String> percentiles = new HashMap<String, String>();
+        DataPoint dataPoint = sut.takeAggregate(percentiles);
+        int count = THREAD_COUNT * 1000;
+        Assert.assertEquals(count, dataPoint.getCount().intValue());
+        Assert.assertEquals(count * 0.5, Double.parseDouble(percentiles.get("p50")),
+              count * 0.5 * QuantileSketch.RELATIVE_ACCURACY + 1);
+        Assert.assertEquals(count * 0.99, Double.parseDouble(percentiles.get("p99")),
+              count * 0.99 * QuantileSketch.RELATIVE_ACCURACY + 1);
+
+        // the sketch starts over with the stripes
+        sut.record(7);
+        percentiles.clear();
+        sut.takeAggregate(percentiles);
+        Assert.assertEquals(7.0, Double.parseDouble(percentiles.get("p99")), 0.0);
+    }
+
+    public void testRetiredSeriesRejectsValues() {
+        Assert.assertTrue(sut.tryRecord(1));
+        Assert.assertFalse("series with values isn't idle", sut.retireIfIdle());
+        sut.takeAggregate(null);
+
+        Assert.assertTrue(sut.retireIfIdle());
+        Assert.assertFalse(sut.tryRecord(1));
+        Assert.assertFalse(sut.pin());
+    }
+
+    public void testPinnedSeriesIsNotRetired() {
+        Assert.assertTrue(sut.pin());
+        Assert.assertFalse(sut.retireIfIdle());
+        Assert.assertTrue(sut.tryRecord(1));
+    }
+
+    // the thread allocation counters are deprecated, but Debug.getRuntimeStat needs API 23 and
+    // counts the allocations of all threads, e.g. of the timers other tests leave behind
+    @SuppressWarnings("deprecation")
+    public void testRecordDoesntAllocate() {
+        for (int i = 0; i < 5; i++) {
+            // warm up, so neither the lock nor the compiler allocate during the measurement
+            recordValues(ITERATIONS);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        recordValues(ITERATIONS);
+        Debug.stopAllocCounting();
+
+        Assert.assertEquals(0, Debug.getThreadAllocCount());
+    }
+
+    /**
+     * Benchmark: record values into one series from several threads at once.
+     */
+    public void testContendedRecordPerformance() throws Exception {
+        ThreadBody body = new ThreadBody() {
+            @Override
+            public void run(int thread) {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    sut.record(i);
+                }
+            }
+        };
+        // warm up
+        runThreads(body);
+
+        long start = System.nanoTime();
+        runThreads(body);
+        long duration = System.nanoTime() - start;
+
+        Log.i(TAG, String.format(Locale.ROOT, "%d values recorded by %d threads in %dms",
+              ITERATIONS * THREAD_COUNT, THREAD_COUNT, duration / 1000000));
+    }
+
+    private void recordValues(int count) {
+        for (int i = 0; i < count; i++) {
+            sut.record(i);
+        }
+    }
+
+    private void runThreads(final ThreadBody body) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREAD_COUNT);
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        body.run(thread);
+                    } catch (InterruptedException e) {
+                        // give up
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+    }
+
+    private interface ThreadBody {
+        void run(int thread);
+    }
+}
@@ -1,12 +1,13 @@
 package com.microsoft.applicationinsights.library;
 
-import com.microsoft.applicationinsights.library.config.ISenderConfig;
+import com.microsoft.applicationinsights.library.config.IRequestConfig;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
@@ -20,14 +21,17 @@ public class MockSender extends Sender {
     public List<Integer> responseCodes;
 
     public MockSender(int count,
-                      ISenderConfig config) {
+                      IRequestConfig config) {
         super(config);
         this.responseCode = 0;
         this.sendSignal = new CountDownLatch(count);
         this.responseSignal = new CountDownLatch(count);
-        this.payloads = new ArrayList<String>();
-        this.responses = new ArrayList<String>();
-        this.responseCodes = new ArrayList<Integer>();
+        // senders run on several threads
+        this.payloads = Collections.synchronizedList(new ArrayList<String>());
+        this.responses = Collections.synchronizedList(new ArrayList<String>());
+        this.responseCodes = Collections.synchronizedList(new ArrayList<Integer>());
+        // don't share the backoff state of other tests
+        this.setBackoff(new SenderBackoff(null));
         this.setInstance(this);
     }
 
@@ -40,17 +44,30 @@ public class MockSender extends Sender {
     }
 
     @Override
-    protected void sendRequestWithPayload(String payload, File fileToSend) throws IOException {
-        super.sendRequestWithPayload(payload, fileToSend);
+    protected boolean sendRequestWithPayload(File fileToSend) throws IOException {
+        // read the payload before sending as the file is deleted on success
+        String payload = this.persistence.load(fileToSend);
+        boolean isProcessed = super.sendRequestWithPayload(fileToSend);
         this.payloads.add(prettyPrintJSON(payload));
         this.sendSignal.countDown();
+        return isProcessed;
     }
 
     @Override
-    protected void onResponse(HttpURLConnection connection, int responseCode, String payload, File fileToSend) {
-        super.onResponse(connection, responseCode, payload, fileToSend);
+    protected File nextFileToPack(long packedBytes) {
+        File nextFile = super.nextFileToPack(packedBytes);
+        if (nextFile != null) {
+            this.payloads.add(prettyPrintJSON(this.persistence.load(nextFile)));
+        }
+        return nextFile;
+    }
+
+    @Override
+    protected boolean onResponse(HttpURLConnection connection, int responseCode, List<File> filesToSend) {
+        boolean isProcessed = super.onResponse(connection, responseCode, filesToSend);
         this.responseCodes.add(responseCode);
         this.responseSignal.countDown();
+        return isProcessed;
     }
 
     @Override
@@ -0,0 +1,119 @@
+package com.microsoft.applicationinsights.library;
+
+import android.test.AndroidTestCase;
+
+import junit.framework.Assert;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class PersistenceIndexTest extends AndroidTestCase {
+
+    private File directory;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        directory = new File(this.getContext().getFilesDir(), "PersistenceIndexTest");
+        deleteDirectory();
+        directory.mkdirs();
+    }
+
+    public void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    public void testExistingFilesAreIndexedOldestFirst() throws Exception {
+        File newest = createFile("a", 3000);
+        File oldest = createFile("b", 1000);
+        File middle = createFile("c", 2000);
+
+        PersistenceIndex sut = new PersistenceIndex(directory);
+        Assert.assertEquals(3, sut.size());
+        Assert.assertEquals(oldest, sut.reserve());
+        Assert.assertEquals(middle, sut.reserve());
+        Assert.assertEquals(newest, sut.reserve());
+        Assert.assertNull(sut.reserve());
+        Assert.assertEquals("reserved files are counted", 3, sut.size());
+    }
+
+    public void testReleasedFileKeepsItsPosition() throws Exception {
+        PersistenceIndex sut = new PersistenceIndex(directory);
+        File first = new File(directory, "first");
+        File second = new File(directory, "second");
+        sut.add(first);
+        sut.add(second);
+
+        Assert.assertEquals(first, sut.reserve());
+        Assert.assertTrue(sut.release(first));
+        Assert.assertFalse("file isn't reserved anymore", sut.release(first));
+        Assert.assertEquals(first, sut.reserve());
+    }
+
+    public void testRemovedFileIsNotServed() throws Exception {
+        PersistenceIndex sut = new PersistenceIndex(directory);
+        File first = new File(directory, "first");
+        File second = new File(directory, "second");
+        sut.add(first);
+        sut.add(second);
+
+        Assert.assertNotNull(sut.remove(sut.reserve()));
+        Assert.assertNotNull(sut.remove(second));
+        Assert.assertNull(sut.remove(second));
+        Assert.assertEquals(0, sut.size());
+        Assert.assertNull(sut.reserve());
+    }
+
+    public void testBytesAreCountedIncrementally() throws Exception {
+        PersistenceIndex sut = new PersistenceIndex(directory);
+        File first = new File(directory, "first");
+        File second = new File(directory, "second");
+        sut.add(first, 100, 1, null);
+        sut.add(second, 50, 1, null);
+        Assert.assertEquals(150, sut.byteCount());
+
+        sut.reserve();
+        Assert.assertEquals("reserved files are counted", 150, sut.byteCount());
+        sut.remove(first);
+        Assert.assertEquals(50, sut.byteCount());
+    }
+
+    public void testEvictionCandidatePrefersEvictableTypes() throws Exception {
+        PersistenceIndex sut = new PersistenceIndex(directory);
+        File events = new File(directory, "events");
+        File unknown = new File(directory, "unknown");
+        File metrics = new File(directory, "metrics");
+        sut.add(events, 10, 1, new HashSet<String>(Arrays.asList("EventData", "MetricData")));
+        sut.add(unknown, 10, 1, null);
+        sut.add(metrics, 10, 1, new HashSet<String>(Arrays.asList("MetricData")));
+
+        Set<String> evictableTypes = new HashSet<String>(Arrays.asList("MetricData", "MessageData"));
+        Assert.assertEquals(metrics, sut.evictionCandidate(evictableTypes).file);
+        Assert.assertEquals(events, sut.evictionCandidate(null).file);
+
+        // reserved files are never evicted
+        sut.reserve();
+        sut.remove(metrics);
+        Assert.assertEquals(unknown, sut.evictionCandidate(evictableTypes).file);
+    }
+
+    private File createFile(String name, long lastModified) throws IOException {
+        File file = new File(directory, name);
+        Assert.assertTrue(file.createNewFile());
+        Assert.assertTrue(file.setLastModified(lastModified));
+        return file;
+    }
+
+    private void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -2,9 +2,15 @@ package com.microsoft.applicationinsights.library;
 
 import android.test.AndroidTestCase;
 
+import com.microsoft.applicationinsights.library.config.Configuration;
+import com.microsoft.applicationinsights.library.config.EvictionPolicy;
+
 import junit.framework.Assert;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
 
 public class PersistenceTest extends AndroidTestCase {
 
@@ -33,4 +39,158 @@ public class PersistenceTest extends AndroidTestCase {
         File file = persistence.nextAvailableFile();
         Assert.assertEquals("Data retrieved from file is equal to data saved", data, persistence.load(file));
     }
-}
\ No newline at end of file
+
+    public void testCompressedDataIsStoredAsGzip() throws Exception {
+        Persistence persistence = Persistence.getInstance();
+
+        String data = "{\"name\":\"compressed\"}";
+        persistence.setCompressionEnabled(true);
+        persistence.writeToDisk(data, false);
+        File file = persistence.nextAvailableFile();
+
+        Assert.assertTrue("File is stored gzip-compressed", persistence.isCompressed(file));
+        Assert.assertEquals("Data retrieved from file is equal to data saved", data, persistence.load(file));
+    }
+
+    public void testUncompressedLegacyDataCanBeLoaded() throws Exception {
+        Persistence persistence = Persistence.getInstance();
+
+        String data = "{\"name\":\"legacy\"}";
+        persistence.setCompressionEnabled(false);
+        persistence.writeToDisk(data, false);
+        persistence.setCompressionEnabled(true);
+        File file = persistence.nextAvailableFile();
+
+        Assert.assertFalse("Legacy file isn't compressed", persistence.isCompressed(file));
+        Assert.assertEquals("Data retrieved from file is equal to data saved", data, persistence.load(file));
+    }
+
+    public void testCompactRecordsAreRenderedAsJson() throws Exception {
+        Persistence persistence = createEmptyPersistence();
+        Configuration config = new Configuration();
+        config.setCompactRecordFormatEnabled(true);
+        persistence.setPersistenceConfig(config);
+
+        String data = "\n{\"name\":\"a\",\"tags\":{\"ai.device.osVersion\":\"5.0\"}}"
+              + "\n{\"name\":\"b\",\"tags\":{\"ai.device.osVersion\":\"5.0\"}}";
+        Assert.assertTrue(persistence.writeToDisk(ByteBuffer.wrap(data.getBytes("UTF-8")), false, 2, null));
+        File file = persistence.nextAvailableFile();
+
+        Assert.assertTrue("File is stored gzip-compressed", persistence.isCompressed(file));
+        Assert.assertTrue("File is stored as compact record", persistence.isCompact(file));
+        Assert.assertEquals(data, persistence.load(file));
+    }
+
+    public void testFilesAreServedInTheOrderTheyHaveBeenWritten() throws Exception {
+        Persistence persistence = Persistence.getInstance();
+
+        persistence.writeToDisk("first", false);
+        persistence.writeToDisk("second", false);
+        File first = persistence.nextAvailableFile();
+        Assert.assertEquals("first", persistence.load(first));
+
+        persistence.makeAvailable(first);
+        Assert.assertEquals("released file is served again", first, persistence.nextAvailableFile());
+        File second = persistence.nextAvailableFile();
+        Assert.assertEquals("second", persistence.load(second));
+        Assert.assertNull(persistence.nextAvailableFile());
+
+        persistence.deleteFile(first);
+        persistence.deleteFile(second);
+        Assert.assertFalse(first.exists());
+        Assert.assertTrue(persistence.isFreeSpaceAvailable(false));
+    }
+
+    public void testOldestFilesAreEvictedOnceQuotaIsExceeded() throws Exception {
+        Persistence persistence = createEmptyPersistence();
+        Configuration config = new Configuration();
+        persistence.setPersistenceConfig(config);
+        long evictedItems = persistence.getEvictedItemCount();
+        long evictedBytes = persistence.getEvictedBytes();
+
+        write(persistence, "oldest", 2, null);
+        File oldest = persistence.nextAvailableFile();
+        persistence.makeAvailable(oldest);
+        config.setMaxPersistenceBytes(oldest.length() * 2);
+        write(persistence, "middle", 1, null);
+        write(persistence, "newest", 1, null);
+
+        Assert.assertFalse("oldest file has been evicted", oldest.exists());
+        Assert.assertEquals(2, persistence.getEvictedItemCount() - evictedItems);
+        Assert.assertTrue(persistence.getEvictedBytes() > evictedBytes);
+        Assert.assertEquals("middle", persistence.load(persistence.nextAvailableFile()).trim());
+        Assert.assertEquals("newest", persistence.load(persistence.nextAvailableFile()).trim());
+    }
+
+    public void testFilesOfPreviousProcessAreEvictedWithoutCounting() throws Exception {
+        Persistence persistence = createEmptyPersistence();
+        write(persistence, "previous", 1, null);
+        // a new instance indexes the file without knowing its items
+        persistence = new Persistence(this.getContext());
+        Configuration config = new Configuration();
+        persistence.setPersistenceConfig(config);
+        File previous = persistence.nextAvailableFile();
+        persistence.makeAvailable(previous);
+        long size = previous.length();
+        config.setMaxPersistenceBytes(size);
+
+        write(persistence, "newest", 1, null);
+        Assert.assertFalse("file of the previous process has been evicted", previous.exists());
+        Assert.assertEquals(0, persistence.getEvictedItemCount());
+        Assert.assertEquals(size, persistence.getEvictedBytes());
+    }
+
+    public void testFilesOfEvictableTypesAreEvictedFirst() throws Exception {
+        Persistence persistence = createEmptyPersistence();
+        Configuration config = new Configuration();
+        config.setEvictionPolicy(EvictionPolicy.DropByType);
+        persistence.setPersistenceConfig(config);
+
+        write(persistence, "event", 1, "EventData");
+        write(persistence, "metric", 1, "MetricData");
+        File event = persistence.nextAvailableFile();
+        File metric = persistence.nextAvailableFile();
+        persistence.makeAvailable(event);
+        persistence.makeAvailable(metric);
+        config.setMaxPersistenceBytes(event.length() + metric.length());
+        write(persistence, "trace", 1, "MessageData");
+
+        Assert.assertTrue("event has been kept", event.exists());
+        Assert.assertFalse("metric has been evicted", metric.exists());
+    }
+
+    public void testNewDataIsRejectedIfPolicyDropsNewest() throws Exception {
+        Persistence persistence = createEmptyPersistence();
+        Configuration config = new Configuration();
+        config.setEvictionPolicy(EvictionPolicy.DropNewest);
+        persistence.setPersistenceConfig(config);
+
+        Assert.assertTrue(persistence.isFreeSpaceAvailable(false));
+        write(persistence, "data", 1, null);
+        config.setMaxPersistenceBytes(1);
+        Assert.assertFalse(persistence.isFreeSpaceAvailable(false));
+    }
+
+    public void testBaseTypeIsReadFromSerializedEnvelope() {
+        Assert.assertEquals("EventData", Persistence.getBaseType(
+              "{\"ver\":1,\"data\":{\"baseType\":\"EventData\",\"baseData\":{}}}"));
+        Assert.assertEquals("", Persistence.getBaseType("{}"));
+    }
+
+    private Persistence createEmptyPersistence() {
+        // a new instance re-indexes the files left behind by other tests
+        Persistence persistence = new Persistence(this.getContext());
+        File file = persistence.nextAvailableFile();
+        while (file != null) {
+            persistence.deleteFile(file);
+            file = persistence.nextAvailableFile();
+        }
+        return persistence;
+    }
+
+    private void write(Persistence persistence, String data, int itemCount, String type) {
+        Set<String> types = type == null ? null : Collections.singleton(type);
+        ByteBuffer buffer = ByteBuffer.wrap(("\n" + data).getBytes());
+        Assert.assertTrue(persistence.writeToDisk(buffer, false, itemCount, types));
+    }
+}
@@ -0,0 +1,98 @@
+package com.microsoft.applicationinsights.library;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class QuantileSketchTest extends TestCase {
+
+    private static final double[] QUANTILES = {0, 0.1, 0.5, 0.9, 0.95, 0.99, 1};
+
+    private Random random;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        random = new Random(42);
+    }
+
+    public void testQuantilesAreWithinRelativeAccuracy() {
+        // durations in ms, log-normally distributed around 200ms
+        double[] values = new double[100000];
+        QuantileSketch sut = new QuantileSketch();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.exp(Math.log(200) + random.nextGaussian());
+            sut.add(values[i]);
+        }
+
+        assertQuantiles(values, sut);
+    }
+
+    public void testMergedSketchEqualsSketchOfAllValues() {
+        double[] values = new double[10000];
+        QuantileSketch all = new QuantileSketch();
+        QuantileSketch first = new QuantileSketch();
+        QuantileSketch second = new QuantileSketch();
+        for (int i = 0; i < values.length; i++) {
+            // the second half is much larger, so the window has to move while merging
+            values[i] = i < values.length / 2 ? 1 + random.nextDouble() : 1000 + random.nextDouble() * 1000;
+            all.add(values[i]);
+            (i < values.length / 2 ? first : second).add(values[i]);
+        }
+
+        second.merge(first);
+        Assert.assertEquals(values.length, second.getCount());
+        for (double quantile : QUANTILES) {
+            Assert.assertEquals(all.getQuantile(quantile), second.getQuantile(quantile), 0.0);
+        }
+        assertQuantiles(values, second);
+    }
+
+    public void testZeroAndNegativeValuesCountAsZero() {
+        QuantileSketch sut = new QuantileSketch();
+        sut.add(-5);
+        sut.add(0);
+        sut.add(10);
+        sut.add(Double.NaN);
+
+        Assert.assertEquals(3, sut.getCount());
+        Assert.assertEquals(0.0, sut.getQuantile(0.5), 0.0);
+        Assert.assertEquals(10, sut.getQuantile(1), 10 * QuantileSketch.RELATIVE_ACCURACY);
+    }
+
+    public void testHighQuantilesSurviveValuesBeyondTheWindow() {
+        QuantileSketch sut = new QuantileSketch();
+        sut.add(1e-6);
+        for (int i = 0; i < 1000; i++) {
+            sut.add(1e6);
+        }
+        sut.add(Double.POSITIVE_INFINITY);
+        sut.add(1e-3);
+
+        Assert.assertEquals("infinity isn't counted", 1002, sut.getCount());
+        Assert.assertEquals(1e6, sut.getQuantile(0.5), 1e6 * QuantileSketch.RELATIVE_ACCURACY);
+    }
+
+    public void testMemoryIsBounded() {
+        Assert.assertTrue("counts take less than 2 KB", QuantileSketch.BUCKET_COUNT * 4 < 2048);
+
+        QuantileSketch sut = new QuantileSketch();
+        for (int i = 0; i < 1000000; i++) {
+            sut.add(random.nextDouble() * 1e9);
+        }
+        sut.clear();
+        Assert.assertEquals(0, sut.getCount());
+        Assert.assertTrue(Double.isNaN(sut.getQuantile(0.5)));
+    }
+
+    private static void assertQuantiles(double[] values, QuantileSketch sketch) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (double quantile : QUANTILES) {
+            double expected = sorted[(int) (quantile * (sorted.length - 1))];
+            Assert.assertEquals("quantile " + quantile, expected, sketch.getQuantile(quantile),
+                  expected * QuantileSketch.RELATIVE_ACCURACY);
+        }
+    }
+}
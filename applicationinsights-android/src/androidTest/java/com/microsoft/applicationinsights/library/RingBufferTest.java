@@ -0,0 +1,232 @@
+package com.microsoft.applicationinsights.library;
+
+import android.util.Log;
+
+import com.microsoft.applicationinsights.library.config.Configuration;
+import com.microsoft.applicationinsights.library.config.IQueueConfig;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RingBufferTest extends TestCase {
+
+    private static final String TAG = "RingBufferTest";
+
+    private static final int THREAD_COUNT = 10;
+    private static final int ITEMS_PER_THREAD = 20000;
+    private static final int BATCH_COUNT = 100;
+
+    private RingBuffer<String> sut;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        sut = new RingBuffer<String>(6);
+    }
+
+    public void testCapacityIsRoundedToPowerOfTwo() {
+        Assert.assertEquals(8, sut.capacity());
+        Assert.assertTrue(sut.isEmpty());
+    }
+
+    public void testOfferFailsIfBufferIsFull() {
+        for (int i = 0; i < sut.capacity(); i++) {
+            Assert.assertTrue(sut.offer("item" + i));
+        }
+
+        Assert.assertFalse(sut.offer("overflow"));
+        Assert.assertEquals(8, sut.size());
+    }
+
+    public void testDrainReturnsItemsInOrderAndFreesSlots() {
+        sut.offer("1");
+        sut.offer("2");
+        sut.offer("3");
+
+        String[] batch = new String[2];
+        Assert.assertEquals(2, sut.drainTo(batch));
+        Assert.assertEquals("1", batch[0]);
+        Assert.assertEquals("2", batch[1]);
+        Assert.assertEquals(1, sut.size());
+
+        // wrap around several times
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 7; i++) {
+                Assert.assertTrue(sut.offer("lap" + lap));
+            }
+            Assert.assertFalse(sut.offer("overflow"));
+
+            String[] all = new String[8];
+            Assert.assertEquals(8, sut.drainTo(all));
+            Assert.assertEquals("lap" + lap, all[7]);
+            Assert.assertTrue(sut.isEmpty());
+            sut.offer("next");
+        }
+    }
+
+    /**
+     * Contention benchmark: THREAD_COUNT producers enqueue into the ChannelQueue, which flushes
+     * batches of BATCH_COUNT items, compared to the enqueue path of the ChannelQueue before the
+     * ring buffer, which held a lock around a LinkedList.
+     */
+    public void testContentionComparedToSynchronizedList() throws Exception {
+        Configuration config = new Configuration();
+        config.setMaxBatchCount(BATCH_COUNT);
+        config.setMaxBatchIntervalMs(60000);
+
+        final CountingChannelQueue ringBufferQueue = new CountingChannelQueue(config);
+        long ringBufferNs = runBenchmark(new Producer() {
+            @Override
+            public void enqueue(String item) {
+                ringBufferQueue.enqueue(item);
+            }
+
+            @Override
+            public int flush() {
+                ringBufferQueue.flush();
+                return ringBufferQueue.persisted.get();
+            }
+        });
+
+        final SynchronizedListQueue listQueue = new SynchronizedListQueue(config);
+        long listNs = runBenchmark(new Producer() {
+            @Override
+            public void enqueue(String item) {
+                listQueue.enqueue(item);
+            }
+
+            @Override
+            public int flush() {
+                listQueue.flush();
+                return listQueue.persisted.get();
+            }
+        });
+
+        Log.i(TAG, String.format(Locale.ROOT, "ring buffer: %dms, synchronized list: %dms for %d items",
+              ringBufferNs / 1000000, listNs / 1000000, THREAD_COUNT * ITEMS_PER_THREAD));
+    }
+
+    private long runBenchmark(final Producer producer) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREAD_COUNT);
+
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < ITEMS_PER_THREAD; i++) {
+                            producer.enqueue("item");
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        int persisted = producer.flush();
+        long elapsed = System.nanoTime() - begin;
+
+        Assert.assertEquals(THREAD_COUNT * ITEMS_PER_THREAD, persisted);
+        return elapsed;
+    }
+
+    private interface Producer {
+        void enqueue(String item);
+
+        /**
+         * @return the number of items which have been persisted
+         */
+        int flush();
+    }
+
+    private static class CountingChannelQueue extends ChannelQueue {
+
+        private final AtomicInteger persisted = new AtomicInteger(0);
+
+        CountingChannelQueue(IQueueConfig config) {
+            super(config);
+        }
+
+        @Override
+        protected void executePersistenceTask(String[] data) {
+            this.persisted.addAndGet(data.length);
+        }
+    }
+
+    /**
+     * The enqueue path of the ChannelQueue before the ring buffer, with persisting replaced by
+     * counting like in {@link CountingChannelQueue}
+     */
+    private static class SynchronizedListQueue {
+
+        private final Object LOCK = new Object();
+
+        private final IQueueConfig config;
+
+        private final Timer timer;
+
+        private final List<String> list;
+
+        private final AtomicInteger persisted = new AtomicInteger(0);
+
+        private TimerTask scheduledPersistenceTask;
+
+        SynchronizedListQueue(IQueueConfig config) {
+            this.config = config;
+            this.timer = new Timer("SynchronizedListQueue", true);
+            this.list = new LinkedList<String>();
+        }
+
+        boolean enqueue(String serializedItem) {
+            boolean success;
+            synchronized (this.LOCK) {
+                success = this.list.add(serializedItem);
+                if (success) {
+                    if (this.list.size() >= this.config.getMaxBatchCount()) {
+                        flush();
+                    } else if (this.list.size() == 1) {
+                        this.scheduledPersistenceTask = new TimerTask() {
+                            @Override
+                            public void run() {
+                                flush();
+                            }
+                        };
+                        this.timer.schedule(this.scheduledPersistenceTask, this.config.getMaxBatchIntervalMs());
+                    }
+                }
+            }
+            return success;
+        }
+
+        void flush() {
+            if (this.scheduledPersistenceTask != null) {
+                this.scheduledPersistenceTask.cancel();
+            }
+
+            String[] data;
+            synchronized (this.LOCK) {
+                if (!this.list.isEmpty()) {
+                    data = new String[this.list.size()];
+                    this.list.toArray(data);
+                    this.list.clear();
+                    this.persisted.addAndGet(data.length);
+                }
+            }
+        }
+    }
+}
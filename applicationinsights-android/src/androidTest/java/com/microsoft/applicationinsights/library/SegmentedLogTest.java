@@ -0,0 +1,182 @@
+package com.microsoft.applicationinsights.library;
+
+import android.test.AndroidTestCase;
+
+import junit.framework.Assert;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class SegmentedLogTest extends AndroidTestCase {
+
+    private File directory;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        directory = new File(this.getContext().getFilesDir(), "SegmentedLogTest");
+        deleteDirectory();
+    }
+
+    public void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    public void testAppendedBatchesShareASegment() throws Exception {
+        SegmentedLog sut = new SegmentedLog(directory);
+        sut.append(encode("{\"a\":1}\n"));
+        sut.append(encode("{\"b\":2}\n"));
+        Assert.assertEquals(16, sut.byteCount());
+
+        File segment = sut.reserve();
+        Assert.assertNotNull("active segment is sealed when it is requested", segment);
+        Assert.assertEquals("{\"a\":1}\n{\"b\":2}\n", read(segment));
+        Assert.assertNull(sut.reserve());
+        sut.acknowledge(segment);
+
+        sut.append(encode("{\"c\":3}\n"));
+        File next = sut.reserve();
+        Assert.assertFalse("a new segment is started after sealing", segment.equals(next));
+        Assert.assertEquals("{\"c\":3}\n", read(next));
+    }
+
+    public void testItemsAreCountedWhenSealed() throws Exception {
+        SegmentedLog sut = new SegmentedLog(directory);
+        sut.append(encode("\n{\"a\":1}\n{\"b\":2}"), 2);
+        sut.append(encode("\n{\"c\":3}"));
+        sut.seal();
+        Assert.assertEquals(3, sut.itemCount(sut.oldestSealedSegment()));
+
+        SegmentedLog recovered = new SegmentedLog(directory);
+        Assert.assertEquals("items of recovered segments are counted once", 3,
+              recovered.itemCount(recovered.oldestSealedSegment()));
+    }
+
+    public void testSegmentIsSealedWhenFull() throws Exception {
+        SegmentedLog sut = new SegmentedLog(directory);
+        sut.append(ByteBuffer.wrap(new byte[(int) SegmentedLog.SEGMENT_SIZE]));
+        sut.append(encode("{}\n"));
+
+        File full = sut.oldestSealedSegment();
+        Assert.assertNotNull(full);
+        Assert.assertEquals(SegmentedLog.SEGMENT_SIZE, full.length());
+        Assert.assertEquals("sealed segments are served first", full, sut.reserve());
+        sut.acknowledge(full);
+        Assert.assertEquals("{}\n", read(sut.reserve()));
+    }
+
+    public void testReleasedSegmentIsServedAgain() throws Exception {
+        SegmentedLog sut = new SegmentedLog(directory);
+        sut.append(encode("{}\n"));
+        File segment = sut.reserve();
+
+        Assert.assertTrue(sut.release(segment));
+        Assert.assertFalse("segment isn't reserved anymore", sut.release(segment));
+        Assert.assertFalse("files of other directories are ignored",
+              sut.release(new File(this.getContext().getFilesDir(), segment.getName())));
+        Assert.assertEquals(segment, sut.reserve());
+    }
+
+    public void testAcknowledgedSegmentIsDeleted() throws Exception {
+        SegmentedLog sut = new SegmentedLog(directory);
+        sut.append(encode("{}\n"));
+        File segment = sut.reserve();
+
+        Assert.assertTrue(sut.acknowledge(segment));
+        Assert.assertFalse(segment.exists());
+        Assert.assertFalse(sut.acknowledge(segment));
+        Assert.assertEquals(0, sut.byteCount());
+    }
+
+    public void testBatchesAppendedDuringAnUploadShareASegment() throws Exception {
+        final long[] now = {0};
+        SegmentedLog sut = new SegmentedLog(directory) {
+            @Override
+            protected long getTime() {
+                return now[0];
+            }
+        };
+        sut.append(encode("{\"a\":1}\n"));
+        File sending = sut.reserve();
+        Assert.assertNotNull("the idle sender gets the active segment", sending);
+
+        sut.append(encode("{\"b\":2}\n"));
+        Assert.assertNull("the segment isn't sealed while another one is sent", sut.reserve());
+        sut.append(encode("{\"c\":3}\n"));
+        Assert.assertNull(sut.reserve());
+
+        sut.acknowledge(sending);
+        Assert.assertEquals("{\"b\":2}\n{\"c\":3}\n", read(sut.reserve()));
+
+        sut.append(encode("{\"d\":4}\n"));
+        now[0] += SegmentedLog.MAX_SEGMENT_AGE_MS;
+        Assert.assertEquals("old segments are sealed anyway", "{\"d\":4}\n", read(sut.reserve()));
+    }
+
+    public void testLogIsRecoveredAfterRestart() throws Exception {
+        final File[] undeletable = new File[1];
+        SegmentedLog log = new SegmentedLog(directory) {
+            @Override
+            protected boolean deleteSegment(File file) {
+                return !file.equals(undeletable[0]) && super.deleteSegment(file);
+            }
+        };
+        log.append(encode("{\"a\":1}\n"));
+        File first = log.reserve();
+        log.release(first);
+        log.append(encode("{\"b\":2}\n"));
+        log.seal();
+        log.append(encode("{\"c\":3}\n"));
+        log.seal();
+        Assert.assertEquals(first, log.reserve());
+        File second = log.reserve();
+        File checkpoint = new File(directory, "checkpoint");
+
+        log.acknowledge(second);
+        Assert.assertFalse("deleted segments don't need a checkpoint", checkpoint.exists());
+        undeletable[0] = first;
+        log.acknowledge(first);
+        Assert.assertTrue("the segment which couldn't be deleted is skipped", checkpoint.exists());
+
+        SegmentedLog sut = new SegmentedLog(directory);
+        Assert.assertFalse("acknowledged segment is deleted", first.exists());
+        Assert.assertEquals("{\"c\":3}\n", read(sut.reserve()));
+        Assert.assertNull(sut.reserve());
+
+        sut.append(encode("{\"d\":4}\n"));
+        sut.seal();
+        File next = sut.reserve();
+        Assert.assertTrue("sequence numbers keep growing", next.getName().compareTo(second.getName()) > 0);
+    }
+
+    private static ByteBuffer encode(String data) throws IOException {
+        return ByteBuffer.wrap(data.getBytes("UTF-8"));
+    }
+
+    private static String read(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += inputStream.read(bytes, offset, bytes.length - offset);
+            }
+            return new String(bytes, "UTF-8");
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,106 @@
+package com.microsoft.applicationinsights.library;
+
+import android.test.AndroidTestCase;
+
+import junit.framework.Assert;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+public class SenderBackoffTest extends AndroidTestCase {
+
+    private SenderBackoff sut;
+    private long now;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        now = 1000000;
+        sut = new SenderBackoff(null) {
+            @Override
+            protected long getTime() {
+                return now;
+            }
+        };
+    }
+
+    public void testDelayGrowsExponentiallyWithJitter() {
+        for (int failures = 1; failures <= 10; failures++) {
+            long expected = Math.min(SenderBackoff.MAX_BACKOFF_MS,
+                  SenderBackoff.INITIAL_BACKOFF_MS << (failures - 1));
+            long delay = sut.computeDelay(failures);
+            Assert.assertTrue(delay >= expected / 2);
+            Assert.assertTrue(delay <= expected);
+        }
+
+        Assert.assertTrue(sut.computeDelay(100) <= SenderBackoff.MAX_BACKOFF_MS);
+    }
+
+    public void testFailurePausesUntilSuccess() {
+        Assert.assertFalse(sut.isPaused());
+
+        long delay = sut.onFailure(-1);
+        Assert.assertTrue(sut.isPaused());
+        Assert.assertEquals(delay, sut.getRemainingPause());
+
+        now += delay;
+        Assert.assertFalse(sut.isPaused());
+
+        sut.onFailure(-1);
+        sut.onSuccess(new File("file"));
+        Assert.assertFalse(sut.isPaused());
+    }
+
+    public void testRetryAfterOverridesComputedDelay() {
+        Assert.assertEquals(120000, sut.onFailure(120000));
+        Assert.assertEquals(120000, sut.getRemainingPause());
+        Assert.assertEquals(SenderBackoff.MAX_RETRY_AFTER_MS, sut.onFailure(Long.MAX_VALUE / 2));
+    }
+
+    public void testParseRetryAfter() {
+        Assert.assertEquals(-1, sut.parseRetryAfter(null));
+        Assert.assertEquals(-1, sut.parseRetryAfter("soon"));
+        Assert.assertEquals(30000, sut.parseRetryAfter(" 30 "));
+
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        String date = format.format(new Date(now + 60000));
+        Assert.assertEquals(60000, sut.parseRetryAfter(date));
+    }
+
+    public void testAttemptsAreCountedPerFile() {
+        File first = new File("first");
+        File second = new File("second");
+
+        Assert.assertEquals(1, sut.recordAttempt(first));
+        Assert.assertEquals(2, sut.recordAttempt(first));
+        Assert.assertEquals(1, sut.recordAttempt(second));
+
+        sut.forget(first);
+        Assert.assertEquals(1, sut.recordAttempt(first));
+    }
+
+    public void testAttemptsOfEvictedFilesArePrunedOnStartup() throws Exception {
+        File directory = new File(getContext().getFilesDir().getPath() + Persistence.AI_SDK_DIRECTORY
+              + Persistence.REGULAR_PRIO_DIRECTORY);
+        Assert.assertTrue(directory.isDirectory() || directory.mkdirs());
+        File kept = new File(directory, "kept");
+        File evicted = new File(directory, "evicted");
+        Assert.assertTrue(kept.createNewFile() || kept.exists());
+
+        SenderBackoff before = new SenderBackoff(getContext());
+        before.recordAttempt(kept);
+        before.recordAttempt(evicted);
+
+        // the evicted file doesn't exist, as if the storage quota had deleted it
+        SenderBackoff after = new SenderBackoff(getContext());
+        Assert.assertEquals(2, after.recordAttempt(kept));
+        Assert.assertEquals(1, after.recordAttempt(evicted));
+
+        after.forget(kept);
+        after.forget(evicted);
+        Assert.assertTrue(kept.delete());
+    }
+}
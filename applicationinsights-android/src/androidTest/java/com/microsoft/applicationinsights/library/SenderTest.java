@@ -5,6 +5,9 @@ import com.microsoft.applicationinsights.library.config.Configuration;
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class SenderTest extends TestCase {
 
     private Sender sut;
@@ -48,5 +51,82 @@ public class SenderTest extends TestCase {
             }
         }
     }
-}
 
+    public void testConcurrentTriggersNeverExceedSenderCount() throws Exception {
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger maxRunning = new AtomicInteger(0);
+        final AtomicInteger passes = new AtomicInteger(0);
+        Sender sender = new Sender(new Configuration()) {
+            @Override
+            protected void sendAvailableFiles() {
+                int current = running.incrementAndGet();
+                int max = maxRunning.get();
+                while (current > max && !maxRunning.compareAndSet(max, current)) {
+                    max = maxRunning.get();
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                passes.incrementAndGet();
+            }
+        };
+        sender.setBackoff(new SenderBackoff(null));
+
+        int triggerCount = 50;
+        for (int i = 0; i < triggerCount; i++) {
+            sender.sendNextFile();
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.runningRequestCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        Assert.assertEquals(0, sender.runningRequestCount());
+        Assert.assertTrue("parallel uploads are limited", maxRunning.get() <= Sender.SENDER_COUNT);
+        Assert.assertTrue("triggers are coalesced", passes.get() < triggerCount);
+    }
+
+    public void testPausedSenderRetriesOnceBackoffExpired() throws Exception {
+        final AtomicInteger passes = new AtomicInteger(0);
+        Sender sender = new Sender(new Configuration()) {
+            @Override
+            protected void sendAvailableFiles() {
+                passes.incrementAndGet();
+            }
+        };
+        SenderBackoff backoff = new SenderBackoff(null);
+        backoff.onFailure(200);
+        sender.setBackoff(backoff);
+
+        for (int i = 0; i < 10; i++) {
+            sender.sendNextFile();
+        }
+        Thread.sleep(50);
+        Assert.assertEquals("no upload while paused", 0, passes.get());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (passes.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        Assert.assertEquals("a single retry is scheduled", 1, passes.get());
+    }
+
+    public void testParseRetryableItemsOfPartialSuccess() {
+        String response = "{\"itemsReceived\":4,\"itemsAccepted\":1,\"errors\":["
+              + "{\"index\":0,\"statusCode\":429,\"message\":\"throttled\"},"
+              + "{\"index\":2,\"statusCode\":400,\"message\":\"invalid\"},"
+              + "{\"index\":3,\"statusCode\":500,\"message\":\"error\"}]}";
+
+        Set<Integer> indices = sut.parseRetryableItems(response);
+        Assert.assertEquals(2, indices.size());
+        Assert.assertTrue(indices.contains(0));
+        Assert.assertTrue(indices.contains(3));
+
+        Assert.assertTrue(sut.parseRetryableItems("not json").isEmpty());
+    }
+}
@@ -0,0 +1,434 @@
+package com.microsoft.applicationinsights.library;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.microsoft.applicationinsights.library.config.Configuration;
+import com.microsoft.applicationinsights.library.config.IPersistenceConfig;
+
+import junit.framework.Assert;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Uploads a backlog of files to a local stand-in for the endpoint and checks how the files are
+ * packed into requests and that the connection is kept alive between the requests.
+ */
+public class SenderUploadTest extends AndroidTestCase {
+
+    private static final String TAG = "SenderUploadTest";
+
+    private static final int FILE_COUNT = 20;
+
+    private StandInServer server;
+    private Persistence persistence;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        Persistence.initialize(this.getContext());
+        persistence = Persistence.getInstance();
+        deleteAllFiles();
+
+        server = new StandInServer();
+        server.start();
+    }
+
+    public void tearDown() throws Exception {
+        server.close();
+        deleteAllFiles();
+        super.tearDown();
+    }
+
+    public void testPendingFilesArePackedIntoOneRequest() throws Exception {
+        uploadBacklog(createSender());
+
+        Assert.assertEquals(1, server.requests.get());
+        Assert.assertNull("all files have been deleted", persistence.nextAvailableFile());
+        String body = server.bodies.get(0);
+        for (int i = 0; i < FILE_COUNT; i++) {
+            Assert.assertTrue(body.contains("\n{\"name\":\"item" + i + "\"}"));
+        }
+    }
+
+    public void testItemBudgetLimitsPackedFiles() throws Exception {
+        Sender sender = createSender();
+        sender.config.setMaxRequestItemCount(5);
+        uploadBacklog(sender);
+
+        Assert.assertEquals(FILE_COUNT / 5, server.requests.get());
+        Assert.assertNull("all files have been deleted", persistence.nextAvailableFile());
+    }
+
+    public void testRecoverableFailureReleasesAllPackedFiles() throws Exception {
+        server.responseCode = 503;
+        Sender sender = createSender();
+        uploadBacklog(sender);
+
+        Assert.assertEquals(1, server.requests.get());
+        int available = 0;
+        File file = persistence.nextAvailableFile();
+        while (file != null) {
+            available++;
+            persistence.deleteFile(file);
+            file = persistence.nextAvailableFile();
+        }
+        Assert.assertEquals("all files have been released", FILE_COUNT, available);
+    }
+
+    public void testPartialSuccessKeepsRetryableItems() throws Exception {
+        server.responseCode = 206;
+        server.responseBody = "{\"itemsReceived\":" + FILE_COUNT + ",\"itemsAccepted\":" + (FILE_COUNT - 3)
+              + ",\"errors\":[{\"index\":1,\"statusCode\":500,\"message\":\"retry\"},"
+              + "{\"index\":3,\"statusCode\":400,\"message\":\"invalid\"},"
+              + "{\"index\":5,\"statusCode\":503,\"message\":\"retry\"}]}";
+        Sender sender = createSender();
+        Sender previousInstance = Sender.getInstance();
+        sender.setInstance(sender);
+        try {
+            uploadBacklog(sender);
+        } finally {
+            sender.setInstance(previousInstance);
+        }
+
+        Assert.assertEquals(1, server.requests.get());
+        // the indices refer to the lines of the request
+        String[] items = server.bodies.get(0).substring(1).split("\n");
+        // the items of every sent file are persisted in a file of their own
+        StringBuilder retried = new StringBuilder();
+        File file = persistence.nextAvailableFile();
+        while (file != null) {
+            retried.append(persistence.load(file));
+            persistence.deleteFile(file);
+            file = persistence.nextAvailableFile();
+        }
+        Assert.assertEquals("\n" + items[1] + "\n" + items[5], retried.toString());
+    }
+
+    public void testRepeatedPartialSuccessGrowsTheBackoff() throws Exception {
+        server.responseCode = 206;
+        server.responseBody = "{\"itemsReceived\":" + FILE_COUNT + ",\"itemsAccepted\":" + (FILE_COUNT - 1)
+              + ",\"errors\":[{\"index\":1,\"statusCode\":500,\"message\":\"retry\"}]}";
+        final long[] now = {1000000};
+        SenderBackoff backoff = new SenderBackoff(null) {
+            @Override
+            protected long getTime() {
+                return now[0];
+            }
+        };
+        Sender sender = createSender();
+        sender.setBackoff(backoff);
+        Sender previousInstance = Sender.getInstance();
+        sender.setInstance(sender);
+        try {
+            uploadBacklog(sender);
+            long firstPause = backoff.getRemainingPause();
+            Assert.assertTrue("retryable items pause uploads", firstPause > 0);
+            Assert.assertTrue(firstPause <= SenderBackoff.INITIAL_BACKOFF_MS);
+
+            now[0] += firstPause;
+            uploadBacklog(sender);
+            Assert.assertEquals(2, server.requests.get());
+            Assert.assertTrue("the second failure doubles the delay",
+                  backoff.getRemainingPause() > SenderBackoff.INITIAL_BACKOFF_MS);
+        } finally {
+            sender.setInstance(previousInstance);
+        }
+    }
+
+    public void testRetryableItemsKeepPriorityAndAttempts() throws Exception {
+        server.responseCode = 206;
+        server.responseBody = "{\"itemsReceived\":1,\"itemsAccepted\":0,"
+              + "\"errors\":[{\"index\":0,\"statusCode\":500,\"message\":\"retry\"}]}";
+        final long[] now = {1000000};
+        SenderBackoff backoff = new SenderBackoff(null) {
+            @Override
+            protected long getTime() {
+                return now[0];
+            }
+        };
+        Sender sender = createSender();
+        sender.setBackoff(backoff);
+        persistence.writeToDisk("{\"name\":\"crash\"}", true);
+
+        for (int i = 1; i < SenderBackoff.MAX_FILE_ATTEMPTS; i++) {
+            now[0] += backoff.getRemainingPause();
+            sender.sendAvailableFiles();
+            Assert.assertEquals(i, server.requests.get());
+            File file = persistence.nextAvailableFile();
+            Assert.assertNotNull("the item has been persisted again", file);
+            Assert.assertTrue("the item keeps its priority", persistence.isHighPriority(file));
+            persistence.makeAvailable(file);
+        }
+
+        now[0] += backoff.getRemainingPause();
+        sender.sendAvailableFiles();
+        Assert.assertEquals(SenderBackoff.MAX_FILE_ATTEMPTS, server.requests.get());
+        Assert.assertNull("the item has been dropped", persistence.nextAvailableFile());
+    }
+
+    public void testCompactRecordsAreSentAsJson() throws Exception {
+        Configuration persistenceConfig = new Configuration();
+        persistenceConfig.setCompactRecordFormatEnabled(true);
+        IPersistenceConfig previousConfig = persistence.config;
+        persistence.setPersistenceConfig(persistenceConfig);
+        Sender sender = createSender();
+        sender.config.setMaxRequestBytes(1);
+        try {
+            uploadBacklog(sender);
+        } finally {
+            persistence.setPersistenceConfig(previousConfig);
+        }
+
+        Assert.assertEquals(FILE_COUNT, server.requests.get());
+        for (int i = 0; i < FILE_COUNT; i++) {
+            Assert.assertTrue(server.bodies.contains("\n{\"name\":\"item" + i + "\"}"));
+        }
+    }
+
+    public void testBacklogIsUploadedOverOneConnection() throws Exception {
+        Sender sender = createSender();
+        sender.config.setMaxRequestBytes(1);
+        long elapsed = uploadBacklog(sender);
+
+        Assert.assertEquals(FILE_COUNT, server.requests.get());
+        Assert.assertNull("all files have been sent", persistence.nextAvailableFile());
+        Assert.assertEquals("connection has been reused", 1, server.connections.get());
+
+        Log.i(TAG, String.format(Locale.ROOT, "%d files over %d connection(s) in %dms",
+              FILE_COUNT, server.connections.get(), elapsed / 1000000));
+    }
+
+    /**
+     * Benchmark: compare the upload of a backlog with and without consuming the response, which
+     * forces a new connection per file.
+     */
+    public void testThroughputComparedToUnconsumedResponses() throws Exception {
+        Sender sender = createSender();
+        sender.config.setMaxRequestBytes(1);
+        long reused = uploadBacklog(sender);
+        int reusedConnections = server.connections.getAndSet(0);
+
+        Sender legacySender = new Sender(createConfig()) {
+            @Override
+            protected void consumeResponse(HttpURLConnection connection) {
+                // leave the response unread like before
+            }
+        };
+        legacySender.config.setMaxRequestBytes(1);
+        legacySender.setPersistence(persistence);
+        legacySender.setBackoff(new SenderBackoff(null));
+        long unconsumed = uploadBacklog(legacySender);
+        int unconsumedConnections = server.connections.get();
+
+        Log.i(TAG, String.format(Locale.ROOT,
+              "keep-alive: %dms over %d connection(s), unconsumed: %dms over %d connection(s)",
+              reused / 1000000, reusedConnections, unconsumed / 1000000, unconsumedConnections));
+        Assert.assertTrue(reusedConnections <= unconsumedConnections);
+    }
+
+    private Configuration createConfig() {
+        Configuration config = new Configuration();
+        config.setEndpointUrl("http://127.0.0.1:" + server.getPort() + "/v2/track");
+        return config;
+    }
+
+    private Sender createSender() {
+        Sender sender = new Sender(createConfig());
+        sender.setPersistence(persistence);
+        sender.setBackoff(new SenderBackoff(null));
+        return sender;
+    }
+
+    private long uploadBacklog(Sender sender) {
+        for (int i = 0; i < FILE_COUNT; i++) {
+            persistence.writeToDisk("{\"name\":\"item" + i + "\"}", false);
+        }
+
+        long begin = System.nanoTime();
+        sender.sendAvailableFiles();
+        return System.nanoTime() - begin;
+    }
+
+    private void deleteAllFiles() {
+        File file = persistence.nextAvailableFile();
+        while (file != null) {
+            persistence.deleteFile(file);
+            file = persistence.nextAvailableFile();
+        }
+    }
+
+    /**
+     * A minimal HTTP/1.1 server which accepts every request with a track response and supports
+     * keep-alive.
+     */
+    private static class StandInServer extends Thread {
+
+        private final ServerSocket serverSocket;
+        private final AtomicInteger connections;
+        private final AtomicInteger requests;
+        private final List<String> bodies;
+        private volatile int responseCode;
+        private volatile String responseBody;
+
+        StandInServer() throws IOException {
+            this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            this.connections = new AtomicInteger(0);
+            this.requests = new AtomicInteger(0);
+            this.bodies = Collections.synchronizedList(new ArrayList<String>());
+            this.responseCode = 200;
+            this.responseBody = "{\"itemsReceived\":1,\"itemsAccepted\":1,\"errors\":[]}";
+            this.setDaemon(true);
+        }
+
+        int getPort() {
+            return this.serverSocket.getLocalPort();
+        }
+
+        void close() throws IOException {
+            this.serverSocket.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = this.serverSocket.accept();
+                    this.connections.incrementAndGet();
+                    Thread handler = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            handle(socket);
+                        }
+                    });
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            } catch (IOException e) {
+                // server has been closed
+            }
+        }
+
+        private void handle(Socket socket) {
+            try {
+                socket.setTcpNoDelay(true);
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                String headers;
+                while ((headers = readHeaders(in)) != null) {
+                    String lowerCase = headers.toLowerCase(Locale.ROOT);
+                    byte[] body;
+                    if (lowerCase.contains("transfer-encoding: chunked")) {
+                        body = readChunkedBody(in);
+                    } else {
+                        body = read(in, contentLength(lowerCase));
+                    }
+                    if (lowerCase.contains("content-encoding: gzip")) {
+                        body = gunzip(body);
+                    }
+                    this.bodies.add(new String(body, "UTF-8"));
+                    this.requests.incrementAndGet();
+
+                    // write the response at once so it isn't delayed by Nagle's algorithm
+                    ByteArrayOutputStream response = new ByteArrayOutputStream();
+                    byte[] responseBody = this.responseBody.getBytes("UTF-8");
+                    String status = "HTTP/1.1 " + this.responseCode + " Status\r\n" +
+                          "Content-Type: application/json\r\n" +
+                          "Content-Length: " + responseBody.length + "\r\n\r\n";
+                    response.write(status.getBytes());
+                    response.write(responseBody);
+                    out.write(response.toByteArray());
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // client closed the connection
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // no-op
+                }
+            }
+        }
+
+        private static String readHeaders(InputStream in) throws IOException {
+            ByteArrayOutputStream headers = new ByteArrayOutputStream();
+            int matched = 0;
+            int b;
+            while (matched < 4 && (b = in.read()) != -1) {
+                headers.write(b);
+                matched = (b == '\r' || b == '\n') ? matched + 1 : 0;
+            }
+            return matched < 4 ? null : headers.toString();
+        }
+
+        private static int contentLength(String headers) {
+            int index = headers.indexOf("content-length:");
+            if (index < 0) {
+                return 0;
+            }
+            int end = headers.indexOf('\r', index);
+            return Integer.parseInt(headers.substring(index + 15, end).trim());
+        }
+
+        private static byte[] readChunkedBody(InputStream in) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            while (true) {
+                StringBuilder line = new StringBuilder();
+                int b;
+                while ((b = in.read()) != '\n') {
+                    if (b == -1) {
+                        throw new IOException("unexpected end of stream");
+                    }
+                    if (b != '\r') {
+                        line.append((char) b);
+                    }
+                }
+                int size = Integer.parseInt(line.toString().trim(), 16);
+                body.write(read(in, size));
+                // the trailing CRLF
+                read(in, 2);
+                if (size == 0) {
+                    return body.toByteArray();
+                }
+            }
+        }
+
+        private static byte[] read(InputStream in, int count) throws IOException {
+            byte[] data = new byte[count];
+            for (int i = 0; i < count; i++) {
+                int b = in.read();
+                if (b == -1) {
+                    throw new IOException("unexpected end of stream");
+                }
+                data[i] = (byte) b;
+            }
+            return data;
+        }
+
+        private static byte[] gunzip(byte[] data) throws IOException {
+            InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+    }
+}
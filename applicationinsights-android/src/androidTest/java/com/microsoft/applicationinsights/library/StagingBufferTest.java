@@ -0,0 +1,93 @@
+package com.microsoft.applicationinsights.library;
+
+import android.test.AndroidTestCase;
+
+import junit.framework.Assert;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+public class StagingBufferTest extends AndroidTestCase {
+
+    private static final int CAPACITY = 1024;
+
+    private File file;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        file = new File(this.getContext().getFilesDir(), "StagingBufferTest");
+        file.delete();
+    }
+
+    public void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    public void testItemsAreConsumedInOrder() throws Exception {
+        StagingBuffer sut = new StagingBuffer(file, CAPACITY);
+        Assert.assertTrue(sut.append("{\"a\":1}"));
+        Assert.assertTrue(sut.append(""));
+        Assert.assertTrue(sut.append("{\"c\":\"ü\"}"));
+        Assert.assertEquals(3, sut.pendingCount());
+
+        sut.consume(1);
+        String[] items = sut.pendingItems();
+        Assert.assertEquals(2, items.length);
+        Assert.assertEquals("", items[0]);
+        Assert.assertEquals("{\"c\":\"ü\"}", items[1]);
+
+        sut.consume(5);
+        Assert.assertEquals("consuming is capped", 0, sut.pendingCount());
+        Assert.assertEquals(0, sut.pendingItems().length);
+    }
+
+    public void testFullBufferRejectsItemsUntilConsumed() throws Exception {
+        StagingBuffer sut = new StagingBuffer(file, CAPACITY);
+        String item = new String(new char[100]).replace('\0', 'x');
+        int count = 0;
+        while (sut.append(item)) {
+            count++;
+        }
+        Assert.assertTrue(count > 0);
+
+        sut.consume(count);
+        Assert.assertTrue("buffer starts over once it is empty", sut.append(item));
+        Assert.assertFalse("item larger than the buffer",
+              sut.append(new String(new char[CAPACITY]).replace('\0', 'x')));
+    }
+
+    public void testPendingItemsAreRecovered() throws Exception {
+        StagingBuffer previous = new StagingBuffer(file, CAPACITY);
+        previous.append("first");
+        previous.append("second");
+        previous.append("third");
+        previous.consume(1);
+
+        StagingBuffer sut = new StagingBuffer(file, CAPACITY);
+        String[] items = sut.pendingItems();
+        Assert.assertEquals(2, items.length);
+        Assert.assertEquals("second", items[0]);
+        Assert.assertEquals("third", items[1]);
+
+        sut.consume(items.length);
+        Assert.assertEquals(0, new StagingBuffer(file, CAPACITY).pendingCount());
+    }
+
+    public void testPartiallyWrittenRecordIsIgnored() throws Exception {
+        StagingBuffer previous = new StagingBuffer(file, CAPACITY);
+        previous.append("complete");
+
+        // a record whose length claims more bytes than the buffer holds
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(8 + 4 + "complete".length());
+        randomAccessFile.writeInt(CAPACITY);
+        randomAccessFile.close();
+
+        StagingBuffer sut = new StagingBuffer(file, CAPACITY);
+        Assert.assertEquals(1, sut.pendingCount());
+        Assert.assertEquals("complete", sut.pendingItems()[0]);
+        Assert.assertTrue(sut.append("next"));
+        Assert.assertEquals("next", sut.pendingItems()[1]);
+    }
+}
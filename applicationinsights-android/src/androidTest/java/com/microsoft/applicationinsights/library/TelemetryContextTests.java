@@ -1,11 +1,26 @@
 package com.microsoft.applicationinsights.library;
 
 import android.test.AndroidTestCase;
+import android.util.Log;
+
 import com.microsoft.applicationinsights.contracts.User;
 import junit.framework.Assert;
 
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class TelemetryContextTests extends AndroidTestCase {
 
+    private static final String TAG = "TelemetryContextTests";
+
+    private static final int READER_COUNT = 4;
+
+    private static final int READS_PER_READER = 200000;
+
+    private static final int ENVELOPE_COUNT = 20000;
+
     private TelemetryContext sut;
 
     public void setUp() throws Exception {
@@ -57,6 +72,100 @@ public class TelemetryContextTests extends AndroidTestCase {
         Assert.assertEquals(anonUserAcquDate, sut.getAnonymousUserAcquisitionDate());
     }
 
+    public void testSnapshotIsSharedUntilContextChanges(){
+        ContextSnapshot snapshot = sut.getSnapshot();
+        Assert.assertSame(snapshot, sut.getSnapshot());
+
+        sut.setScreenResolution(sut.getScreenResolution());
+        Assert.assertSame("unchanged value keeps the snapshot", snapshot, sut.getSnapshot());
+
+        sut.setOsVersion("osVersion");
+        ContextSnapshot updated = sut.getSnapshot();
+        Assert.assertNotSame(snapshot, updated);
+        Assert.assertTrue(updated.getVersion() > snapshot.getVersion());
+        Assert.assertEquals("osVersion", updated.getOsVersion());
+        Assert.assertEquals("osVersion", updated.getTags().get("ai.device.osVersion"));
+        Assert.assertEquals(sut.getInstrumentationKey(), updated.getInstrumentationKey());
+    }
+
+    /**
+     * Benchmark: readers take snapshots, as every tracked item does, while the context is changed
+     * concurrently. Readers never wait for the writer and never see an older version again.
+     */
+    public void testReadersDontBlockWhileContextChanges() throws Exception {
+        final AtomicBoolean isWriting = new AtomicBoolean(true);
+        final AtomicLong staleReads = new AtomicLong();
+        final CountDownLatch readersDone = new CountDownLatch(READER_COUNT);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int i = 0;
+                while (isWriting.get()) {
+                    sut.setOsVersion("osVersion" + i++);
+                }
+            }
+        });
+        writer.start();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < READER_COUNT; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int lastVersion = 0;
+                    for (int j = 0; j < READS_PER_READER; j++) {
+                        ContextSnapshot snapshot = sut.getSnapshot();
+                        if (snapshot.getVersion() < lastVersion) {
+                            staleReads.incrementAndGet();
+                        }
+                        lastVersion = snapshot.getVersion();
+                    }
+                    readersDone.countDown();
+                }
+            }).start();
+        }
+        readersDone.await();
+        long elapsed = System.nanoTime() - start;
+        isWriting.set(false);
+        writer.join();
+
+        Log.i(TAG, String.format(Locale.ROOT, "%d snapshots read by %d threads in %dms during updates",
+              READER_COUNT * READS_PER_READER, READER_COUNT, elapsed / 1000000));
+        Assert.assertEquals(0, staleReads.get());
+        Assert.assertEquals(sut.getOsVersion(), sut.getSnapshot().getOsVersion());
+    }
+
+    /**
+     * Benchmark: compare creating envelopes with the cached screen resolution to measuring the
+     * screen for every envelope, as it has been done before.
+     */
+    public void testCreateEnvelopeDoesntMeasureScreen() {
+        EnvelopeFactory factory = new EnvelopeFactory(sut, null);
+        sut.setScreenResolution("1920x1080");
+        for (int i = 0; i < ENVELOPE_COUNT; i++) {
+            // warm up
+            factory.createEnvelope();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ENVELOPE_COUNT; i++) {
+            factory.createEnvelope();
+        }
+        long cached = System.nanoTime() - start;
+        Assert.assertEquals("resolution isn't measured", "1920x1080", sut.getScreenResolution());
+
+        start = System.nanoTime();
+        for (int i = 0; i < ENVELOPE_COUNT; i++) {
+            sut.updateScreenResolution(getContext());
+            factory.createEnvelope();
+        }
+        long measured = System.nanoTime() - start;
+
+        Log.i(TAG, String.format(Locale.ROOT, "%d envelopes, cached resolution: %dms, measured: %dms",
+              ENVELOPE_COUNT, cached / 1000000, measured / 1000000));
+    }
+
     public void testNewInstanceGetsSetupWithSharedInstance(){
 
         // setup
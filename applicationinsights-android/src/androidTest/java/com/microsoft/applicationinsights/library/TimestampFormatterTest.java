@@ -0,0 +1,83 @@
+package com.microsoft.applicationinsights.library;
+
+import android.util.Log;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+public class TimestampFormatterTest extends TestCase {
+
+    private static final String TAG = "TimestampFormatterTest";
+
+    private static final int ITERATIONS = 200000;
+
+    private DateFormat reference;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        reference = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+        reference.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    public void testFormatMatchesSimpleDateFormat() {
+        Assert.assertEquals("1970-01-01T00:00:00.000Z", TimestampFormatter.format(0));
+        Assert.assertEquals("2000-02-29T23:59:59.999Z", TimestampFormatter.format(951868799999L));
+        Assert.assertEquals("1969-12-31T23:59:59.999Z", TimestampFormatter.format(-1));
+
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            // 1970 to 2100
+            long time = (long) (random.nextDouble() * 4102444800000L);
+            Assert.assertEquals(reference.format(new Date(time)), TimestampFormatter.format(time));
+            Assert.assertEquals("same second", reference.format(new Date(time + 1)),
+                  TimestampFormatter.format(time + 1));
+        }
+    }
+
+    public void testFormatIntoBuffer() {
+        char[] buffer = new char[TimestampFormatter.LENGTH + 2];
+        Assert.assertTrue(TimestampFormatter.format(1000L, buffer, 1));
+        Assert.assertEquals("1970-01-01T00:00:01.000Z", new String(buffer, 1, TimestampFormatter.LENGTH));
+    }
+
+    public void testOutOfRangeYearsFallBack() {
+        long year10000 = 253402300800000L;
+        Assert.assertFalse(TimestampFormatter.format(year10000, new char[TimestampFormatter.LENGTH], 0));
+        Assert.assertEquals(reference.format(new Date(year10000)), TimestampFormatter.format(year10000));
+    }
+
+    /**
+     * Benchmark: format consecutive timestamps, as they are set for tracked items, with the
+     * formatter and with SimpleDateFormat.
+     */
+    public void testThroughputComparedToSimpleDateFormat() {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < ITERATIONS; i++) {
+            // warm up
+            TimestampFormatter.format(start + i);
+            reference.format(new Date(start + i));
+        }
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            TimestampFormatter.format(start + i);
+        }
+        long formatter = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            reference.format(new Date(start + i));
+        }
+        long simpleDateFormat = System.nanoTime() - begin;
+
+        Log.i(TAG, String.format(Locale.ROOT, "%d timestamps, formatter: %dms, SimpleDateFormat: %dms",
+              ITERATIONS, formatter / 1000000, simpleDateFormat / 1000000));
+    }
+}
@@ -0,0 +1,153 @@
+package com.microsoft.applicationinsights.library;
+
+import android.util.Log;
+
+import com.microsoft.telemetry.Data;
+import com.microsoft.telemetry.Domain;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+public class TrackDataOperationTest extends TestCase {
+
+    private static final String TAG = "TrackDataOperationTest";
+
+    private static final int ITERATIONS = 20000;
+
+    private Map<String, String> properties;
+
+    private Map<String, Double> measurements;
+
+    private Exception exception;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        properties = new HashMap<String, String>();
+        measurements = new HashMap<String, Double>();
+        for (int i = 0; i < 10; i++) {
+            properties.put("property" + i, "value" + i);
+            measurements.put("measurement" + i, (double) i);
+        }
+        exception = new IllegalStateException("test");
+    }
+
+    public void testOperationIsIsolatedFromTheCaller() {
+        TrackDataOperation operation = new TrackDataOperation(TrackDataOperation.DataType.EVENT,
+              "event", properties, measurements);
+        properties.put("property0", "changed");
+        properties.put("added", "value");
+        measurements.clear();
+
+        RecordingEnvelopeFactory factory = new RecordingEnvelopeFactory();
+        operation.getTelemetry(factory);
+
+        assertEquals("event", factory.name);
+        assertEquals(10, factory.properties.size());
+        assertEquals("value0", factory.properties.get("property0"));
+        assertEquals(10, factory.measurements.size());
+        assertEquals(0.0, factory.measurements.get("measurement0"));
+    }
+
+    public void testExceptionKeepsTypeMessageAndStack() {
+        StackTraceElement[] stack = exception.getStackTrace();
+        TrackDataOperation operation = new TrackDataOperation(TrackDataOperation.DataType.HANDLED_EXCEPTION,
+              exception, properties, measurements);
+        exception.setStackTrace(new StackTraceElement[0]);
+        properties.clear();
+
+        RecordingEnvelopeFactory factory = new RecordingEnvelopeFactory();
+        operation.getTelemetry(factory);
+
+        assertEquals(IllegalStateException.class.getName(), factory.exceptionType);
+        assertEquals("test", factory.exceptionMessage);
+        assertTrue("the stack has been taken when the exception has been tracked",
+              Arrays.equals(stack, factory.exceptionStack));
+        assertEquals(10, factory.properties.size());
+    }
+
+    /**
+     * Benchmark: compare the cost of creating operations on the caller's thread to copying the
+     * same arguments with java serialization, as it has been done before.
+     */
+    public void testCallerSideCostComparedToSerialization() throws Exception {
+        for (int i = 0; i < ITERATIONS; i++) {
+            // warm up
+            createOperations();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            createOperations();
+        }
+        long operations = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS / 10; i++) {
+            deepCopy("event");
+            deepCopy(exception);
+        }
+        long serialization = (System.nanoTime() - start) * 10;
+
+        Log.i(TAG, String.format(Locale.ROOT, "per event and exception: %dns, with serialization: %dns",
+              operations / ITERATIONS, serialization / ITERATIONS));
+    }
+
+    private void createOperations() {
+        new TrackDataOperation(TrackDataOperation.DataType.EVENT, "event", properties, measurements);
+        new TrackDataOperation(TrackDataOperation.DataType.HANDLED_EXCEPTION, exception, properties, measurements);
+    }
+
+    private static Object deepCopy(Object serializableObject) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new ObjectOutputStream(outputStream).writeObject(serializableObject);
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(outputStream.toByteArray());
+
+        return new ObjectInputStream(inputStream).readObject();
+    }
+
+    /**
+     * Records the arguments the operation creates its data from
+     */
+    private static class RecordingEnvelopeFactory extends EnvelopeFactory {
+
+        private String name;
+        private Map<String, String> properties;
+        private Map<String, Double> measurements;
+        private String exceptionType;
+        private String exceptionMessage;
+        private StackTraceElement[] exceptionStack;
+
+        RecordingEnvelopeFactory() {
+            super(null, null);
+        }
+
+        @Override
+        protected Data<Domain> createEventData(String eventName, Map<String, String> properties,
+                                               Map<String, Double> measurements) {
+            this.name = eventName;
+            this.properties = properties;
+            this.measurements = measurements;
+            return null;
+        }
+
+        @Override
+        protected Data<Domain> createExceptionData(String type, String message, StackTraceElement[] stack,
+                                                   Map<String, String> properties,
+                                                   Map<String, Double> measurements) {
+            this.exceptionType = type;
+            this.exceptionMessage = message;
+            this.exceptionStack = stack;
+            this.properties = properties;
+            this.measurements = measurements;
+            return null;
+        }
+    }
+}
@@ -38,4 +38,23 @@ public class ConfigurationTest extends AndroidTestCase {
         assertEquals(testBatchCount, sut.getMaxBatchCount());
         assertEquals(testBatchInterval, sut.getMaxBatchIntervalMs());
     }
+
+    public void testSegmentedLogCantBeCombinedWithCompactRecords() throws Exception {
+        sut.setSegmentedStorageEnabled(true);
+        try {
+            sut.setCompactRecordFormatEnabled(true);
+            fail("the combination is rejected");
+        } catch (IllegalStateException e) {
+            assertFalse(sut.isCompactRecordFormatEnabled());
+        }
+
+        sut.setSegmentedStorageEnabled(false);
+        sut.setCompactRecordFormatEnabled(true);
+        try {
+            sut.setSegmentedStorageEnabled(true);
+            fail("the combination is rejected");
+        } catch (IllegalStateException e) {
+            assertFalse(sut.isSegmentedStorageEnabled());
+        }
+    }
 }
@@ -9,6 +9,7 @@ import android.util.Log;
 import com.microsoft.applicationinsights.contracts.User;
 import com.microsoft.applicationinsights.library.config.Configuration;
 import com.microsoft.applicationinsights.logging.InternalLogging;
+import com.microsoft.telemetry.IChannel;
 
 import java.lang.ref.WeakReference;
 import java.util.Collections;
@@ -204,6 +205,7 @@ public enum ApplicationInsights {
      */
     private void initializePipeline(Context context) {
         EnvelopeFactory.initialize(telemetryContext, this.commonProperties);
+        ScreenResolutionTracker.start(context, telemetryContext);
 
         Persistence.initialize(context);
         Sender.initialize(this.config);
@@ -230,7 +232,15 @@ public enum ApplicationInsights {
                     "ApplicationInsights has not been started, yet.");
             return;
         }
-        ChannelManager.getInstance().getChannel().synchronize();
+        TelemetryClient.getInstance().flushMetrics();
+        final IChannel channel = ChannelManager.getInstance().getChannel();
+        // the channel only persists the items it has received, let the queued track calls reach it
+        TelemetryClient.flushIngestionQueue(new Runnable() {
+            @Override
+            public void run() {
+                channel.synchronize();
+            }
+        });
     }
 
     /**
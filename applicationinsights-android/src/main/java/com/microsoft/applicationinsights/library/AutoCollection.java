@@ -7,11 +7,18 @@ import android.content.ComponentCallbacks2;
 import android.content.res.Configuration;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.view.View;
+import android.view.ViewTreeObserver;
+import android.view.Window;
 
 import com.microsoft.applicationinsights.library.config.ISessionConfig;
 import com.microsoft.applicationinsights.logging.InternalLogging;
 
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -37,6 +44,17 @@ class AutoCollection implements Application.ActivityLifecycleCallbacks, Componen
      */
     protected TelemetryContext telemetryContext;
 
+    /**
+     * The uptime at which activities have been created, until they are resumed. Guarded by LOCK.
+     */
+    private final Map<Activity, Long> creationTimes;
+
+    /**
+     * The listeners of resumed activities which haven't drawn their first frame, until they are
+     * paused. Guarded by LOCK.
+     */
+    private final Map<Activity, FirstFrameListener> pendingPageViews;
+
     /**
      * Volatile boolean for double checked synchronize block
      */
@@ -113,6 +131,8 @@ class AutoCollection implements Application.ActivityLifecycleCallbacks, Componen
         this.lastBackground = new AtomicLong(this.getTime());
         this.config = config;
         this.telemetryContext = telemetryContext;
+        this.creationTimes = new WeakHashMap<Activity, Long>();
+        this.pendingPageViews = new HashMap<Activity, FirstFrameListener>();
     }
 
     /**
@@ -269,12 +289,17 @@ class AutoCollection implements Application.ActivityLifecycleCallbacks, Componen
      * @param savedInstanceState the bundle
      */
     public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
-        // unused but required to implement ActivityLifecycleCallbacks
         //NOTE:
         //We first implemented Session management here. This callback doesn't work for the starting
         //activity of the app because the SDK will be setup and initialized in the onCreate, so
         //we don't get the very first call to an app activity's onCreate.
         //This is why the logic was moved to onActivityResumed below
+        synchronized (AutoCollection.LOCK) {
+            if (autoPageViewsEnabled) {
+                // the render time of the page view is measured from here
+                this.creationTimes.put(activity, this.getUptime());
+            }
+        }
     }
 
     /**
@@ -301,8 +326,49 @@ class AutoCollection implements Application.ActivityLifecycleCallbacks, Componen
     private void sendPagewView(Activity activity) {
         if (autoPageViewsEnabled) {
             InternalLogging.info(TAG, "New Pageview");
-            TrackDataOperation pageViewOp = new TrackDataOperation(TrackDataOperation.DataType.PAGE_VIEW, activity.getClass().getName());
-            new Thread(pageViewOp).start();
+            // activities which are resumed again, or which have been created before the SDK has
+            // been set up, are measured from now on
+            Long creationTime = this.creationTimes.remove(activity);
+            long startTime = creationTime == null ? this.getUptime() : creationTime;
+            String pageName = activity.getClass().getName();
+
+            Window window = activity.getWindow();
+            View decorView = window == null ? null : window.getDecorView();
+            if (decorView == null) {
+                this.trackPageView(pageName, -1);
+            } else {
+                FirstFrameListener listener = new FirstFrameListener(this, activity, decorView,
+                      pageName, startTime);
+                this.pendingPageViews.put(activity, listener);
+                decorView.getViewTreeObserver().addOnPreDrawListener(listener);
+            }
+        }
+    }
+
+    /**
+     * Send the page view of an activity.
+     *
+     * @param pageName   the name of the page
+     * @param renderTime the time until the first frame has been drawn in ms, -1 if it isn't known
+     */
+    protected void trackPageView(String pageName, long renderTime) {
+        if (renderTime < 0) {
+            this.track(new TrackDataOperation(TrackDataOperation.DataType.PAGE_VIEW, pageName));
+        } else {
+            this.track(new TrackDataOperation(TrackDataOperation.DataType.PAGE_VIEW_PERF,
+                  pageName, renderTime, null, null));
+        }
+    }
+
+    /**
+     * Send an automatically collected item through the client's queue.
+     *
+     * @param operation the operation which creates the item
+     */
+    protected void track(TrackDataOperation operation) {
+        TelemetryClient client = TelemetryClient.getInstance();
+        if (client != null) {
+            client.enqueue(operation);
         }
     }
 
@@ -311,8 +377,7 @@ class AutoCollection implements Application.ActivityLifecycleCallbacks, Componen
         if (count == 0) {
             if (autoSessionManagementEnabled) {
                 InternalLogging.info(TAG, "Starting & tracking session");
-                TrackDataOperation sessionOp = new TrackDataOperation(TrackDataOperation.DataType.NEW_SESSION);
-                new Thread(sessionOp).start();
+                this.track(new TrackDataOperation(TrackDataOperation.DataType.NEW_SESSION));
             } else {
                 InternalLogging.info(TAG, "Session management disabled by the developer");
             }
@@ -330,8 +395,7 @@ class AutoCollection implements Application.ActivityLifecycleCallbacks, Componen
             if (autoSessionManagementEnabled && shouldRenew) {
                 InternalLogging.info(TAG, "Renewing session");
                 this.telemetryContext.renewSessionId();
-                TrackDataOperation sessionOp = new TrackDataOperation(TrackDataOperation.DataType.NEW_SESSION);
-                new Thread(sessionOp).start();
+                this.track(new TrackDataOperation(TrackDataOperation.DataType.NEW_SESSION));
             }
         }
     }
@@ -343,6 +407,14 @@ class AutoCollection implements Application.ActivityLifecycleCallbacks, Componen
      */
     public void onActivityPaused(Activity activity) {
         //set backgrounding in onTrimMemory
+        FirstFrameListener listener;
+        synchronized (AutoCollection.LOCK) {
+            listener = this.pendingPageViews.get(activity);
+        }
+        if (listener != null && listener.stop()) {
+            // the activity has been left before its first frame, there is no render time
+            this.trackPageView(listener.pageName, -1);
+        }
     }
 
     public void onActivityStopped(Activity activity) {
@@ -354,7 +426,10 @@ class AutoCollection implements Application.ActivityLifecycleCallbacks, Componen
     }
 
     public void onActivityDestroyed(Activity activity) {
-        // unused but required to implement ActivityLifecycleCallbacks
+        synchronized (AutoCollection.LOCK) {
+            this.creationTimes.remove(activity);
+            this.pendingPageViews.remove(activity);
+        }
     }
 
     @Override
@@ -396,4 +471,79 @@ class AutoCollection implements Application.ActivityLifecycleCallbacks, Componen
     protected long getTime() {
         return new Date().getTime();
     }
+
+    /**
+     * Test hook to get the time since boot, which the render time of page views is measured with
+     *
+     * @return the uptime in milliseconds
+     */
+    protected long getUptime() {
+        return SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Sends the page view of an activity once its first frame is about to be drawn, with the time
+     * since the activity has been created or resumed. Removes itself after the first frame, or
+     * once the activity is paused before it has drawn a frame.
+     */
+    private static class FirstFrameListener implements ViewTreeObserver.OnPreDrawListener {
+
+        private final AutoCollection autoCollection;
+
+        private final Activity activity;
+
+        private final View decorView;
+
+        private final String pageName;
+
+        private final long startTime;
+
+        /**
+         * Guarded by LOCK
+         */
+        private boolean isDone;
+
+        FirstFrameListener(AutoCollection autoCollection, Activity activity, View decorView,
+                           String pageName, long startTime) {
+            this.autoCollection = autoCollection;
+            this.activity = activity;
+            this.decorView = decorView;
+            this.pageName = pageName;
+            this.startTime = startTime;
+        }
+
+        @Override
+        public boolean onPreDraw() {
+            if (this.stop()) {
+                long duration = this.autoCollection.getUptime() - this.startTime;
+                this.autoCollection.trackPageView(this.pageName, duration);
+            }
+            // never cancel the frame
+            return true;
+        }
+
+        /**
+         * Remove the listener, so the page view is sent at most once.
+         *
+         * @return false if the listener has been removed already
+         */
+        boolean stop() {
+            synchronized (AutoCollection.LOCK) {
+                if (this.isDone) {
+                    return false;
+                }
+                this.isDone = true;
+                if (this.autoCollection.pendingPageViews.get(this.activity) == this) {
+                    this.autoCollection.pendingPageViews.remove(this.activity);
+                }
+            }
+
+            // the observer passed to addOnPreDrawListener may have been merged into another one
+            ViewTreeObserver observer = this.decorView.getViewTreeObserver();
+            if (observer.isAlive()) {
+                observer.removeOnPreDrawListener(this);
+            }
+            return true;
+        }
+    }
 }
@@ -0,0 +1,119 @@
+package com.microsoft.applicationinsights.library;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A reusable buffer which encodes serialized telemetry items straight to UTF-8 bytes. This avoids
+ * joining a batch into one large String and copying it again when converting it to bytes.
+ * Instances are not thread-safe.
+ */
+class BatchBuffer {
+
+    /**
+     * The initial size of the buffer in bytes
+     */
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+
+    /**
+     * Buffers which grew beyond this size are released on {@link BatchBuffer#clear()} so an
+     * exceptionally large batch doesn't pin memory for the rest of the process lifetime
+     */
+    private static final int MAX_RETAINED_CAPACITY = 512 * 1024;
+
+    /**
+     * The encoder used for converting chars to UTF-8
+     */
+    private final CharsetEncoder encoder;
+
+    /**
+     * The buffer holding the encoded bytes
+     */
+    private ByteBuffer buffer;
+
+    protected BatchBuffer() {
+        this.encoder = Charset.forName("UTF-8").newEncoder()
+              .onMalformedInput(CodingErrorAction.REPLACE)
+              .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Discard the content of this buffer so it can be used for the next batch.
+     */
+    protected void clear() {
+        if (this.buffer.capacity() > MAX_RETAINED_CAPACITY) {
+            this.buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+        } else {
+            this.buffer.clear();
+        }
+    }
+
+    /**
+     * Append a single ASCII character.
+     *
+     * @param c the character to append, must be in the ASCII range
+     */
+    protected void append(char c) {
+        ensureRemaining(1);
+        this.buffer.put((byte) c);
+    }
+
+    /**
+     * Encode the given chars to UTF-8 and append them without creating an intermediate copy.
+     *
+     * @param chars the chars to append
+     */
+    protected void append(CharSequence chars) {
+        CharBuffer input = CharBuffer.wrap(chars);
+        this.encoder.reset();
+        CoderResult result = this.encoder.encode(input, this.buffer, true);
+        while (result.isOverflow()) {
+            ensureRemaining(Math.max(4, input.remaining() * 3));
+            result = this.encoder.encode(input, this.buffer, true);
+        }
+        result = this.encoder.flush(this.buffer);
+        while (result.isOverflow()) {
+            ensureRemaining(16);
+            result = this.encoder.flush(this.buffer);
+        }
+    }
+
+    /**
+     * @return the number of bytes written to this buffer
+     */
+    protected int size() {
+        return this.buffer.position();
+    }
+
+    /**
+     * Get a view of the written bytes. The view shares its content with this buffer and is
+     * invalidated by any further call to this buffer.
+     *
+     * @return a buffer positioned at the first byte and limited to the written bytes
+     */
+    protected ByteBuffer toByteBuffer() {
+        ByteBuffer view = this.buffer.duplicate();
+        view.flip();
+        return view;
+    }
+
+    /**
+     * Grow the buffer so it can hold at least the given number of additional bytes.
+     *
+     * @param count the number of bytes which will be written next
+     */
+    private void ensureRemaining(int count) {
+        if (this.buffer.remaining() < count) {
+            int capacity = Math.max(this.buffer.capacity() * 2, this.buffer.position() + count);
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            this.buffer.flip();
+            grown.put(this.buffer);
+            this.buffer = grown;
+        }
+    }
+}
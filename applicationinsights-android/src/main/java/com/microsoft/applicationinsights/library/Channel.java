@@ -75,9 +75,23 @@ class Channel implements IChannel {
     }
 
     /**
-     * Persist all pending items.
+     * Persist all pending items. Envelopes are created on the ingestion thread, so the items are
+     * persisted once the queued track calls have reached the queue. On the main thread this
+     * happens on the ingestion thread later on.
      */
     public void synchronize() {
+        TelemetryClient.flushIngestionQueue(new Runnable() {
+            @Override
+            public void run() {
+                persistAndSend();
+            }
+        });
+    }
+
+    /**
+     * Persist the queued items and trigger sending them.
+     */
+    protected void persistAndSend() {
         this.queue.flush();
         if(Sender.getInstance() != null) {
             Sender.getInstance().sendNextFile();
@@ -102,6 +116,17 @@ class Channel implements IChannel {
         }
     }
 
+    /**
+     * Creates and serializes the envelope of the passed in data, without queueing it.
+     *
+     * @param data the data to serialize
+     * @return the serialized envelope or null if it couldn't be serialized
+     */
+    protected String serialize(Data<Domain> data) {
+        Envelope envelope = EnvelopeFactory.getInstance().createEnvelope(data);
+        return serializeEnvelope(envelope);
+    }
+
     protected String serializeEnvelope(Envelope envelope) {
         try {
             if (envelope != null) {
@@ -1,12 +1,16 @@
 package com.microsoft.applicationinsights.library;
 
+import android.content.Context;
+
 import com.microsoft.applicationinsights.library.config.IQueueConfig;
 import com.microsoft.applicationinsights.logging.InternalLogging;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This singleton class sends data to the endpoint
@@ -19,7 +23,17 @@ class ChannelQueue {
     private static final String TAG = "TelemetryQueue";
 
     /**
-     * The synchronization LOCK for queueing items
+     * The number of items the buffer can hold before enqueueing forces a flush
+     */
+    protected static final int BUFFER_CAPACITY = 1024;
+
+    /**
+     * The name of the file backing the staging buffer
+     */
+    private static final String STAGING_FILE = "/staging";
+
+    /**
+     * The synchronization LOCK for draining the buffer, producers never take it
      */
     private final Object LOCK = new Object();
 
@@ -34,9 +48,24 @@ class ChannelQueue {
     protected final Timer timer;
 
     /**
-     * The linked list for this queue
+     * The lock-free buffer for this queue
+     */
+    protected final RingBuffer<String> buffer;
+
+    /**
+     * The number of enqueued items which haven't been drained, yet
      */
-    protected final List<String> list;
+    private final AtomicInteger itemCount;
+
+    /**
+     * The number of staged items in the buffer, they precede all unstaged items
+     */
+    private final AtomicInteger stagedItemCount;
+
+    /**
+     * If true, items are queued without being staged until the buffer has been emptied
+     */
+    private volatile boolean isStagingSuspended;
 
     /**
      * If true the app is crashing and data should be persisted instead of sent
@@ -46,29 +75,40 @@ class ChannelQueue {
     /**
      * All tasks which have been scheduled and not cancelled
      */
-    private TimerTask scheduledPersistenceTask;
+    private volatile TimerTask scheduledPersistenceTask;
 
     /**
      * Persistence used for saving queue items.
      */
     private Persistence persistence;
 
+    /**
+     * The memory-mapped copy of the queued items, null if staging is disabled
+     */
+    protected volatile StagingBuffer stagingBuffer;
+
     /**
      * Prevent external instantiation
      */
     protected ChannelQueue(IQueueConfig config) {
-        this.list = new LinkedList<String>();
+        this.buffer = new RingBuffer<String>(BUFFER_CAPACITY);
+        this.itemCount = new AtomicInteger(0);
+        this.stagedItemCount = new AtomicInteger(0);
         this.timer = new Timer("Application Insights Sender Queue", true);
         this.config = config;
         this.isCrashing = false;
         this.persistence = Persistence.getInstance();
+        // staging isn't part of IQueueConfig, which apps may implement
+        if (ApplicationInsights.getConfiguration().isStagingBufferEnabled()) {
+            this.setStagingBuffer(openStagingBuffer());
+        }
     }
 
     /**
-     * Adds an item to the sender queue
+     * Adds an item to the sender queue, waiting for room if the buffer is full
      *
      * @param serializedItem a serialized telemetry item to enqueue
-     * @return true if the item was successfully added to the queue
+     * @return true if the item was successfully added to the queue, false if it is null
      */
     protected boolean enqueue(String serializedItem) {
         // prevent invalid argument exception
@@ -76,44 +116,139 @@ class ChannelQueue {
             return false;
         }
 
-        boolean success;
-        synchronized (this.LOCK) {
-            // attempt to add the item to the queue
-            success = this.list.add(serializedItem);
-
-            if (success) {
-                if ((this.list.size() >= this.config.getMaxBatchCount()) || isCrashing) {
-                    // persisting if the queue is full
-                    flush();
-                } else if (this.list.size() == 1) {
-                    schedulePersitenceTask();
+        // attempt to add the item to the queue
+        int size = this.offer(serializedItem);
+        while (size < 0) {
+            // the buffer is full, make room and try again. A flush can't drain past a slot which
+            // another producer has claimed but not published yet, so let that producer finish.
+            flush();
+            size = this.offer(serializedItem);
+            if (size < 0) {
+                Thread.yield();
+            }
+        }
+
+        if ((size >= this.config.getMaxBatchCount()) || isCrashing) {
+            // persisting if the queue is full
+            flush();
+        } else if (size == 1) {
+            schedulePersitenceTask();
+        }
+
+        return true;
+    }
+
+    /**
+     * Adds an item to the buffer and stages it if staging is enabled. Staged items always precede
+     * unstaged ones in the buffer: once an item can't be staged, staging is suspended and a flush
+     * is handed to the timer thread, staging resumes once the buffer has been emptied. Nothing is
+     * persisted while the staging monitor is held, so producers never wait for the disk.
+     *
+     * @param serializedItem a serialized telemetry item to enqueue
+     * @return the number of queued items including this one, or -1 if the buffer is full
+     */
+    private int offer(String serializedItem) {
+        StagingBuffer staging = this.stagingBuffer;
+        if (staging == null) {
+            return this.offerToBuffer(serializedItem);
+        }
+
+        boolean isSuspended = false;
+        int size;
+        // stage and queue the item atomically, so the staged items are in the order of the buffer
+        synchronized (staging) {
+            // only producers holding the monitor add items, so the check holds until the offer
+            if (this.buffer.size() >= this.buffer.capacity()) {
+                return -1;
+            }
+
+            if (!this.isStagingSuspended) {
+                if (staging.append(serializedItem)) {
+                    this.stagedItemCount.incrementAndGet();
+                } else {
+                    // the staging buffer is full or the item is too big to be staged
+                    this.isStagingSuspended = true;
+                    isSuspended = true;
                 }
-            } else {
-                InternalLogging.warn(TAG, "Unable to add item to queue");
             }
+            size = this.offerToBuffer(serializedItem);
         }
 
-        return success;
+        if (isSuspended) {
+            // persisting the queue empties the staging buffer
+            this.timer.schedule(new TriggerPersistTask(), 0);
+        }
+        return size;
+    }
+
+    /**
+     * Adds an item to the buffer
+     *
+     * @param serializedItem a serialized telemetry item to enqueue
+     * @return the number of queued items including this one, or -1 if the buffer is full
+     */
+    private int offerToBuffer(String serializedItem) {
+        // count the item before it can be drained, so a concurrent flush never sees it uncounted
+        int size = this.itemCount.incrementAndGet();
+        if (this.buffer.offer(serializedItem)) {
+            return size;
+        }
+
+        this.itemCount.decrementAndGet();
+        return -1;
     }
 
     /**
-     * Empties the queue and sends all items to persistence
+     * Empties the queue and sends all items to persistence in batches of at most
+     * {@link IQueueConfig#getMaxBatchCount()} items
      */
     protected void flush() {
         // cancel the scheduled persistence task if it exists
-        if (this.scheduledPersistenceTask != null) {
-            this.scheduledPersistenceTask.cancel();
+        TimerTask task = this.scheduledPersistenceTask;
+        if (task != null) {
+            task.cancel();
         }
 
-        String[] data;
+        int stagedCount = 0;
         synchronized (this.LOCK) {
-            if (!list.isEmpty()) {
-                data = new String[list.size()];
-                list.toArray(data);
-                list.clear();
+            int maxBatchCount = Math.max(1, this.config.getMaxBatchCount());
+            while (!this.buffer.isEmpty()) {
+                String[] data = new String[Math.min(this.buffer.size(), maxBatchCount)];
+                int count = this.buffer.drainTo(data);
+                if (count == 0) {
+                    // remaining slots are claimed but not published yet
+                    break;
+                }
 
+                this.itemCount.addAndGet(-count);
+                // staged items precede unstaged ones, see offer
+                int staged = Math.min(count, this.stagedItemCount.get());
+                this.stagedItemCount.addAndGet(-staged);
+                stagedCount += staged;
+                if (count < data.length) {
+                    data = Arrays.copyOf(data, count);
+                }
                 executePersistenceTask(data);
             }
+
+            if (!this.buffer.isEmpty()) {
+                // the task for the leftovers has been cancelled above
+                schedulePersitenceTask();
+            }
+        }
+
+        StagingBuffer staging = this.stagingBuffer;
+        if (staging != null) {
+            // the drained items have been persisted, they don't need to be recovered anymore
+            staging.consume(stagedCount);
+            if (this.isStagingSuspended) {
+                synchronized (staging) {
+                    // no unstaged item is left once the buffer is empty
+                    if (this.buffer.isEmpty()) {
+                        this.isStagingSuspended = false;
+                    }
+                }
+            }
         }
     }
 
@@ -123,9 +258,11 @@ class ChannelQueue {
      * @see com.microsoft.applicationinsights.library.ChannelQueue.TriggerPersistTask
      */
     protected void schedulePersitenceTask() {
-        // schedule a FlushTask if this is the first item in the queue
-        this.scheduledPersistenceTask = new TriggerPersistTask();
-        this.timer.schedule(this.scheduledPersistenceTask, this.config.getMaxBatchIntervalMs());
+        // schedule a FlushTask if this is the first item in the queue. Producers and flushes race
+        // here, so the task is only published once it has been scheduled and can be cancelled.
+        TimerTask task = new TriggerPersistTask();
+        this.timer.schedule(task, this.config.getMaxBatchIntervalMs());
+        this.scheduledPersistenceTask = task;
     }
 
     /**
@@ -157,6 +294,56 @@ class ChannelQueue {
         this.persistence = persistence;
     }
 
+    /**
+     * Set the staging buffer used to copy items as soon as they are enqueued. Items which have
+     * been left in the buffer by a previous process are persisted.
+     *
+     * @param stagingBuffer the staging buffer, null to disable staging
+     */
+    protected void setStagingBuffer(StagingBuffer stagingBuffer) {
+        if (stagingBuffer != null) {
+            String[] items = stagingBuffer.pendingItems();
+            if (items.length > 0 && this.persistence != null) {
+                InternalLogging.info(TAG, "Recovered staged items", String.valueOf(items.length));
+                this.persistence.persist(items, false);
+                stagingBuffer.consume(items.length);
+            }
+        }
+
+        synchronized (this.LOCK) {
+            // items which are queued already haven't been staged in the new buffer
+            this.stagedItemCount.set(0);
+            this.isStagingSuspended = !this.buffer.isEmpty();
+            this.stagingBuffer = stagingBuffer;
+        }
+    }
+
+    /**
+     * Map the staging buffer file in the directory of the SDK.
+     *
+     * @return the staging buffer or null if it can't be mapped
+     */
+    private static StagingBuffer openStagingBuffer() {
+        Context context = ApplicationInsights.INSTANCE.getContext();
+        if (context == null) {
+            InternalLogging.warn(TAG, "Staging is disabled, the context is not available");
+            return null;
+        }
+
+        File directory = new File(context.getFilesDir().getPath() + Persistence.AI_SDK_DIRECTORY);
+        if (!directory.exists() && !directory.mkdirs()) {
+            InternalLogging.warn(TAG, "Error creating directory " + directory.toString());
+        }
+
+        try {
+            return new StagingBuffer(new File(directory.getPath() + STAGING_FILE),
+                  StagingBuffer.DEFAULT_CAPACITY);
+        } catch (IOException e) {
+            InternalLogging.warn(TAG, "Couldn't map staging buffer: " + e.toString());
+            return null;
+        }
+    }
+
     /**
      * Set the config for this queue.
      *
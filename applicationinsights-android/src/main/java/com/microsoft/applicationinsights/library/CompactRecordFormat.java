@@ -0,0 +1,377 @@
+package com.microsoft.applicationinsights.library;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of a JSON stream which is used to persist batches. Telemetry items of
+ * a batch repeat the same keys (e.g. "ai.device.osVersion") and mostly the same context, so every
+ * string literal and every "tags" object is written once per batch and referenced afterwards.
+ * The encoding is lossless, {@link Decoder} renders the exact JSON stream while the batch is
+ * uploaded, so the JSON text of a batch never has to be held in memory.
+ * <p/>
+ * A batch starts with {@link #MAGIC}, followed by a sequence of varint operations:
+ * <ul>
+ * <li>{@code 0} ends the batch</li>
+ * <li>{@code length << 1} is followed by {@code length} bytes of JSON text which are copied as-is</li>
+ * <li>{@code (index << 1) | 1} references an entry of the string table. If the index is the size
+ * of the table, a new entry follows as a varint length and the bytes of the entry.</li>
+ * </ul>
+ * The string table is built while encoding and decoding, so it's never written as a whole and
+ * both sides work in a single pass.
+ */
+class CompactRecordFormat {
+
+    /**
+     * The bytes every compact batch starts with, they can't start a JSON stream or a gzip stream
+     */
+    protected static final byte[] MAGIC = {'A', 'I', 'C', 1};
+
+    /**
+     * The key of the context tags, its value is deduplicated as a whole
+     */
+    private static final byte[] TAGS_KEY = {'"', 't', 'a', 'g', 's', '"'};
+
+    private static final String CHARSET = "ISO-8859-1";
+
+    private CompactRecordFormat() {
+    }
+
+    /**
+     * Encode a JSON stream.
+     *
+     * @param json the UTF-8 encoded JSON stream, from the buffer's position to its limit. Must be
+     *             backed by an array.
+     * @return the encoded batch, backed by an array
+     */
+    protected static ByteBuffer encode(ByteBuffer json) {
+        byte[] bytes = json.array();
+        int start = json.arrayOffset() + json.position();
+        int end = json.arrayOffset() + json.limit();
+
+        Output output = new Output(json.remaining() / 2 + MAGIC.length);
+        output.write(MAGIC, 0, MAGIC.length);
+        Map<String, Integer> table = new HashMap<String, Integer>();
+        int rawStart = start;
+        int i = start;
+        while (i < end) {
+            if (bytes[i] != '"') {
+                i++;
+                continue;
+            }
+
+            int literalEnd = skipString(bytes, i, end);
+            if (literalEnd < 0) {
+                // truncated string, keep the rest as-is
+                break;
+            }
+            if (isTagsKey(bytes, i, literalEnd, end)) {
+                // the raw part keeps the key and the colon, the object is an entry of its own
+                int objectStart = literalEnd + 1;
+                int objectEnd = skipObject(bytes, objectStart, end);
+                if (objectEnd > 0) {
+                    writeRaw(output, bytes, rawStart, objectStart);
+                    writeEntry(output, table, bytes, objectStart, objectEnd);
+                    rawStart = i = objectEnd;
+                    continue;
+                }
+            }
+
+            writeRaw(output, bytes, rawStart, i);
+            writeEntry(output, table, bytes, i, literalEnd);
+            rawStart = i = literalEnd;
+        }
+
+        writeRaw(output, bytes, rawStart, end);
+        output.writeVarint(0);
+        return ByteBuffer.wrap(output.bytes, 0, output.size);
+    }
+
+    /**
+     * @param header the first bytes of a batch
+     * @param count  the number of valid bytes in the header
+     * @return true if the batch has been encoded in the compact format
+     */
+    protected static boolean isCompact(byte[] header, int count) {
+        if (count < MAGIC.length) {
+            return false;
+        }
+
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index after the closing quote of the string which starts at the given index, or
+     * -1 if the string isn't terminated
+     */
+    private static int skipString(byte[] bytes, int start, int end) {
+        for (int i = start + 1; i < end; i++) {
+            if (bytes[i] == '\\') {
+                i++;
+            } else if (bytes[i] == '"') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index after the closing brace of the object which starts at the given index, or
+     * -1 if there is no complete object at the index
+     */
+    private static int skipObject(byte[] bytes, int start, int end) {
+        if (start >= end || bytes[start] != '{') {
+            return -1;
+        }
+
+        int depth = 0;
+        for (int i = start; i < end; i++) {
+            byte b = bytes[i];
+            if (b == '"') {
+                i = skipString(bytes, i, end);
+                if (i < 0) {
+                    return -1;
+                }
+                i--;
+            } else if (b == '{') {
+                depth++;
+            } else if (b == '}' && --depth == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the string literal is the key of the context tags and followed by a colon
+     */
+    private static boolean isTagsKey(byte[] bytes, int start, int literalEnd, int end) {
+        if (literalEnd - start != TAGS_KEY.length || literalEnd >= end || bytes[literalEnd] != ':') {
+            return false;
+        }
+
+        for (int i = 0; i < TAGS_KEY.length; i++) {
+            if (bytes[start + i] != TAGS_KEY[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeRaw(Output output, byte[] bytes, int start, int end) {
+        if (end > start) {
+            output.writeVarint((long) (end - start) << 1);
+            output.write(bytes, start, end - start);
+        }
+    }
+
+    private static void writeEntry(Output output, Map<String, Integer> table, byte[] bytes, int start, int end) {
+        String key;
+        try {
+            // a single-byte charset maps every byte to a char, so the key is unique and cheap
+            key = new String(bytes, start, end - start, CHARSET);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        Integer index = table.get(key);
+        if (index != null) {
+            output.writeVarint(((long) index << 1) | 1);
+        } else {
+            index = table.size();
+            table.put(key, index);
+            output.writeVarint(((long) index << 1) | 1);
+            output.writeVarint(end - start);
+            output.write(bytes, start, end - start);
+        }
+    }
+
+    /**
+     * A growing byte array, unlike ByteArrayOutputStream the array can be wrapped without a copy
+     */
+    private static class Output {
+
+        private byte[] bytes;
+
+        private int size;
+
+        Output(int capacity) {
+            this.bytes = new byte[Math.max(16, capacity)];
+        }
+
+        void write(byte[] source, int offset, int length) {
+            this.ensureCapacity(length);
+            System.arraycopy(source, offset, this.bytes, this.size, length);
+            this.size += length;
+        }
+
+        void writeVarint(long value) {
+            this.ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                this.bytes[this.size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            this.bytes[this.size++] = (byte) value;
+        }
+
+        private void ensureCapacity(int length) {
+            if (this.size + length > this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.size + length));
+            }
+        }
+    }
+
+    /**
+     * Renders the JSON stream of a compact batch while it is read.
+     */
+    static class Decoder extends InputStream {
+
+        /**
+         * The stream of the compact batch, positioned behind the magic bytes
+         */
+        private final InputStream inputStream;
+
+        /**
+         * The entries of the string table
+         */
+        private final List<byte[]> table;
+
+        /**
+         * The entry which is being rendered, null if raw bytes are copied
+         */
+        private byte[] entry;
+
+        /**
+         * The position in the entry
+         */
+        private int entryOffset;
+
+        /**
+         * The number of raw bytes which remain to be copied
+         */
+        private long rawRemaining;
+
+        /**
+         * True once the end of the batch has been reached
+         */
+        private boolean isFinished;
+
+        /**
+         * @param inputStream the stream of the compact batch, positioned behind the magic bytes
+         */
+        Decoder(InputStream inputStream) {
+            this.inputStream = inputStream;
+            this.table = new ArrayList<byte[]>();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int count = this.read(single, 0, 1);
+            return count < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int total = 0;
+            while (total < length) {
+                if (this.entry != null) {
+                    int count = Math.min(length - total, this.entry.length - this.entryOffset);
+                    System.arraycopy(this.entry, this.entryOffset, buffer, offset + total, count);
+                    this.entryOffset += count;
+                    total += count;
+                    if (this.entryOffset == this.entry.length) {
+                        this.entry = null;
+                    }
+                } else if (this.rawRemaining > 0) {
+                    int count = this.inputStream.read(buffer, offset + total,
+                          (int) Math.min(length - total, this.rawRemaining));
+                    if (count < 0) {
+                        throw new EOFException("Truncated batch");
+                    }
+                    this.rawRemaining -= count;
+                    total += count;
+                } else if (this.isFinished || !this.nextOperation()) {
+                    break;
+                }
+            }
+
+            return total == 0 && length > 0 ? -1 : total;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.inputStream.close();
+        }
+
+        /**
+         * Read the next operation.
+         *
+         * @return false if the end of the batch has been reached
+         * @throws IOException if the batch is truncated or malformed
+         */
+        private boolean nextOperation() throws IOException {
+            long operation = this.readVarint();
+            if (operation == 0) {
+                this.isFinished = true;
+                return false;
+            }
+
+            if ((operation & 1) == 0) {
+                this.rawRemaining = operation >>> 1;
+                return true;
+            }
+
+            long index = operation >>> 1;
+            if (index < this.table.size()) {
+                this.entry = this.table.get((int) index);
+            } else if (index == this.table.size()) {
+                byte[] newEntry = new byte[(int) this.readVarint()];
+                int offset = 0;
+                while (offset < newEntry.length) {
+                    int count = this.inputStream.read(newEntry, offset, newEntry.length - offset);
+                    if (count < 0) {
+                        throw new EOFException("Truncated batch");
+                    }
+                    offset += count;
+                }
+                this.table.add(newEntry);
+                this.entry = newEntry;
+            } else {
+                throw new IOException("Invalid string table reference " + index);
+            }
+            this.entryOffset = 0;
+            if (this.entry.length == 0) {
+                this.entry = null;
+            }
+            return true;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = this.inputStream.read();
+                if (b < 0) {
+                    throw new EOFException("Truncated batch");
+                }
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+    }
+}
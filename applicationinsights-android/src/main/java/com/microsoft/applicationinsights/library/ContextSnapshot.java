@@ -0,0 +1,139 @@
+package com.microsoft.applicationinsights.library;
+
+import com.microsoft.applicationinsights.logging.InternalLogging;
+import com.microsoft.telemetry.JsonHelper;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * An immutable copy of a {@link TelemetryContext} at a given version. The context publishes a new
+ * snapshot whenever it is changed, so creating an envelope reads a single volatile reference and
+ * never waits for a writer. The tags are serialized once when the snapshot is taken, envelopes
+ * reference the snapshot and splice the serialized tags into their JSON, so items which share a
+ * context don't copy or serialize the tags again.
+ */
+class ContextSnapshot {
+
+    private static final String TAG = "ContextSnapshot";
+
+    private static final String APP_VERSION_KEY = "ai.application.ver";
+
+    private static final String USER_ID_KEY = "ai.user.id";
+
+    private static final String DEVICE_ID_KEY = "ai.device.id";
+
+    private static final String OS_VERSION_KEY = "ai.device.osVersion";
+
+    private static final String OS_NAME_KEY = "ai.device.os";
+
+    /**
+     * The version of the context the snapshot has been taken at
+     */
+    private final int version;
+
+    /**
+     * The instrumentation key of the context
+     */
+    private final String instrumentationKey;
+
+    /**
+     * The package name which is used as app id of the envelopes
+     */
+    private final String packageName;
+
+    /**
+     * The context tags
+     */
+    private final Map<String, String> tags;
+
+    /**
+     * The context tags serialized as JSON object
+     */
+    private final String json;
+
+    /**
+     * Take a snapshot of a context.
+     *
+     * @param version            the version of the context
+     * @param instrumentationKey the instrumentation key of the context
+     * @param packageName        the package name which is used as app id of the envelopes
+     * @param tags               the context tags, the map must not be modified afterwards
+     */
+    protected ContextSnapshot(int version, String instrumentationKey, String packageName, Map<String, String> tags) {
+        this.version = version;
+        this.instrumentationKey = instrumentationKey;
+        this.packageName = packageName;
+        this.tags = Collections.unmodifiableMap(tags);
+        this.json = serialize(tags);
+    }
+
+    /**
+     * @return the version of the context the snapshot has been taken at
+     */
+    protected int getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return the instrumentation key of the context
+     */
+    protected String getInstrumentationKey() {
+        return this.instrumentationKey;
+    }
+
+    /**
+     * @return the package name which is used as app id of the envelopes
+     */
+    protected String getPackageName() {
+        return this.packageName;
+    }
+
+    protected String getAppVersion() {
+        return this.tags.get(APP_VERSION_KEY);
+    }
+
+    protected String getUserId() {
+        return this.tags.get(USER_ID_KEY);
+    }
+
+    protected String getDeviceId() {
+        return this.tags.get(DEVICE_ID_KEY);
+    }
+
+    protected String getOsVersion() {
+        return this.tags.get(OS_VERSION_KEY);
+    }
+
+    protected String getOsName() {
+        return this.tags.get(OS_NAME_KEY);
+    }
+
+    /**
+     * @return the context tags, which can't be modified
+     */
+    protected Map<String, String> getTags() {
+        return this.tags;
+    }
+
+    /**
+     * @return the context tags serialized as JSON object
+     */
+    protected String getJson() {
+        return this.json;
+    }
+
+    private static String serialize(Map<String, String> tags) {
+        StringWriter writer = new StringWriter();
+        try {
+            JsonHelper.writeDictionary(writer, tags);
+        } catch (IOException e) {
+            // a StringWriter doesn't throw
+            InternalLogging.warn(TAG, "Couldn't serialize context tags: " + e.toString());
+            return "{}";
+        }
+        return writer.toString();
+    }
+}
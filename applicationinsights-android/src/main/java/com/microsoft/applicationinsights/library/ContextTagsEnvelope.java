@@ -0,0 +1,50 @@
+package com.microsoft.applicationinsights.library;
+
+import com.microsoft.telemetry.cs2.Envelope;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * An envelope which references a snapshot of the context tags instead of owning a copy of them.
+ * The envelope's own tags are null, so they aren't serialized, and the serialized snapshot is
+ * written as the tags of the envelope instead.
+ */
+class ContextTagsEnvelope extends Envelope {
+
+    /**
+     * The shared context tags of this envelope
+     */
+    private final ContextSnapshot contextTags;
+
+    /**
+     * @param contextTags the shared context tags of this envelope
+     */
+    protected ContextTagsEnvelope(ContextSnapshot contextTags) {
+        this.contextTags = contextTags;
+        this.setTags(null);
+    }
+
+    /**
+     * @return the shared context tags, which can't be modified
+     */
+    protected Map<String, String> getContextTags() {
+        return this.contextTags.getTags();
+    }
+
+    /**
+     * Serializes the beginning of this object to the passed in writer.
+     *
+     * @param writer The writer to serialize this object to.
+     */
+    @Override
+    protected String serializeContent(Writer writer) throws IOException {
+        String prefix = super.serializeContent(writer);
+        writer.write(prefix + "\"tags\":");
+        writer.write(this.contextTags.getJson());
+        prefix = ",";
+
+        return prefix;
+    }
+}
@@ -0,0 +1,238 @@
+package com.microsoft.applicationinsights.library;
+
+import com.microsoft.applicationinsights.contracts.DataPoint;
+import com.microsoft.applicationinsights.contracts.DataPointType;
+import com.microsoft.applicationinsights.contracts.DependencyKind;
+import com.microsoft.applicationinsights.contracts.RemoteDependencyData;
+import com.microsoft.applicationinsights.logging.InternalLogging;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Aggregates calls to remote dependencies in process, so chatty APIs don't produce an envelope per
+ * call. Calls with the same kind, target, command, outcome and properties share a
+ * {@link MetricSeries} of their durations. Once per interval every series which has received calls
+ * is emitted as a single {@link RemoteDependencyData} of kind {@link DataPointType#AGGREGATION}.
+ */
+class DependencyAggregator {
+
+    private static final String TAG = "DependencyAggregator";
+
+    /**
+     * The property which holds the result code of the calls
+     */
+    protected static final String RESULT_CODE_PROPERTY = "resultCode";
+
+    /**
+     * The queue which the aggregates are handed to
+     */
+    private final IngestionQueue queue;
+
+    /**
+     * The aggregated series
+     */
+    private final ConcurrentHashMap<DependencyKey, MetricSeries> series;
+
+    /**
+     * True once the aggregator has been scheduled
+     */
+    private boolean isStarted;
+
+    /**
+     * @param queue the queue which the aggregates are handed to
+     */
+    protected DependencyAggregator(IngestionQueue queue) {
+        this.queue = queue;
+        this.series = new ConcurrentHashMap<DependencyKey, MetricSeries>();
+    }
+
+    /**
+     * Emit the aggregates periodically.
+     *
+     * @param intervalMs the aggregation interval in ms
+     */
+    protected synchronized void start(long intervalMs) {
+        if (!this.isStarted) {
+            this.isStarted = true;
+            MetricAggregator.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, intervalMs);
+        }
+    }
+
+    /**
+     * Add a call to the series of the dependency.
+     *
+     * @param kind        the kind of the dependency
+     * @param name        the name of the dependency, e.g. the host
+     * @param commandName the command which has been executed, e.g. the method and path
+     * @param durationMs  the duration of the call in ms
+     * @param success     true if the call succeeded
+     * @param resultCode  the result code of the call, may be null
+     * @param properties  the properties of the series, may be null
+     * @return false if the call hasn't been aggregated because there are too many series
+     */
+    protected boolean track(DependencyKind kind, String name, String commandName, double durationMs,
+                            boolean success, String resultCode, Map<String, String> properties) {
+        DependencyKey key = new DependencyKey(kind, name, commandName, success, resultCode, properties);
+        while (true) {
+            MetricSeries current = this.series.get(key);
+            if (current == null) {
+                if (this.series.size() >= MetricAggregator.MAX_SERIES_COUNT) {
+                    return false;
+                }
+                current = this.add(key);
+            }
+
+            if (current.tryRecord(durationMs)) {
+                return true;
+            }
+            // the series has been removed while it was idle, start a new one
+        }
+    }
+
+    /**
+     * Add a series unless another thread has added it already.
+     *
+     * @return the series for the key
+     */
+    private MetricSeries add(DependencyKey key) {
+        // the key owns a copy of the properties, so the caller may modify them
+        Map<String, String> copy = key.properties == null ? null : new HashMap<String, String>(key.properties);
+        DependencyKey ownKey = new DependencyKey(key.kind, key.name, key.commandName, key.success,
+              key.resultCode, copy);
+        MetricSeries created = new MetricSeries(key.name, copy, false);
+        MetricSeries current = this.series.putIfAbsent(ownKey, created);
+        return current == null ? created : current;
+    }
+
+    /**
+     * Emit the calls of each series which has received calls since the last flush. Series without
+     * calls are removed.
+     */
+    protected void flush() {
+        for (Map.Entry<DependencyKey, MetricSeries> entry : this.series.entrySet()) {
+            DependencyKey key = entry.getKey();
+            MetricSeries current = entry.getValue();
+            DataPoint aggregate = current.takeAggregate(null);
+            if (aggregate == null) {
+                if (current.retireIfIdle()) {
+                    this.series.remove(key, current);
+                }
+            } else {
+                RemoteDependencyData data = createData(key.kind, key.name, key.commandName,
+                      key.success, key.resultCode, key.properties);
+                data.setKind(DataPointType.AGGREGATION);
+                data.setValue(aggregate.getValue());
+                data.setCount(aggregate.getCount());
+                data.setMin(aggregate.getMin());
+                data.setMax(aggregate.getMax());
+                data.setStdDev(aggregate.getStdDev());
+                try {
+                    this.emit(data);
+                } catch (RuntimeException e) {
+                    InternalLogging.warn(TAG, "Couldn't emit aggregated dependency: " + e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Hand aggregated calls over to be sent.
+     *
+     * @param data the aggregated calls
+     */
+    protected void emit(RemoteDependencyData data) {
+        this.queue.enqueue(new TrackDataOperation(data));
+    }
+
+    /**
+     * Create the data of calls to a dependency without the duration.
+     *
+     * @param kind        the kind of the dependency
+     * @param name        the name of the dependency
+     * @param commandName the command which has been executed
+     * @param success     true if the calls succeeded
+     * @param resultCode  the result code of the calls, may be null
+     * @param properties  the properties of the calls, may be null
+     * @return the data, which has its own copy of the properties
+     */
+    protected static RemoteDependencyData createData(DependencyKind kind, String name, String commandName,
+                                                     boolean success, String resultCode,
+                                                     Map<String, String> properties) {
+        // the envelope gets the common properties added, the key must not change
+        Map<String, String> copy = properties == null
+              ? new HashMap<String, String>() : new HashMap<String, String>(properties);
+        if (resultCode != null) {
+            copy.put(RESULT_CODE_PROPERTY, resultCode);
+        }
+
+        RemoteDependencyData data = new RemoteDependencyData();
+        data.setDependencyKind(kind == null ? DependencyKind.OTHER : kind);
+        data.setName(name == null ? "" : name);
+        data.setCommandName(commandName);
+        data.setSuccess(success);
+        data.setProperties(copy);
+        return data;
+    }
+
+    /**
+     * The identity of a series
+     */
+    private static class DependencyKey {
+
+        private final DependencyKind kind;
+
+        private final String name;
+
+        private final String commandName;
+
+        private final boolean success;
+
+        private final String resultCode;
+
+        private final Map<String, String> properties;
+
+        private final int hashCode;
+
+        DependencyKey(DependencyKind kind, String name, String commandName, boolean success,
+                      String resultCode, Map<String, String> properties) {
+            this.kind = kind == null ? DependencyKind.OTHER : kind;
+            this.name = name == null ? "" : name;
+            this.commandName = commandName == null ? "" : commandName;
+            this.success = success;
+            this.resultCode = resultCode;
+            this.properties = properties;
+
+            int hash = this.kind.hashCode();
+            hash = 31 * hash + this.name.hashCode();
+            hash = 31 * hash + this.commandName.hashCode();
+            hash = 31 * hash + (success ? 1 : 0);
+            hash = 31 * hash + (resultCode == null ? 0 : resultCode.hashCode());
+            this.hashCode = 31 * hash + (properties == null ? 0 : properties.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof DependencyKey)) {
+                return false;
+            }
+            DependencyKey key = (DependencyKey) other;
+            return this.kind == key.kind && this.name.equals(key.name)
+                  && this.commandName.equals(key.commandName) && this.success == key.success
+                  && (this.resultCode == null ? key.resultCode == null : this.resultCode.equals(key.resultCode))
+                  && (this.properties == null ? key.properties == null : this.properties.equals(key.properties));
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+    }
+}
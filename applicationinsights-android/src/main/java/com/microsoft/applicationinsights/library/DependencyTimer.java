@@ -0,0 +1,123 @@
+package com.microsoft.applicationinsights.library;
+
+import com.microsoft.applicationinsights.contracts.DependencyKind;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Times a call to a remote dependency and tracks it with
+ * {@link TelemetryClient#trackDependency(DependencyKind, String, String, long, boolean, String, Map)}.
+ * Start a timer right before the call and stop it once the outcome is known:
+ * <pre>
+ * DependencyTimer timer = DependencyTimer.start(DependencyKind.OTHER, "database", "query");
+ * boolean success = runQuery();
+ * timer.stop(success, null);
+ * </pre>
+ * HTTP calls made with {@link HttpURLConnection} can be timed with
+ * {@link DependencyTimer#getResponseCode(HttpURLConnection)} instead of
+ * {@link HttpURLConnection#getResponseCode()}.
+ */
+public class DependencyTimer {
+
+    /**
+     * The kind of the dependency
+     */
+    private final DependencyKind kind;
+
+    /**
+     * The name of the dependency
+     */
+    private final String name;
+
+    /**
+     * The command which is executed
+     */
+    private final String commandName;
+
+    /**
+     * The properties of the call, may be null
+     */
+    private final Map<String, String> properties;
+
+    /**
+     * The time at which the call started in ns, see System.nanoTime
+     */
+    private final long startNanos;
+
+    private DependencyTimer(DependencyKind kind, String name, String commandName, Map<String, String> properties) {
+        this.kind = kind;
+        this.name = name;
+        this.commandName = commandName;
+        this.properties = properties;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * {@code properties} defaults to {@code null}.
+     *
+     * @see DependencyTimer#start(DependencyKind, String, String, Map)
+     */
+    public static DependencyTimer start(DependencyKind kind, String name, String commandName) {
+        return start(kind, name, commandName, null);
+    }
+
+    /**
+     * Start timing a call.
+     *
+     * @param kind        The kind of the dependency, e.g. HTTP
+     * @param name        The name of the dependency, e.g. the host
+     * @param commandName The command which is executed, e.g. the method and path
+     * @param properties  Custom properties associated with the call, may be null
+     * @return the timer of the call
+     */
+    public static DependencyTimer start(DependencyKind kind, String name, String commandName,
+                                        Map<String, String> properties) {
+        return new DependencyTimer(kind, name, commandName, properties);
+    }
+
+    /**
+     * Stop timing the call and track it.
+     *
+     * @param success    True if the call succeeded
+     * @param resultCode The result code of the call, may be null
+     * @return the duration of the call in milliseconds
+     */
+    public long stop(boolean success, String resultCode) {
+        long durationMs = (System.nanoTime() - this.startNanos) / 1000000;
+        TelemetryClient client = TelemetryClient.getInstance();
+        if (client != null) {
+            client.trackDependency(this.kind, this.name, this.commandName, durationMs, success,
+                  resultCode, this.properties);
+        }
+        return durationMs;
+    }
+
+    /**
+     * Get the response code of an HTTP call and track the call. The call is timed from this method
+     * on, so the connection shouldn't be connected yet. The name of the dependency is the host, the
+     * command name is the request method and the path, without the query which may contain
+     * personal data. Calls with a response code of 400 or more fail, as do calls which throw.
+     *
+     * @param connection the connection of the call
+     * @return the response code, see {@link HttpURLConnection#getResponseCode()}
+     * @throws IOException if the call fails
+     */
+    public static int getResponseCode(HttpURLConnection connection) throws IOException {
+        URL url = connection.getURL();
+        DependencyTimer timer = start(DependencyKind.HTTP, url.getHost(),
+              connection.getRequestMethod() + " " + url.getPath());
+        int responseCode;
+        try {
+            responseCode = connection.getResponseCode();
+        } catch (IOException e) {
+            timer.stop(false, e.getClass().getSimpleName());
+            throw e;
+        }
+
+        timer.stop(responseCode > 0 && responseCode < 400, String.valueOf(responseCode));
+        return responseCode;
+    }
+}
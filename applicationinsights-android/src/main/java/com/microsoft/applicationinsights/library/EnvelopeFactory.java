@@ -12,6 +12,7 @@ import com.microsoft.applicationinsights.contracts.ExceptionDetails;
 import com.microsoft.applicationinsights.contracts.MessageData;
 import com.microsoft.applicationinsights.contracts.MetricData;
 import com.microsoft.applicationinsights.contracts.PageViewData;
+import com.microsoft.applicationinsights.contracts.PageViewPerfData;
 import com.microsoft.applicationinsights.contracts.SessionState;
 import com.microsoft.applicationinsights.contracts.SessionStateData;
 import com.microsoft.applicationinsights.contracts.StackFrame;
@@ -22,7 +23,6 @@ import com.microsoft.telemetry.Domain;
 import com.microsoft.telemetry.cs2.Envelope;
 
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -119,21 +119,34 @@ class EnvelopeFactory {
      * @return the envelope used for telemetry
      */
     protected Envelope createEnvelope() {
-        Envelope envelope = new Envelope();
-        this.context.updateScreenResolution(ApplicationInsights.INSTANCE.getContext());
-        envelope.setAppId(this.context.getPackageName());
-        envelope.setAppVer(this.context.getAppVersion());
-        envelope.setTime(Util.dateToISO8601(new Date()));
-        envelope.setIKey(this.context.getInstrumentationKey());
-        envelope.setUserId(this.context.getUserId());
-        envelope.setDeviceId(this.context.getDeviceId());
-        envelope.setOsVer(this.context.getOsVersion());
-        envelope.setOs(this.context.getOsName());
-
-        Map<String, String> tags = this.context.getContextTags();
-        if (tags != null) {
-            envelope.setTags(tags);
+        // the screen resolution is kept up to date by ScreenResolutionTracker
+        Envelope envelope;
+        ContextSnapshot snapshot = this.context.getSnapshot();
+        if (snapshot != null) {
+            // a single read of the published snapshot, the tags are shared until the context changes
+            envelope = new ContextTagsEnvelope(snapshot);
+            envelope.setAppId(snapshot.getPackageName());
+            envelope.setAppVer(snapshot.getAppVersion());
+            envelope.setIKey(snapshot.getInstrumentationKey());
+            envelope.setUserId(snapshot.getUserId());
+            envelope.setDeviceId(snapshot.getDeviceId());
+            envelope.setOsVer(snapshot.getOsVersion());
+            envelope.setOs(snapshot.getOsName());
+        } else {
+            envelope = new Envelope();
+            Map<String, String> tags = this.context.getContextTags();
+            if (tags != null) {
+                envelope.setTags(tags);
+            }
+            envelope.setAppId(this.context.getPackageName());
+            envelope.setAppVer(this.context.getAppVersion());
+            envelope.setIKey(this.context.getInstrumentationKey());
+            envelope.setUserId(this.context.getUserId());
+            envelope.setDeviceId(this.context.getDeviceId());
+            envelope.setOsVer(this.context.getOsVersion());
+            envelope.setOs(this.context.getOsName());
         }
+        envelope.setTime(TimestampFormatter.format(System.currentTimeMillis()));
         return envelope;
     }
 
@@ -251,6 +264,27 @@ class EnvelopeFactory {
         return data;
     }
 
+    /**
+     * Creates information about a metric which has been aggregated in process.
+     *
+     * @param dataPoint     The aggregated data point
+     * @param properties    Custom properties associated with the metric
+     * @return an Envelope object, which contains a metric
+     */
+    protected Data<Domain> createMetricData(DataPoint dataPoint, Map<String, String> properties) {
+        Data<Domain> data = null;
+        if (isConfigured()) {
+            MetricData telemetry = new MetricData();
+            List<DataPoint> metricsList = new ArrayList<DataPoint>(1);
+            metricsList.add(dataPoint);
+            telemetry.setMetrics(metricsList);
+            telemetry.setProperties(properties);
+
+            data = createData(telemetry);
+        }
+        return data;
+    }
+
     /**
      * Creates information about an handled or unhandled exception to Application Insights. This
      * method gets called by a CreateTelemetryDataTask in order to create and forward data on a
@@ -262,9 +296,30 @@ class EnvelopeFactory {
      * @return an Envelope object, which contains a handled or unhandled exception
      */
     protected Data<Domain> createExceptionData(Throwable exception, Map<String, String> properties, Map<String, Double> measurements) {
+        Throwable localException = exception;
+        if (localException == null) {
+            localException = new Exception();
+        }
+
+        return createExceptionData(localException.getClass().getName(), localException.getMessage(),
+              localException.getStackTrace(), properties, measurements);
+    }
+
+    /**
+     * Creates information about an handled or unhandled exception from a snapshot of the exception,
+     * which has been taken when the exception has been tracked.
+     *
+     * @param type          The class name of the exception
+     * @param message       The exception message
+     * @param stack         The stack trace of the exception
+     * @param properties    Custom properties associated with the event
+     * @param measurements  Custom measurements associated with the event
+     * @return an Envelope object, which contains a handled or unhandled exception
+     */
+    protected Data<Domain> createExceptionData(String type, String message, StackTraceElement[] stack, Map<String, String> properties, Map<String, Double> measurements) {
         Data<Domain> data = null;
         if (isConfigured()) {
-            CrashData telemetry = this.getCrashData(exception, properties, measurements);
+            CrashData telemetry = this.getCrashData(type, message, stack, properties, measurements);
             data = createData(telemetry);
         }
         return data;
@@ -318,6 +373,36 @@ class EnvelopeFactory {
         return data;
     }
 
+    /**
+     * Creates information about a page view with the time it took to render the page.
+     *
+     * @param pageName     The name of the page
+     * @param duration     The time from the start of the page to its first frame in ms
+     * @param properties   Custom properties associated with the page view
+     * @param measurements Custom measurements associated with the page view
+     * @return an Envelope object, which contains a page view with its performance data
+     */
+    protected Data<Domain> createPageViewPerfData(
+          String pageName,
+          long duration,
+          Map<String, String> properties,
+          Map<String, Double> measurements) {
+        Data<Domain> data = null;
+        if (isConfigured()) {
+            PageViewPerfData telemetry = new PageViewPerfData();
+            String timeSpan = Util.msToTimeSpan(duration);
+            telemetry.setDuration(timeSpan);
+            telemetry.setPerfTotal(timeSpan);
+            telemetry.setName(ensureNotNull(pageName));
+            telemetry.setUrl(null);
+            telemetry.setProperties(properties);
+            telemetry.setMeasurements(measurements);
+
+            data = createData(telemetry);
+        }
+        return data;
+    }
+
     /**
      * Creates information about a new session view for Application Insights. This method gets
      * called by a CreateTelemetryDataTask in order to create and forward data on a background thread.
@@ -373,21 +458,17 @@ class EnvelopeFactory {
     /**
      * Parse an exception and it's stack trace and create the CrashData object
      *
-     * @param exception     The throwable object we want to create a crashdata from
+     * @param type          The class name of the exception
+     * @param message       The exception message
+     * @param stack         The stack trace of the exception
      * @param properties    Properties used foor the CrashData
      * @param measurements  Key value par for custom metrics
      * @return a CrashData object that contains the stacktrace and context info
      */
-    private CrashData getCrashData(Throwable exception, Map<String, String> properties, Map<String, Double> measurements) {
-        Throwable localException = exception;
-        if (localException == null) {
-            localException = new Exception();
-        }
-
+    private CrashData getCrashData(String type, String message, StackTraceElement[] stack, Map<String, String> properties, Map<String, Double> measurements) {
         // TODO: set handledAt - Is of relevance in future releases, not at the moment
         // read stack frames
         List<CrashDataThreadFrame> stackFrames = new ArrayList<CrashDataThreadFrame>();
-        StackTraceElement[] stack = localException.getStackTrace();
         for (int i = 0; i < stack.length - 1; i++) {
             StackTraceElement rawFrame = stack[i];
             CrashDataThreadFrame frame = new CrashDataThreadFrame();
@@ -404,9 +485,8 @@ class EnvelopeFactory {
         CrashDataHeaders crashDataHeaders = new CrashDataHeaders();
         crashDataHeaders.setId(UUID.randomUUID().toString());
 
-        String message = localException.getMessage();
         crashDataHeaders.setExceptionReason(ensureNotNull(message));
-        crashDataHeaders.setExceptionType(localException.getClass().getName());
+        crashDataHeaders.setExceptionType(type);
         crashDataHeaders.setApplicationIdentifier(this.context.getPackageName());
 
         CrashData crashData = new CrashData();
@@ -0,0 +1,465 @@
+package com.microsoft.applicationinsights.library;
+
+import com.microsoft.applicationinsights.library.config.IIngestionConfig;
+import com.microsoft.applicationinsights.library.config.OverflowPolicy;
+import com.microsoft.applicationinsights.logging.InternalLogging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands track calls from the calling threads to a single worker thread, which turns them into
+ * envelopes. Callers add an operation to a lock-free ring buffer and return immediately. Once the
+ * buffer is full, the {@link OverflowPolicy} of the configuration decides what happens to the new
+ * operation, items which are lost are counted. Operations which are spilled to disk wait in a
+ * second buffer, a timer thread turns them into envelopes and writes them in batches.
+ */
+class IngestionQueue {
+
+    private static final String TAG = "IngestionQueue";
+
+    /**
+     * The maximum number of operations the worker takes from the buffer at once
+     */
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * The time spilled operations are collected before they are written, so a burst ends up in
+     * full batches
+     */
+    private static final long SPILL_DELAY_MS = 100;
+
+    /**
+     * The configuration of the queue
+     */
+    private final IIngestionConfig config;
+
+    /**
+     * The queued operations
+     */
+    private final RingBuffer<TrackDataOperation> buffer;
+
+    /**
+     * The operations which wait to be spilled to disk
+     */
+    private final RingBuffer<TrackDataOperation> overflowBuffer;
+
+    /**
+     * Synchronization LOCK for taking operations from the buffer, which only one thread may do at
+     * a time. Callers only take it if they drop the oldest operation.
+     */
+    private final Object CONSUMER_LOCK = new Object();
+
+    /**
+     * Synchronization LOCK held while operations are taken from the buffer and processed, so a
+     * flush doesn't return while the worker still processes a batch
+     */
+    private final Object PROCESS_LOCK = new Object();
+
+    /**
+     * Monitor the idle worker waits on
+     */
+    private final Object WORK_SIGNAL = new Object();
+
+    /**
+     * Monitor blocked callers wait on
+     */
+    private final Object SPACE_SIGNAL = new Object();
+
+    /**
+     * Synchronization LOCK for taking operations from the overflow buffer and creating the timer
+     * which spills them
+     */
+    private final Object SPILL_LOCK = new Object();
+
+    /**
+     * True while the worker waits for operations
+     */
+    private final AtomicBoolean isIdle;
+
+    /**
+     * The number of callers which wait for room in the buffer
+     */
+    private final AtomicInteger blockedCount;
+
+    /**
+     * The number of operations which have been lost
+     */
+    private final AtomicLong droppedCount;
+
+    /**
+     * The number of operations which have been handed over to be written to disk
+     */
+    private final AtomicLong spilledCount;
+
+    /**
+     * True while a task which spills the overflow buffer is scheduled or running
+     */
+    private final AtomicBoolean isSpillScheduled;
+
+    /**
+     * Tasks the worker runs once the operations which have been queued before them are processed
+     */
+    private final ConcurrentLinkedQueue<Runnable> flushTasks;
+
+    /**
+     * The timer which spills the overflow buffer, created once the first operation is spilled
+     */
+    private Timer spillTimer;
+
+    /**
+     * Create a queue and start its worker thread
+     *
+     * @param config the configuration of the queue
+     */
+    protected IngestionQueue(IIngestionConfig config) {
+        this.config = config;
+        this.buffer = new RingBuffer<TrackDataOperation>(Math.max(1, config.getIngestionQueueCapacity()));
+        // room for at least one full batch, so spilled items don't end up in small files
+        this.overflowBuffer = new RingBuffer<TrackDataOperation>(
+              Math.max(Math.max(1, config.getIngestionQueueCapacity()), config.getMaxBatchCount()));
+        this.isIdle = new AtomicBoolean(false);
+        this.blockedCount = new AtomicInteger(0);
+        this.droppedCount = new AtomicLong(0);
+        this.spilledCount = new AtomicLong(0);
+        this.isSpillScheduled = new AtomicBoolean(false);
+        this.flushTasks = new ConcurrentLinkedQueue<Runnable>();
+
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "Application Insights Ingestion");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Queue an operation without blocking, unless OverflowPolicy.Block is configured and the
+     * queue is full.
+     *
+     * @param operation the operation to process
+     * @return true if the operation has been queued or written to disk, false if it was dropped
+     */
+    protected boolean enqueue(TrackDataOperation operation) {
+        boolean success = this.buffer.offer(operation);
+        if (!success) {
+            success = this.overflow(operation);
+        }
+
+        if (success && this.isIdle.get()) {
+            synchronized (this.WORK_SIGNAL) {
+                this.WORK_SIGNAL.notify();
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Let the worker run a task once all operations which have been queued before the call have
+     * been processed and the spilled ones have been written to disk. The caller never waits.
+     *
+     * @param whenProcessed the task to run on the worker thread
+     */
+    protected void flush(Runnable whenProcessed) {
+        this.flushTasks.offer(whenProcessed);
+        if (this.isIdle.get()) {
+            synchronized (this.WORK_SIGNAL) {
+                this.WORK_SIGNAL.notify();
+            }
+        }
+    }
+
+    /**
+     * Process all queued operations on the calling thread and write the spilled ones to disk. Once
+     * this returns, the envelopes of all operations which have been queued before the call have
+     * been handed to the channel, unless they have been dropped. Never call this on the main
+     * thread, it waits for the batch the worker is processing.
+     */
+    protected void drain() {
+        synchronized (this.PROCESS_LOCK) {
+            TrackDataOperation[] batch = new TrackDataOperation[BATCH_SIZE];
+            int count;
+            while ((count = this.drainTo(batch)) > 0) {
+                this.process(batch, count);
+            }
+        }
+        this.spillOverflow();
+    }
+
+    /**
+     * @return the number of operations which have been lost because the queue was full
+     */
+    protected long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+    /**
+     * @return the number of operations which have been handed over to be written to disk because
+     * the queue was full
+     */
+    protected long getSpilledCount() {
+        return this.spilledCount.get();
+    }
+
+    /**
+     * Apply the overflow policy to an operation which didn't fit into the buffer.
+     */
+    private boolean overflow(TrackDataOperation operation) {
+        OverflowPolicy policy = this.config.getOverflowPolicy();
+        boolean success;
+        if (policy == OverflowPolicy.DropOldest) {
+            success = this.dropOldest(operation);
+        } else if (policy == OverflowPolicy.Block) {
+            success = this.block(operation, this.config.getMaxOverflowBlockMs());
+        } else {
+            this.spilledCount.incrementAndGet();
+            this.spill(operation);
+            return true;
+        }
+
+        if (!success) {
+            long dropped = this.droppedCount.incrementAndGet();
+            InternalLogging.warn(TAG, "Ingestion queue is full, " + dropped + " item(s) dropped so far");
+        }
+        return success;
+    }
+
+    /**
+     * Hand an operation over to the timer which spills the overflow buffer. If the overflow buffer
+     * is full as well, the timer has fallen behind and the caller writes the overflow buffer to
+     * disk.
+     */
+    private void spill(TrackDataOperation operation) {
+        if (!this.overflowBuffer.offer(operation)) {
+            this.spillOverflow();
+            if (!this.overflowBuffer.offer(operation)) {
+                // other callers took the room, write the operation on its own
+                this.writeToDisk(new TrackDataOperation[]{operation}, 1);
+                return;
+            }
+        }
+
+        if (this.isSpillScheduled.compareAndSet(false, true)) {
+            this.scheduleSpill();
+        }
+    }
+
+    /**
+     * Schedule a task which spills the overflow buffer, the caller has set isSpillScheduled.
+     */
+    private void scheduleSpill() {
+        synchronized (this.SPILL_LOCK) {
+            if (this.spillTimer == null) {
+                this.spillTimer = new Timer("Application Insights Spill", true);
+            }
+            this.spillTimer.schedule(new SpillTask(), SPILL_DELAY_MS);
+        }
+    }
+
+    /**
+     * Write the operations in the overflow buffer to disk, with one batch of at most
+     * {@link IIngestionConfig#getMaxBatchCount()} items per file.
+     */
+    private void spillOverflow() {
+        synchronized (this.SPILL_LOCK) {
+            TrackDataOperation[] operations = new TrackDataOperation[Math.max(1, this.config.getMaxBatchCount())];
+            int count;
+            while ((count = this.overflowBuffer.drainTo(operations)) > 0) {
+                this.writeToDisk(operations, count);
+                for (int i = 0; i < count; i++) {
+                    operations[i] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Turn operations into envelopes and write them to disk as a single batch.
+     *
+     * @param operations the operations
+     * @param count      the number of operations, from the start of the array
+     */
+    private void writeToDisk(TrackDataOperation[] operations, int count) {
+        List<String> items = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            try {
+                String item = operations[i].spill();
+                if (item != null) {
+                    items.add(item);
+                }
+            } catch (RuntimeException e) {
+                InternalLogging.error(TAG, "Couldn't process item: " + e.toString());
+            }
+        }
+
+        if (!items.isEmpty()) {
+            this.persist(items.toArray(new String[items.size()]));
+        }
+    }
+
+    /**
+     * Write a batch of spilled items to disk.
+     *
+     * @param items the serialized items
+     */
+    protected void persist(String[] items) {
+        Persistence persistence = Persistence.getInstance();
+        if (persistence != null) {
+            persistence.persist(items, false);
+        }
+    }
+
+    private boolean dropOldest(TrackDataOperation operation) {
+        TrackDataOperation[] oldest = new TrackDataOperation[1];
+        synchronized (this.CONSUMER_LOCK) {
+            if (this.buffer.drainTo(oldest) == 1) {
+                long dropped = this.droppedCount.incrementAndGet();
+                InternalLogging.warn(TAG, "Ingestion queue is full, " + dropped + " item(s) dropped so far");
+            }
+        }
+        return this.buffer.offer(operation);
+    }
+
+    private boolean block(TrackDataOperation operation, long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        this.blockedCount.incrementAndGet();
+        try {
+            synchronized (this.SPACE_SIGNAL) {
+                while (!this.buffer.offer(operation)) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    this.SPACE_SIGNAL.wait(remaining);
+                }
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            this.blockedCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * The loop of the worker thread.
+     */
+    private void work() {
+        TrackDataOperation[] batch = new TrackDataOperation[BATCH_SIZE];
+        while (true) {
+            // tasks which have been requested before the buffer is found empty follow the
+            // operations which have been queued before them
+            int taskCount = this.flushTasks.size();
+            int count;
+            synchronized (this.PROCESS_LOCK) {
+                count = this.drainTo(batch);
+                this.process(batch, count);
+            }
+
+            if (count == 0) {
+                if (taskCount > 0) {
+                    this.runFlushTasks(taskCount);
+                } else {
+                    this.waitForWork();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the spilled operations to disk and run the given number of flush tasks.
+     */
+    private void runFlushTasks(int taskCount) {
+        this.spillOverflow();
+        for (int i = 0; i < taskCount; i++) {
+            Runnable task = this.flushTasks.poll();
+            if (task == null) {
+                break;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                InternalLogging.error(TAG, "Couldn't flush: " + e.toString());
+            }
+        }
+    }
+
+    /**
+     * Take operations from the buffer and wake up blocked callers.
+     *
+     * @param batch the array the operations are moved to
+     * @return the number of operations which have been taken
+     */
+    private int drainTo(TrackDataOperation[] batch) {
+        int count;
+        synchronized (this.CONSUMER_LOCK) {
+            count = this.buffer.drainTo(batch);
+        }
+
+        if (count > 0 && this.blockedCount.get() > 0) {
+            synchronized (this.SPACE_SIGNAL) {
+                this.SPACE_SIGNAL.notifyAll();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Run operations and clear them from the batch.
+     *
+     * @param batch the operations
+     * @param count the number of operations, from the start of the array
+     */
+    private void process(TrackDataOperation[] batch, int count) {
+        for (int i = 0; i < count; i++) {
+            try {
+                batch[i].run();
+            } catch (RuntimeException e) {
+                InternalLogging.error(TAG, "Couldn't process item: " + e.toString());
+            }
+            batch[i] = null;
+        }
+    }
+
+    private void waitForWork() {
+        this.isIdle.set(true);
+        try {
+            synchronized (this.WORK_SIGNAL) {
+                // callers which publish after this check see the idle flag and notify, so the
+                // worker sleeps until there is work instead of polling
+                if (this.buffer.isEmpty() && this.flushTasks.isEmpty()) {
+                    this.WORK_SIGNAL.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            // the worker keeps running for the lifetime of the process
+        } finally {
+            this.isIdle.set(false);
+        }
+    }
+
+    /**
+     * Spills the overflow buffer until it is empty
+     */
+    private class SpillTask extends TimerTask {
+
+        @Override
+        public void run() {
+            spillOverflow();
+            isSpillScheduled.set(false);
+            // an operation which has been added before the flag was cleared didn't schedule a task
+            if (!overflowBuffer.isEmpty() && isSpillScheduled.compareAndSet(false, true)) {
+                scheduleSpill();
+            }
+        }
+    }
+}
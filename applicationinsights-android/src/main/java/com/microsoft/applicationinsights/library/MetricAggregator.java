@@ -0,0 +1,234 @@
+package com.microsoft.applicationinsights.library;
+
+import com.microsoft.applicationinsights.contracts.DataPoint;
+import com.microsoft.applicationinsights.contracts.DataPointType;
+import com.microsoft.applicationinsights.logging.InternalLogging;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Aggregates tracked metric values in process. Values are grouped into a {@link MetricSeries} per
+ * metric name and properties, which keeps running statistics in striped accumulators, so threads
+ * which track values don't contend. Once per interval every series which has received values is
+ * emitted as a single data point of kind {@link DataPointType#AGGREGATION}.
+ */
+class MetricAggregator {
+
+    private static final String TAG = "MetricAggregator";
+
+    /**
+     * The interval for metric series if trackMetric isn't aggregated
+     */
+    protected static final long DEFAULT_INTERVAL_MS = 60 * 1000;
+
+    /**
+     * The maximum number of series which are aggregated at a time, values of further series are
+     * sent as single measurements
+     */
+    protected static final int MAX_SERIES_COUNT = 1000;
+
+    /**
+     * The queue which the aggregates are handed to
+     */
+    private final IngestionQueue queue;
+
+    /**
+     * The aggregated series
+     */
+    private final ConcurrentHashMap<SeriesKey, MetricSeries> series;
+
+    /**
+     * The timer which emits the aggregates of all aggregators, null until one is started
+     */
+    private static Timer timer;
+
+    /**
+     * True once the aggregator has been scheduled
+     */
+    private boolean isStarted;
+
+    /**
+     * @param queue the queue which the aggregates are handed to
+     */
+    protected MetricAggregator(IngestionQueue queue) {
+        this.queue = queue;
+        this.series = new ConcurrentHashMap<SeriesKey, MetricSeries>();
+    }
+
+    /**
+     * Emit the aggregates periodically.
+     *
+     * @param intervalMs the aggregation interval in ms
+     */
+    protected synchronized void start(long intervalMs) {
+        if (!this.isStarted) {
+            this.isStarted = true;
+            schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, intervalMs);
+        }
+    }
+
+    /**
+     * Run a task periodically on the thread which emits the aggregates.
+     *
+     * @param task       the task
+     * @param intervalMs the interval in ms
+     */
+    protected static synchronized void schedule(TimerTask task, long intervalMs) {
+        if (timer == null) {
+            timer = new Timer("Application Insights Aggregation", true);
+        }
+        timer.schedule(task, intervalMs, intervalMs);
+    }
+
+    /**
+     * Add a value to the series of the metric.
+     *
+     * @param name       the name of the metric
+     * @param value      the value
+     * @param properties the properties of the series, may be null
+     * @return false if the value hasn't been aggregated because there are too many series
+     */
+    protected boolean track(String name, double value, Map<String, String> properties) {
+        SeriesKey key = new SeriesKey(name, properties, false);
+        while (true) {
+            MetricSeries current = this.series.get(key);
+            if (current == null) {
+                if (this.series.size() >= MAX_SERIES_COUNT) {
+                    return false;
+                }
+                current = this.add(name, properties, false);
+            }
+
+            if (current.tryRecord(value)) {
+                return true;
+            }
+            // the series has been removed while it was idle, start a new one
+        }
+    }
+
+    /**
+     * Get the series of the metric, which is kept while it is idle. Series which are handed out
+     * aren't limited by MAX_SERIES_COUNT.
+     *
+     * @param name        the name of the metric
+     * @param properties  the properties of the series, may be null
+     * @param isHistogram true if the series estimates percentiles, histograms and other series
+     *                    of the same metric are separate
+     * @return the series
+     */
+    protected MetricSeries getSeries(String name, Map<String, String> properties, boolean isHistogram) {
+        SeriesKey key = new SeriesKey(name, properties, isHistogram);
+        while (true) {
+            MetricSeries current = this.series.get(key);
+            if (current == null) {
+                current = this.add(name, properties, isHistogram);
+            }
+
+            if (current.pin()) {
+                return current;
+            }
+            // the series has been removed while it was idle, start a new one
+        }
+    }
+
+    /**
+     * Add a series unless another thread has added it already.
+     *
+     * @return the series for the name and properties
+     */
+    private MetricSeries add(String name, Map<String, String> properties, boolean isHistogram) {
+        // the key owns a copy of the properties, so the caller may modify them
+        Map<String, String> copy = properties == null ? null : new HashMap<String, String>(properties);
+        MetricSeries created = new MetricSeries(name == null ? "" : name, copy, isHistogram);
+        MetricSeries current = this.series.putIfAbsent(new SeriesKey(name, copy, isHistogram), created);
+        return current == null ? created : current;
+    }
+
+    /**
+     * Emit a data point for each series which has received values since the last flush. Series
+     * without values are removed. Histograms add their percentiles to the properties.
+     */
+    protected void flush() {
+        for (MetricSeries current : this.series.values()) {
+            Map<String, String> properties = current.getProperties();
+            Map<String, String> percentiles = null;
+            if (current.isHistogram()) {
+                percentiles = properties == null
+                      ? new HashMap<String, String>() : new HashMap<String, String>(properties);
+                properties = percentiles;
+            }
+
+            DataPoint dataPoint = current.takeAggregate(percentiles);
+            if (dataPoint == null) {
+                if (current.retireIfIdle()) {
+                    this.series.remove(new SeriesKey(current.getName(), current.getProperties(),
+                          current.isHistogram()), current);
+                }
+            } else {
+                try {
+                    this.emit(dataPoint, properties);
+                } catch (RuntimeException e) {
+                    InternalLogging.warn(TAG, "Couldn't emit aggregated metric: " + e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Hand an aggregated data point over to be sent.
+     *
+     * @param dataPoint  the aggregated data point
+     * @param properties the properties of the series
+     */
+    protected void emit(DataPoint dataPoint, Map<String, String> properties) {
+        // the envelope gets the common properties added, the key must not change
+        Map<String, String> copy = properties == null ? null : new HashMap<String, String>(properties);
+        this.queue.enqueue(new TrackDataOperation(dataPoint, copy));
+    }
+
+    /**
+     * The identity of a series, the metric name, its properties and whether it is a histogram
+     */
+    private static class SeriesKey {
+
+        private final String name;
+
+        private final Map<String, String> properties;
+
+        private final boolean isHistogram;
+
+        private final int hashCode;
+
+        SeriesKey(String name, Map<String, String> properties, boolean isHistogram) {
+            this.name = name == null ? "" : name;
+            this.properties = properties;
+            this.isHistogram = isHistogram;
+            this.hashCode = 31 * (31 * this.name.hashCode() + (properties == null ? 0 : properties.hashCode()))
+                  + (isHistogram ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey key = (SeriesKey) other;
+            return this.name.equals(key.name) && this.isHistogram == key.isHistogram
+                  && (this.properties == null ? key.properties == null : this.properties.equals(key.properties));
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+    }
+}
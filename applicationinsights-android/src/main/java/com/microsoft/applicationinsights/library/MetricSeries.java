@@ -0,0 +1,329 @@
+package com.microsoft.applicationinsights.library;
+
+import com.microsoft.applicationinsights.contracts.DataPoint;
+import com.microsoft.applicationinsights.contracts.DataPointType;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A metric with a fixed name and fixed properties. Get a series once with
+ * {@link TelemetryClient#getMetricSeries(String, Map)} and call {@link #record(double)} for every
+ * value, which neither allocates nor blocks on other threads that record values. The values are
+ * sent as a single aggregated data point per aggregation interval. Series obtained with
+ * {@link TelemetryClient#getHistogramSeries(String, Map)} add the estimated percentiles p50, p90
+ * and p99 to the properties of the data point. They keep a single {@link QuantileSketch} of about
+ * 1 KB, which threads that record values share.
+ */
+public class MetricSeries {
+
+    /**
+     * The maximum number of stripes of a series
+     */
+    private static final int MAX_STRIPE_COUNT = 8;
+
+    /**
+     * The number of stripes, a power of two
+     */
+    private static final int STRIPE_COUNT = stripeCount(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The percentiles which histogram series send
+     */
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+
+    /**
+     * The property names of the percentiles
+     */
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99"};
+
+    /**
+     * The name of the metric
+     */
+    private final String name;
+
+    /**
+     * The properties of the series, read-only
+     */
+    private final Map<String, String> properties;
+
+    /**
+     * The accumulators, each thread records into the stripe picked by its id. Only flushing
+     * locks more than one stripe, always in ascending order.
+     */
+    private final Stripe[] stripes;
+
+    /**
+     * The sketch of all values, null if the series isn't a histogram. Guarded by its own lock,
+     * which is never taken while a stripe is locked.
+     */
+    private final QuantileSketch sketch;
+
+    /**
+     * True if the series has been handed out, pinned series are never removed while idle. Guarded
+     * by the lock of the first stripe.
+     */
+    private boolean isPinned;
+
+    /**
+     * True once the series has been removed, values must be added to a new series. Guarded by the
+     * lock of the first stripe.
+     */
+    private boolean isRetired;
+
+    /**
+     * @param name        the name of the metric
+     * @param properties  the properties of the series, the series keeps the map and must be the
+     *                    only one to reference it, may be null
+     * @param isHistogram true if the series estimates percentiles
+     */
+    protected MetricSeries(String name, Map<String, String> properties, boolean isHistogram) {
+        this.name = name;
+        this.properties = properties == null ? null : Collections.unmodifiableMap(properties);
+        this.stripes = new Stripe[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.sketch = isHistogram ? new QuantileSketch() : null;
+    }
+
+    /**
+     * Add a value to the series.
+     *
+     * @param value the value
+     */
+    public void record(double value) {
+        this.tryRecord(value);
+    }
+
+    /**
+     * @return the name of the metric
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return the properties of the series, read-only, may be null
+     */
+    public Map<String, String> getProperties() {
+        return this.properties;
+    }
+
+    /**
+     * @return true if the series estimates percentiles
+     */
+    public boolean isHistogram() {
+        return this.sketch != null;
+    }
+
+    /**
+     * Add a value unless the series has been retired.
+     *
+     * @param value the value
+     * @return false if the series has been retired
+     */
+    protected boolean tryRecord(double value) {
+        Stripe stripe = this.stripes[(int) Thread.currentThread().getId() & (STRIPE_COUNT - 1)];
+        synchronized (stripe) {
+            if (stripe.isRetired) {
+                return false;
+            }
+            stripe.add(value);
+        }
+
+        if (this.sketch != null) {
+            synchronized (this.sketch) {
+                this.sketch.add(value);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Keep the series while it is idle.
+     *
+     * @return false if the series has already been retired
+     */
+    protected boolean pin() {
+        synchronized (this.stripes[0]) {
+            if (this.isRetired) {
+                return false;
+            }
+            this.isPinned = true;
+            return true;
+        }
+    }
+
+    /**
+     * Merge the stripes into an aggregate and start over. Percentiles may include values which
+     * are recorded while the aggregate is taken and are counted in the next one.
+     *
+     * @param percentiles the map which the estimated percentiles of a histogram series are added
+     *                    to, may be null if they aren't needed
+     * @return the aggregate, or null if no value has been recorded since the last call
+     */
+    protected synchronized DataPoint takeAggregate(Map<String, String> percentiles) {
+        int count = 0;
+        double sum = 0;
+        double mean = 0;
+        double m2 = 0;
+        double min = 0;
+        double max = 0;
+        for (Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                if (stripe.count == 0) {
+                    continue;
+                }
+
+                if (count == 0) {
+                    min = stripe.min;
+                    max = stripe.max;
+                } else {
+                    min = Math.min(min, stripe.min);
+                    max = Math.max(max, stripe.max);
+                }
+                // combine the statistics of both parts (Chan et al.)
+                int total = count + stripe.count;
+                double delta = stripe.mean - mean;
+                mean += delta * stripe.count / total;
+                m2 += stripe.m2 + delta * delta * count * stripe.count / total;
+                sum += stripe.sum;
+                count = total;
+                stripe.reset();
+            }
+        }
+
+        double[] estimates = null;
+        if (this.sketch != null) {
+            synchronized (this.sketch) {
+                if (count > 0 && percentiles != null) {
+                    estimates = new double[PERCENTILES.length];
+                    for (int i = 0; i < PERCENTILES.length; i++) {
+                        estimates[i] = this.sketch.getQuantile(PERCENTILES[i]);
+                    }
+                }
+                this.sketch.clear();
+            }
+        }
+
+        if (count == 0) {
+            return null;
+        }
+
+        DataPoint dataPoint = new DataPoint();
+        dataPoint.setName(this.name);
+        dataPoint.setKind(DataPointType.AGGREGATION);
+        dataPoint.setValue(sum);
+        dataPoint.setCount(count);
+        dataPoint.setMin(min);
+        dataPoint.setMax(max);
+        dataPoint.setStdDev(Math.sqrt(m2 / count));
+
+        if (estimates != null) {
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                // the estimate may be off by the accuracy of the sketch, stay within the values
+                double estimate = Math.max(min, Math.min(max, estimates[i]));
+                percentiles.put(PERCENTILE_NAMES[i], String.valueOf(estimate));
+            }
+        }
+        return dataPoint;
+    }
+
+    /**
+     * Retire the series if it isn't pinned and no value has been recorded since the last
+     * aggregate has been taken.
+     *
+     * @return true if the series has been retired
+     */
+    protected boolean retireIfIdle() {
+        return this.retireIfIdle(0);
+    }
+
+    /**
+     * Lock the stripes from the given index on, so no value can be recorded while the series is
+     * checked.
+     */
+    private boolean retireIfIdle(int index) {
+        if (index == this.stripes.length) {
+            if (this.isPinned) {
+                return false;
+            }
+            for (Stripe stripe : this.stripes) {
+                if (stripe.count > 0) {
+                    return false;
+                }
+            }
+            this.isRetired = true;
+            for (Stripe stripe : this.stripes) {
+                stripe.isRetired = true;
+            }
+            return true;
+        }
+
+        synchronized (this.stripes[index]) {
+            return this.retireIfIdle(index + 1);
+        }
+    }
+
+    /**
+     * @return the smallest power of two which is at least the number of processors, at most
+     * MAX_STRIPE_COUNT
+     */
+    private static int stripeCount(int processors) {
+        int count = 1;
+        while (count < processors && count < MAX_STRIPE_COUNT) {
+            count <<= 1;
+        }
+        return count;
+    }
+
+    /**
+     * The running statistics (Welford) of the values recorded into one stripe, guarded by the
+     * stripe's lock
+     */
+    private static class Stripe {
+
+        private int count;
+
+        private double sum;
+
+        private double mean;
+
+        /**
+         * The sum of squared differences from the mean
+         */
+        private double m2;
+
+        private double min;
+
+        private double max;
+
+        /**
+         * Mirrors the retired flag of the series, so recording needs a single lock
+         */
+        private boolean isRetired;
+
+        void add(double value) {
+            this.count++;
+            this.sum += value;
+            double delta = value - this.mean;
+            this.mean += delta / this.count;
+            this.m2 += delta * (value - this.mean);
+            if (this.count == 1) {
+                this.min = value;
+                this.max = value;
+            } else {
+                this.min = Math.min(this.min, value);
+                this.max = Math.max(this.max, value);
+            }
+        }
+
+        void reset() {
+            this.count = 0;
+            this.sum = 0;
+            this.mean = 0;
+            this.m2 = 0;
+        }
+    }
+}
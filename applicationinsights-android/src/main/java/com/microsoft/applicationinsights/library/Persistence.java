@@ -2,17 +2,28 @@ package com.microsoft.applicationinsights.library;
 
 import android.content.Context;
 
+import com.microsoft.applicationinsights.library.config.EvictionPolicy;
+import com.microsoft.applicationinsights.library.config.IPersistenceConfig;
 import com.microsoft.applicationinsights.logging.InternalLogging;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 class Persistence {
 
@@ -24,17 +35,62 @@ class Persistence {
     /**
      * Synchronization LOCK for setting static context
      */
-    private static final Object LOCK = new Object();
+    protected static final Object LOCK = new Object();
 
-    private static final String AI_SDK_DIRECTORY = "/com.microsoft.applicationinsights";
+    protected static final String AI_SDK_DIRECTORY = "/com.microsoft.applicationinsights";
 
-    private static final String HIGH_PRIO_DIRECTORY = "/highpriority/";
+    protected static final String HIGH_PRIO_DIRECTORY = "/highpriority/";
 
-    private static final String REGULAR_PRIO_DIRECTORY = "/regularpriority/";
+    protected static final String REGULAR_PRIO_DIRECTORY = "/regularpriority/";
 
-    private static final Integer MAX_FILE_COUNT = 50;
+    protected static final Integer MAX_FILE_COUNT = 50;
 
-    private final ArrayList<File> servedFiles;
+    /**
+     * The two magic bytes every gzip stream starts with
+     */
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    /**
+     * The key preceding the base type of a serialized envelope
+     */
+    private static final String BASE_TYPE_KEY = "\"baseType\":\"";
+
+    /**
+     * The configuration of the storage quota
+     */
+    protected IPersistenceConfig config;
+
+    /**
+     * The number of bytes which have been dropped because the storage quota was exhausted
+     */
+    private final AtomicLong evictedBytes;
+
+    /**
+     * The number of telemetry items which have been dropped because the storage quota was exhausted
+     */
+    private final AtomicLong evictedItemCount;
+
+    /**
+     * The pending files of the high priority directory
+     */
+    private final PersistenceIndex highPriorityIndex;
+
+    /**
+     * The pending files of the regular priority directory
+     */
+    private final PersistenceIndex regularPriorityIndex;
+
+    /**
+     * The reusable buffers used to assemble batches before writing them to disk, one per thread so
+     * threads which persist batches don't wait for each other's disk writes
+     */
+    private final ThreadLocal<BatchBuffer> batchBuffer;
+
+    /**
+     * If true, batches are stored gzip-compressed so they can be sent without compressing them
+     * again on every attempt
+     */
+    private volatile boolean compressionEnabled;
 
     /**
      * The tag for logging
@@ -58,8 +114,22 @@ class Persistence {
      */
     protected Persistence(Context context) {
         this.weakContext = new WeakReference<Context>(context);
+        this.config = ApplicationInsights.getConfiguration();
+        this.evictedBytes = new AtomicLong(0);
+        this.evictedItemCount = new AtomicLong(0);
         createDirectoriesIfNecessary();
-        this.servedFiles = new ArrayList<File>(51);
+        String filesDirPath = context.getFilesDir().getPath();
+        this.highPriorityIndex = new PersistenceIndex(
+              new File(filesDirPath + AI_SDK_DIRECTORY + HIGH_PRIO_DIRECTORY));
+        this.regularPriorityIndex = new PersistenceIndex(
+              new File(filesDirPath + AI_SDK_DIRECTORY + REGULAR_PRIO_DIRECTORY));
+        this.batchBuffer = new ThreadLocal<BatchBuffer>() {
+            @Override
+            protected BatchBuffer initialValue() {
+                return new BatchBuffer();
+            }
+        };
+        this.compressionEnabled = true;
     }
 
     /**
@@ -73,7 +143,11 @@ class Persistence {
             synchronized (Persistence.LOCK) {
                 if (!Persistence.isPersistenceLoaded) {
                     Persistence.isPersistenceLoaded = true;
-                    Persistence.instance = new Persistence(context);
+                    if (ApplicationInsights.getConfiguration().isSegmentedStorageEnabled()) {
+                        Persistence.instance = new SegmentedLogPersistence(context);
+                    } else {
+                        Persistence.instance = new Persistence(context);
+                    }
                 }
             }
         }
@@ -91,32 +165,78 @@ class Persistence {
     }
 
     /**
-     * Serializes a IJsonSerializable[] and calls:
+     * Encodes the serialized items as UTF-8 into a JSON stream and calls:
      *
      * @param data         the data to save to disk
      * @param highPriority the priority to save the data with
-     * @see Persistence#writeToDisk(String, Boolean)
+     * @see Persistence#writeToDisk(ByteBuffer, Boolean)
      */
     protected void persist(String[] data, Boolean highPriority) {
+        boolean isSuccess = false;
+        boolean isRejected = false;
+        BatchBuffer buffer = this.batchBuffer.get();
+        Set<String> types = this.config.getEvictionPolicy() == EvictionPolicy.DropByType
+              ? new HashSet<String>() : null;
+        int itemCount = assemble(buffer, data, types);
+
         if (!this.isFreeSpaceAvailable(highPriority)) {
             InternalLogging.warn(TAG, "No free space on disk to flush data.");
-            Sender.getInstance().sendNextFile();
-        }else{
-            StringBuilder buffer = new StringBuilder();
-            Boolean isSuccess;
-            for (String aData : data) {
+            this.onEvicted(buffer.size(), itemCount);
+            isRejected = true;
+        } else {
+            isSuccess = this.writeToDisk(buffer.toByteBuffer(), highPriority, itemCount, types);
+        }
+
+        Sender sender = Sender.getInstance();
+        if (sender != null && (isRejected || (isSuccess && !highPriority))) {
+            sender.sendNextFile();
+        }
+    }
+
+    /**
+     * Saves the serialized items to a batch file of their own, also if batches are appended to a
+     * log otherwise, so the sender can keep track of the file. The sender isn't triggered.
+     *
+     * @param data         the data to save to disk
+     * @param highPriority the priority to save the data with
+     * @return the file or null if it couldn't be written
+     */
+    protected File persistToFile(String[] data, Boolean highPriority) {
+        BatchBuffer buffer = this.batchBuffer.get();
+        Set<String> types = this.config.getEvictionPolicy() == EvictionPolicy.DropByType
+              ? new HashSet<String>() : null;
+        int itemCount = assemble(buffer, data, types);
+
+        if (!this.isFreeSpaceAvailable(highPriority)) {
+            InternalLogging.warn(TAG, "No free space on disk to flush data.");
+            this.onEvicted(buffer.size(), itemCount);
+            return null;
+        }
+        return this.writeToFile(buffer.toByteBuffer(), highPriority, itemCount, types);
+    }
+
+    /**
+     * Encodes the serialized items into a batch buffer as JSON stream.
+     *
+     * @param buffer the buffer of the calling thread
+     * @param data   the serialized items, null items are skipped
+     * @param types  the set which the base types of the items are added to, may be null
+     * @return the number of items in the batch buffer
+     */
+    private static int assemble(BatchBuffer buffer, String[] data, Set<String> types) {
+        int itemCount = 0;
+        buffer.clear();
+        for (String aData : data) {
+            if (aData != null) {
                 buffer.append('\n');
                 buffer.append(aData);
-            }
-            String serializedData = buffer.toString();
-            isSuccess = this.writeToDisk(serializedData, highPriority);
-            if (isSuccess) {
-                Sender sender = Sender.getInstance();
-                if (sender != null && !highPriority) {
-                    Sender.getInstance().sendNextFile();
+                itemCount++;
+                if (types != null) {
+                    types.add(getBaseType(aData));
                 }
             }
         }
+        return itemCount;
     }
 
     /**
@@ -127,25 +247,97 @@ class Persistence {
      * @return true if the operation was successful, false otherwise
      */
     protected boolean writeToDisk(String data, Boolean highPriority) {
+        BatchBuffer buffer = this.batchBuffer.get();
+        buffer.clear();
+        buffer.append(data);
+        return this.writeToDisk(buffer.toByteBuffer(), highPriority);
+    }
+
+    /**
+     * Saves UTF-8 encoded data of unknown content to disk.
+     *
+     * @param data         the bytes to save, from the buffer's position to its limit. Must be
+     *                     backed by an array.
+     * @param highPriority the priority we want to use for persisting the data
+     * @return true if the operation was successful, false otherwise
+     * @see Persistence#writeToDisk(ByteBuffer, Boolean, int, Set)
+     */
+    protected boolean writeToDisk(ByteBuffer data, Boolean highPriority) {
+        return this.writeToDisk(data, highPriority, -1, null);
+    }
+
+    /**
+     * Saves UTF-8 encoded data to disk, in the compact record format if it is enabled and
+     * gzip-compressed if compression is enabled. Older files are evicted afterwards if the storage
+     * quota of the priority is exceeded.
+     *
+     * @param data         the bytes to save, from the buffer's position to its limit. Must be
+     *                     backed by an array.
+     * @param highPriority the priority we want to use for persisting the data
+     * @param itemCount    the number of telemetry items in the data, -1 if unknown
+     * @param types        the base types of the telemetry items in the data, null if unknown
+     * @return true if the operation was successful, false otherwise
+     */
+    protected boolean writeToDisk(ByteBuffer data, Boolean highPriority, int itemCount, Set<String> types) {
+        return this.writeToFile(data, highPriority, itemCount, types) != null;
+    }
+
+    /**
+     * Saves UTF-8 encoded data to a new batch file, see
+     * {@link Persistence#writeToDisk(ByteBuffer, Boolean, int, Set)}.
+     *
+     * @param data         the bytes to save, from the buffer's position to its limit. Must be
+     *                     backed by an array.
+     * @param highPriority the priority we want to use for persisting the data
+     * @param itemCount    the number of telemetry items in the data, -1 if unknown
+     * @param types        the base types of the telemetry items in the data, null if unknown
+     * @return the file or null if it couldn't be written
+     */
+    protected File writeToFile(ByteBuffer data, Boolean highPriority, int itemCount, Set<String> types) {
         String uuid = UUID.randomUUID().toString();
-        Boolean isSuccess = false;
+        File file = null;
         Context context = this.getContext();
         if (context != null) {
-            FileOutputStream outputStream = null;
+            if (this.config.isCompactRecordFormatEnabled()) {
+                data = CompactRecordFormat.encode(data);
+            }
+
+            OutputStream outputStream = null;
             try {
                 File filesDir = getContext().getFilesDir();
+                FileOutputStream fileStream;
                 if (highPriority) {
                     filesDir = new File(filesDir + AI_SDK_DIRECTORY + HIGH_PRIO_DIRECTORY + uuid);
-                    outputStream = new FileOutputStream(filesDir, true);
+                    fileStream = new FileOutputStream(filesDir, true);
                     InternalLogging.warn(TAG, "Saving data" + "HIGH PRIO");
                 } else {
                     filesDir = new File(filesDir + AI_SDK_DIRECTORY + REGULAR_PRIO_DIRECTORY + uuid);
-                    outputStream = new FileOutputStream(filesDir, true);
+                    fileStream = new FileOutputStream(filesDir, true);
                     InternalLogging.warn(TAG, "Saving data" + "REGULAR PRIO");
                 }
-                outputStream.write(data.getBytes());
+                outputStream = fileStream;
+                if (this.compressionEnabled) {
+                    GZIPOutputStream gzip = new GZIPOutputStream(fileStream);
+                    outputStream = gzip;
+                    gzip.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                    gzip.finish();
+                } else {
+                    FileChannel channel = fileStream.getChannel();
+                    while (data.hasRemaining()) {
+                        channel.write(data);
+                    }
+                }
+
+                outputStream.close();
+                outputStream = null;
+                // only serve the file once it has been written completely
+                synchronized (Persistence.LOCK) {
+                    PersistenceIndex index = this.getIndex(highPriority);
+                    index.add(filesDir, filesDir.length(), itemCount, types);
+                    this.enforceQuota(index);
+                }
 
-                isSuccess = true;
+                file = filesDir;
                 InternalLogging.warn(TAG, "Saved data");
             } catch (Exception e) {
                 //Do nothing
@@ -161,7 +353,7 @@ class Persistence {
             }
         }
 
-        return isSuccess;
+        return file;
     }
 
     /**
@@ -175,15 +367,14 @@ class Persistence {
         if (file != null) {
             BufferedReader reader = null;
             try {
-                FileInputStream inputStream = new FileInputStream(file);
-                InputStreamReader streamReader = new InputStreamReader(inputStream);
+                InputStreamReader streamReader = new InputStreamReader(this.openJsonStream(file), "UTF-8");
                 reader = new BufferedReader(streamReader);
                 //comment: we can't use BufferedReader's readline() as this removes linebreaks that
                 //are required for JSON stream
-                int c;
-                while ((c = reader.read()) != -1) {
-                    //Cast c to char. As it's not -1, we won't get a problem
-                    buffer.append((char) c);
+                char[] chars = new char[4096];
+                int count;
+                while ((count = reader.read(chars)) != -1) {
+                    buffer.append(chars, 0, count);
                 }
             } catch (Exception e) {
                 InternalLogging.warn(TAG, "Error reading telemetry data from file with exception message "
@@ -205,91 +396,150 @@ class Persistence {
     }
 
     /**
-     * Get a reference to the next available file. High priority is served before regular priority.
+     * Opens a file as a UTF-8 encoded JSON stream, regardless of whether it has been stored
+     * gzip-compressed or in the compact record format. Compact records are rendered while the
+     * stream is read.
      *
-     * @return the next available file.
+     * @param file reference to a file on disk
+     * @return the stream, which must be closed by the caller
+     * @throws IOException if the file can't be opened
      */
-    protected File nextAvailableFile() {
-        synchronized (Persistence.LOCK) {
-            File file = this.nextHighPrioFile();
-            if (file != null) {
-                return file;
-            } else {
-                InternalLogging.info(TAG, "High prio file was empty", "(That's the default if no crashes present");
-                return this.nextRegularPrioFile();
+    protected InputStream openJsonStream(File file) throws IOException {
+        boolean isCompressed = this.isCompressed(file);
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            if (isCompressed) {
+                inputStream = new GZIPInputStream(inputStream);
+            }
+            inputStream = new BufferedInputStream(inputStream);
+            inputStream.mark(CompactRecordFormat.MAGIC.length);
+            if (isCompactRecord(inputStream)) {
+                return new CompactRecordFormat.Decoder(inputStream);
             }
-        }
 
+            inputStream.reset();
+            return inputStream;
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
     }
 
-
-    private File nextHighPrioFile() {
-        Context context = getContext();
-        if (context != null) {
-            String path = context.getFilesDir() + AI_SDK_DIRECTORY + HIGH_PRIO_DIRECTORY;
-            File directory = new File(path);
-            InternalLogging.info(TAG, "Returning High Prio File: ", path);
-
-            return this.nextAvailableFileInDirectory(directory);
+    /**
+     * Checks whether a file has been stored in the compact record format. Such files have to be
+     * rendered to JSON before they are sent, even if they have been compressed.
+     *
+     * @param file reference to a file on disk
+     * @return true if the file contains a compact record
+     */
+    protected boolean isCompact(File file) {
+        boolean isCompact = false;
+        if (file != null) {
+            InputStream inputStream = null;
+            try {
+                inputStream = new FileInputStream(file);
+                if (this.isCompressed(file)) {
+                    inputStream = new GZIPInputStream(inputStream);
+                }
+                isCompact = isCompactRecord(inputStream);
+            } catch (IOException e) {
+                InternalLogging.warn(TAG, "Error reading telemetry file header " + e.getMessage());
+            } finally {
+                if (inputStream != null) {
+                    try {
+                        inputStream.close();
+                    } catch (IOException e) {
+                        InternalLogging.warn(TAG, "Error closing stream." + e.getMessage());
+                    }
+                }
+            }
         }
 
-        InternalLogging.warn(TAG, "Couldn't provide next file, the context for persistence is null");
-        return null;
+        return isCompact;
     }
 
-
-    private File nextRegularPrioFile() {
-        Context context = getContext();
-        if (context != null) {
-            String path = context.getFilesDir() + AI_SDK_DIRECTORY + REGULAR_PRIO_DIRECTORY;
-            File directory = new File(path);
-            InternalLogging.info(TAG, "Returning Regular Prio File: " + path);
-            return this.nextAvailableFileInDirectory(directory);
+    /**
+     * Reads the magic bytes of the compact record format.
+     *
+     * @param inputStream the uncompressed content of a file
+     * @return true if the content is a compact record
+     * @throws IOException if the stream can't be read
+     */
+    private static boolean isCompactRecord(InputStream inputStream) throws IOException {
+        byte[] header = new byte[CompactRecordFormat.MAGIC.length];
+        int count = 0;
+        while (count < header.length) {
+            int read = inputStream.read(header, count, header.length - count);
+            if (read < 0) {
+                break;
+            }
+            count += read;
         }
 
-        InternalLogging.warn(TAG, "Couldn't provide next file, the context for persistence is null");
-        return null;
+        return CompactRecordFormat.isCompact(header, count);
     }
 
     /**
-     * @param directory reference to the directory
-     * @return reference to the next available file, null if no file is available
+     * Checks whether a file has been stored gzip-compressed. Files written before compression was
+     * introduced are plain JSON streams.
+     *
+     * @param file reference to a file on disk
+     * @return true if the file starts with the gzip magic bytes
      */
-    private File nextAvailableFileInDirectory(File directory) {
-        synchronized (Persistence.LOCK) {
-            if (directory != null) {
-                File[] files = directory.listFiles();
-                File file;
-
-                if ((files != null) && (files.length > 0)) {
-                    for (int i = 0; i <= files.length - 1; i++) {
-                        InternalLogging.info(TAG, "The directory " + directory.toString(), " ITERATING over " + files.length + " files");
-
-                        file = files[i];
-                        InternalLogging.info(TAG, "The directory " + file.toString(), " FOUND");
-
-                        if (!this.servedFiles.contains(file)) {
-                            InternalLogging.info(TAG, "The directory " + file.toString(), " ADDING TO SERVED AND RETURN");
-
-                            this.servedFiles.add(file);
-                            return file;//we haven't served the file, return it
-                        } else {
-                            InternalLogging.info(TAG, "The directory " + file.toString(), " WAS ALREADY SERVED");
-                        }
+    protected boolean isCompressed(File file) {
+        boolean isCompressed = false;
+        if (file != null) {
+            FileInputStream inputStream = null;
+            try {
+                inputStream = new FileInputStream(file);
+                int magic = inputStream.read() | (inputStream.read() << 8);
+                isCompressed = (magic == GZIP_MAGIC);
+            } catch (IOException e) {
+                InternalLogging.warn(TAG, "Error reading telemetry file header " + e.getMessage());
+            } finally {
+                if (inputStream != null) {
+                    try {
+                        inputStream.close();
+                    } catch (IOException e) {
+                        InternalLogging.warn(TAG, "Error closing stream." + e.getMessage());
                     }
                 }
-                InternalLogging.info(TAG, "The directory " + directory.toString(), " NO FILES");
-
             }
-            if(directory != null) {
-                InternalLogging.info(TAG, "The directory " + directory.toString(), "Did not contain any unserved files");
+        }
+
+        return isCompressed;
+    }
+
+    /**
+     * Checks whether a file or segment has been stored with high priority.
+     *
+     * @param file reference to a file on disk
+     * @return true if the file is in a high priority directory
+     */
+    protected boolean isHighPriority(File file) {
+        return file != null && file.getPath().contains(HIGH_PRIO_DIRECTORY);
+    }
+
+    /**
+     * Get a reference to the next available file. High priority is served before regular priority,
+     * the oldest file of a priority is served first.
+     *
+     * @return the next available file.
+     */
+    protected File nextAvailableFile() {
+        synchronized (Persistence.LOCK) {
+            File file = this.highPriorityIndex.reserve();
+            if (file == null) {
+                InternalLogging.info(TAG, "High prio file was empty", "(That's the default if no crashes present");
+                file = this.regularPriorityIndex.reserve();
             }
-            return null; //no files in directory or no directory
+
+            return file;
         }
     }
 
     /**
-     * delete a file from disk and remove it from the list of served files if deletion was successful
+     * delete a file from disk and remove it from the index if deletion was successful
      *
      * @param file reference to the file we want to delete
      */
@@ -298,11 +548,13 @@ class Persistence {
             synchronized (Persistence.LOCK) {
                 // always delete the file
                 boolean deletedFile = file.delete();
-                if (!deletedFile) {
+                if (!deletedFile && file.exists()) {
                     InternalLogging.warn(TAG, "Error deleting telemetry file " + file.toString());
                 } else {
                     InternalLogging.info(TAG, "Successfully deleted telemetry file ", file.toString());
-                    servedFiles.remove(file);
+                    if (this.highPriorityIndex.remove(file) == null) {
+                        this.regularPriorityIndex.remove(file);
+                    }
                 }
             }
         } else {
@@ -317,33 +569,128 @@ class Persistence {
      */
     protected void makeAvailable(File file) {
         synchronized (Persistence.LOCK) {
-            if (file != null) {
-                servedFiles.remove(file);
+            if (file != null && !this.highPriorityIndex.release(file)) {
+                this.regularPriorityIndex.release(file);
             }
         }
     }
 
     /**
-     * Check if we haven't reached MAX_FILE_COUNT yet
+     * Check if new data can be stored. Unless the eviction policy drops new data, older files are
+     * evicted to make room, otherwise MAX_FILE_COUNT and the storage quota must not have been
+     * reached yet. This only checks the in-memory index, so it is cheap enough to be called for
+     * every telemetry item.
      *
      * @param highPriority indicates which directory to check for available files
      */
     protected Boolean isFreeSpaceAvailable(Boolean highPriority) {
         synchronized (Persistence.LOCK) {
-            Context context = getContext();
-            if (context != null) {
-                String path = highPriority ? (context.getFilesDir() + AI_SDK_DIRECTORY + HIGH_PRIO_DIRECTORY) :
-                      (getContext().getFilesDir() + AI_SDK_DIRECTORY + REGULAR_PRIO_DIRECTORY);
-                if(path != null && (path.length() > 0)) {
-                    File dir = new File(path);
-                    if(dir != null) {
-                        return (dir.listFiles().length < MAX_FILE_COUNT);
-                    }
-                }
+            if (this.getContext() == null) {
+                return false;
+            } else if (this.config.getEvictionPolicy() != EvictionPolicy.DropNewest) {
+                return true;
+            }
+
+            PersistenceIndex index = this.getIndex(highPriority);
+            return index.size() < MAX_FILE_COUNT
+                  && index.byteCount() < this.config.getMaxPersistenceBytes();
+        }
+    }
+
+    /**
+     * Evict files according to the eviction policy until the index is within MAX_FILE_COUNT and
+     * the storage quota. Must be called while holding the LOCK.
+     *
+     * @param index the index of the priority which has grown
+     */
+    private void enforceQuota(PersistenceIndex index) {
+        EvictionPolicy policy = this.config.getEvictionPolicy();
+        if (policy == EvictionPolicy.DropNewest) {
+            return;
+        }
+
+        Set<String> evictableTypes = policy == EvictionPolicy.DropByType
+              ? this.config.getEvictableTypes() : null;
+        long maxBytes = this.config.getMaxPersistenceBytes();
+        while (index.size() > MAX_FILE_COUNT || index.byteCount() > maxBytes) {
+            PersistenceIndex.Entry entry = index.evictionCandidate(evictableTypes);
+            if (entry == null) {
+                // all remaining files are being sent
+                break;
             }
 
-            return false;
+            // files of a previous process aren't read to count their items, evicting them must
+            // not stall other threads which wait for the lock
+            index.remove(entry.file);
+            if (!entry.file.delete()) {
+                InternalLogging.warn(TAG, "Error deleting evicted file " + entry.file.toString());
+            }
+            this.onEvicted(entry.size, entry.itemCount);
+        }
+    }
+
+    /**
+     * Count data which has been dropped because the storage quota was exhausted.
+     *
+     * @param bytes     the number of dropped bytes
+     * @param itemCount the number of dropped telemetry items, -1 if unknown
+     */
+    protected void onEvicted(long bytes, int itemCount) {
+        long totalBytes = this.evictedBytes.addAndGet(bytes);
+        long totalItems = this.evictedItemCount.addAndGet(Math.max(0, itemCount));
+        String dropped = itemCount >= 0 ? itemCount + " items" : "a file of a previous process";
+        InternalLogging.warn(TAG, "Storage quota exhausted, dropped " + dropped + " ("
+              + bytes + " bytes), " + totalItems + " items (" + totalBytes + " bytes) in total");
+    }
+
+    /**
+     * Get the base type of a serialized envelope without parsing it.
+     *
+     * @param serializedEnvelope the serialized envelope
+     * @return the base type, e.g. "EventData", or an empty string if it can't be found
+     */
+    protected static String getBaseType(String serializedEnvelope) {
+        int start = serializedEnvelope.indexOf(BASE_TYPE_KEY);
+        if (start < 0) {
+            return "";
         }
+
+        start += BASE_TYPE_KEY.length();
+        int end = serializedEnvelope.indexOf('"', start);
+        return end < 0 ? "" : serializedEnvelope.substring(start, end);
+    }
+
+    /**
+     * @return the number of bytes which have been dropped because the storage quota was exhausted
+     */
+    protected long getEvictedBytes() {
+        return this.evictedBytes.get();
+    }
+
+    /**
+     * @return the number of telemetry items which have been dropped because the storage quota was
+     * exhausted, not including the items of evicted files which have been written by a previous
+     * process
+     */
+    protected long getEvictedItemCount() {
+        return this.evictedItemCount.get();
+    }
+
+    /**
+     * Set the configuration of the storage quota (enables dependency injection).
+     *
+     * @param config the configuration to use
+     */
+    protected void setPersistenceConfig(IPersistenceConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * @param highPriority the priority of the index
+     * @return the index of the directory with the given priority
+     */
+    private PersistenceIndex getIndex(Boolean highPriority) {
+        return highPriority ? this.highPriorityIndex : this.regularPriorityIndex;
     }
 
     /**
@@ -373,12 +720,22 @@ class Persistence {
         }
     }
 
+    /**
+     * Enable or disable storing batches gzip-compressed. Files which have already been written are
+     * read correctly in both modes.
+     *
+     * @param compressionEnabled if true, batches will be compressed before they are written
+     */
+    protected void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
     /**
      * Retrieves the weak context reference
      *
      * @return the context object for this instance
      */
-    private Context getContext() {
+    protected Context getContext() {
         Context context = null;
         if (weakContext != null) {
             context = weakContext.get();
@@ -0,0 +1,223 @@
+package com.microsoft.applicationinsights.library;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An in-memory index of the pending files of one priority directory. The directory is listed once
+ * when the index is created, afterwards files are served oldest first without touching the file
+ * system. The index keeps track of the number of bytes it holds, so a storage quota can be checked
+ * without listing the directory. Instances are not thread-safe, {@link Persistence} guards them
+ * with its lock.
+ */
+class PersistenceIndex {
+
+    /**
+     * Files which can be served, ordered by the time they have been added
+     */
+    private final TreeMap<Long, Entry> availableFiles;
+
+    /**
+     * Files which have been served and neither been deleted nor released, yet. The entry keeps the
+     * position of the file, so it keeps its place when it is released.
+     */
+    private final Map<File, Entry> reservedFiles;
+
+    /**
+     * The position of the next file which is added
+     */
+    private long nextPosition;
+
+    /**
+     * The size of all indexed files in bytes
+     */
+    private long byteCount;
+
+    /**
+     * Create an index of the files in the given directory
+     *
+     * @param directory the directory to index, may be null
+     */
+    protected PersistenceIndex(File directory) {
+        this.availableFiles = new TreeMap<Long, Entry>();
+        this.reservedFiles = new HashMap<File, Entry>();
+        this.nextPosition = 0;
+        this.byteCount = 0;
+
+        File[] files = directory == null ? null : directory.listFiles();
+        if (files != null) {
+            // file names are random, the modification time is the best guess for the creation time
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    long difference = lhs.lastModified() - rhs.lastModified();
+                    return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+                }
+            });
+            for (File file : files) {
+                if (file.isFile()) {
+                    this.add(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a file of which the content is unknown.
+     *
+     * @param file the file to add
+     */
+    protected void add(File file) {
+        this.add(file, file.length(), -1, null);
+    }
+
+    /**
+     * Add a file which has just been written.
+     *
+     * @param file      the new file
+     * @param size      the size of the file in bytes
+     * @param itemCount the number of telemetry items in the file, -1 if unknown
+     * @param types     the base types of the telemetry items in the file, null if unknown
+     */
+    protected void add(File file, long size, int itemCount, Set<String> types) {
+        Entry entry = new Entry(file, this.nextPosition++, size, itemCount, types);
+        this.availableFiles.put(entry.position, entry);
+        this.byteCount += size;
+    }
+
+    /**
+     * Serve the oldest available file.
+     *
+     * @return the file, which is reserved until it is removed or released, or null if no file is
+     * available
+     */
+    protected File reserve() {
+        Map.Entry<Long, Entry> first = this.availableFiles.pollFirstEntry();
+        if (first == null) {
+            return null;
+        }
+
+        Entry entry = first.getValue();
+        this.reservedFiles.put(entry.file, entry);
+        return entry.file;
+    }
+
+    /**
+     * Make a reserved file available again.
+     *
+     * @param file the reserved file
+     * @return true if the file has been reserved
+     */
+    protected boolean release(File file) {
+        Entry entry = this.reservedFiles.remove(file);
+        if (entry == null) {
+            return false;
+        }
+
+        this.availableFiles.put(entry.position, entry);
+        return true;
+    }
+
+    /**
+     * Remove a file from the index.
+     *
+     * @param file the file which has been deleted
+     * @return the entry of the file or null if the file hasn't been indexed
+     */
+    protected Entry remove(File file) {
+        Entry entry = this.reservedFiles.remove(file);
+        if (entry == null) {
+            for (Entry available : this.availableFiles.values()) {
+                if (available.file.equals(file)) {
+                    entry = this.availableFiles.remove(available.position);
+                    break;
+                }
+            }
+        }
+
+        if (entry != null) {
+            this.byteCount -= entry.size;
+        }
+        return entry;
+    }
+
+    /**
+     * Find the file which should be evicted to make room for new files. Reserved files are being
+     * sent and are never evicted.
+     *
+     * @param evictableTypes if not null, the oldest file which only contains these types is
+     *                       preferred
+     * @return the entry of the file to evict or null if no file is available
+     */
+    protected Entry evictionCandidate(Set<String> evictableTypes) {
+        if (evictableTypes != null) {
+            for (Entry entry : this.availableFiles.values()) {
+                if (entry.types != null && !entry.types.isEmpty()
+                      && evictableTypes.containsAll(entry.types)) {
+                    return entry;
+                }
+            }
+        }
+
+        Map.Entry<Long, Entry> oldest = this.availableFiles.firstEntry();
+        return oldest == null ? null : oldest.getValue();
+    }
+
+    /**
+     * @return the number of indexed files, including reserved files
+     */
+    protected int size() {
+        return this.availableFiles.size() + this.reservedFiles.size();
+    }
+
+    /**
+     * @return the size of all indexed files in bytes, including reserved files
+     */
+    protected long byteCount() {
+        return this.byteCount;
+    }
+
+    /**
+     * A file in the index
+     */
+    static class Entry {
+
+        /**
+         * The indexed file
+         */
+        final File file;
+
+        /**
+         * The position of the file in the order files are served
+         */
+        final long position;
+
+        /**
+         * The size of the file in bytes
+         */
+        final long size;
+
+        /**
+         * The number of telemetry items in the file, -1 if unknown
+         */
+        final int itemCount;
+
+        /**
+         * The base types of the telemetry items in the file, null if unknown
+         */
+        final Set<String> types;
+
+        Entry(File file, long position, long size, int itemCount, Set<String> types) {
+            this.file = file;
+            this.position = position;
+            this.size = size;
+            this.itemCount = itemCount;
+            this.types = types;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.microsoft.applicationinsights.library;
+
+/**
+ * A mergeable quantile sketch with bounded memory. Values are counted in logarithmic buckets, so
+ * every quantile is estimated with a relative error of at most {@link #RELATIVE_ACCURACY}. The
+ * sketch keeps a window of {@link #BUCKET_COUNT} adjacent buckets, which covers a factor of more
+ * than 10000 between the smallest and the largest value. If values exceed the window, the lowest
+ * buckets are collapsed, so only the accuracy of low quantiles suffers. Values which are zero or
+ * negative are counted as zero, NaN and infinite values aren't counted. The sketch isn't thread
+ * safe.
+ */
+class QuantileSketch {
+
+    /**
+     * The maximum relative error of an estimated quantile
+     */
+    protected static final double RELATIVE_ACCURACY = 0.02;
+
+    /**
+     * The number of buckets, the counts take 1 KB
+     */
+    protected static final int BUCKET_COUNT = 256;
+
+    /**
+     * The ratio between the bounds of a bucket
+     */
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+
+    /**
+     * Values below this are counted as zero, which keeps indexes in the range of int
+     */
+    private static final double MIN_INDEXED_VALUE = 1e-9;
+
+    /**
+     * The counts of the buckets, counts[i] belongs to the bucket offset + i
+     */
+    private final int[] counts;
+
+    /**
+     * The index of the bucket counts[0] belongs to, valid if there are indexed values
+     */
+    private int offset;
+
+    /**
+     * The number of values in the buckets
+     */
+    private long indexedCount;
+
+    /**
+     * The number of values which are counted as zero
+     */
+    private long zeroCount;
+
+    protected QuantileSketch() {
+        this.counts = new int[BUCKET_COUNT];
+    }
+
+    /**
+     * Add a value, which doesn't allocate.
+     *
+     * @param value the value
+     */
+    protected void add(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return;
+        }
+        if (value < MIN_INDEXED_VALUE) {
+            this.zeroCount++;
+            return;
+        }
+
+        this.addToBucket(index(value), 1);
+    }
+
+    /**
+     * Add the values of another sketch to this one.
+     *
+     * @param other the sketch to merge, which isn't changed
+     */
+    protected void merge(QuantileSketch other) {
+        this.zeroCount += other.zeroCount;
+        if (other.indexedCount == 0) {
+            return;
+        }
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (other.counts[i] > 0) {
+                this.addToBucket(other.offset + i, other.counts[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the number of values in the sketch
+     */
+    protected long getCount() {
+        return this.indexedCount + this.zeroCount;
+    }
+
+    /**
+     * Estimate a quantile.
+     *
+     * @param quantile the quantile, between 0 and 1
+     * @return the estimated value, NaN if the sketch is empty
+     */
+    protected double getQuantile(double quantile) {
+        long count = this.getCount();
+        if (count == 0) {
+            return Double.NaN;
+        }
+
+        // the rank of the value, counting from zero
+        long rank = (long) (Math.max(0, Math.min(1, quantile)) * (count - 1));
+        if (rank < this.zeroCount) {
+            return 0;
+        }
+
+        long seen = this.zeroCount;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += this.counts[i];
+            if (seen > rank) {
+                return value(this.offset + i);
+            }
+        }
+        return value(this.offset + BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Remove all values.
+     */
+    protected void clear() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            this.counts[i] = 0;
+        }
+        this.indexedCount = 0;
+        this.zeroCount = 0;
+    }
+
+    private void addToBucket(int index, int count) {
+        if (this.indexedCount == 0) {
+            // center the window on the first value, so it can grow in both directions
+            this.offset = index - BUCKET_COUNT / 2;
+        } else if (index < this.offset) {
+            int lowest = this.highestNonEmpty() - BUCKET_COUNT + 1;
+            if (index < lowest) {
+                // the window can't cover the value, count it in the lowest bucket
+                index = lowest;
+            }
+            this.shift(index - this.offset);
+        } else if (index >= this.offset + BUCKET_COUNT) {
+            this.shift(index - BUCKET_COUNT + 1 - this.offset);
+        }
+
+        this.counts[index - this.offset] += count;
+        this.indexedCount += count;
+    }
+
+    /**
+     * Move the window by the given number of buckets. Counts which drop out at the low end are
+     * added to the new lowest bucket.
+     */
+    private void shift(int distance) {
+        if (distance > 0) {
+            int collapsed = 0;
+            for (int i = 0; i < Math.min(distance + 1, BUCKET_COUNT); i++) {
+                collapsed += this.counts[i];
+            }
+            if (distance >= BUCKET_COUNT) {
+                for (int i = 0; i < BUCKET_COUNT; i++) {
+                    this.counts[i] = 0;
+                }
+            } else {
+                System.arraycopy(this.counts, distance, this.counts, 0, BUCKET_COUNT - distance);
+                for (int i = BUCKET_COUNT - distance; i < BUCKET_COUNT; i++) {
+                    this.counts[i] = 0;
+                }
+            }
+            this.counts[0] = collapsed;
+        } else if (distance < 0) {
+            // the buckets at the high end are empty, see addToBucket
+            System.arraycopy(this.counts, 0, this.counts, -distance, BUCKET_COUNT + distance);
+            for (int i = 0; i < -distance; i++) {
+                this.counts[i] = 0;
+            }
+        }
+        this.offset += distance;
+    }
+
+    private int highestNonEmpty() {
+        for (int i = BUCKET_COUNT - 1; i > 0; i--) {
+            if (this.counts[i] > 0) {
+                return this.offset + i;
+            }
+        }
+        return this.offset;
+    }
+
+    private static int index(double value) {
+        return (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+    }
+
+    /**
+     * @return the estimate for the values of a bucket, which is within the relative accuracy of
+     * all of them
+     */
+    private static double value(int index) {
+        return 2 * Math.pow(GAMMA, index) / (GAMMA + 1);
+    }
+}
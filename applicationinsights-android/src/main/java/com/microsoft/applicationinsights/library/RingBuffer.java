@@ -0,0 +1,139 @@
+package com.microsoft.applicationinsights.library;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded multi-producer/single-consumer ring buffer. Producers claim a slot with a single CAS
+ * and never block, the consumer drains published items in batches. Each slot carries a sequence
+ * number which tells producers and the consumer whether the slot is free or holds a published
+ * item, so no lock is needed on either side.
+ *
+ * @param <T> the type of the buffered items
+ */
+class RingBuffer<T> {
+
+    /**
+     * The slots holding the buffered items
+     */
+    private final AtomicReferenceArray<T> slots;
+
+    /**
+     * The sequence number of each slot
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * Mask used to map a position to its slot, the capacity is always a power of two
+     */
+    private final int mask;
+
+    /**
+     * The next position a producer will claim
+     */
+    private final AtomicLong tail;
+
+    /**
+     * The next position the consumer will read, only written by the consumer
+     */
+    private final AtomicLong head;
+
+    /**
+     * Create a new ring buffer
+     *
+     * @param capacity the minimum number of items the buffer can hold, rounded up to a power of two
+     */
+    protected RingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        this.slots = new AtomicReferenceArray<T>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.tail = new AtomicLong(0);
+        this.head = new AtomicLong(0);
+    }
+
+    /**
+     * Adds an item to the buffer without blocking.
+     *
+     * @param item the item to add, must not be null
+     * @return true if the item was added, false if the buffer is full
+     */
+    protected boolean offer(T item) {
+        while (true) {
+            long position = this.tail.get();
+            int index = (int) (position & this.mask);
+            long difference = this.sequences.get(index) - position;
+
+            if (difference == 0) {
+                if (this.tail.compareAndSet(position, position + 1)) {
+                    this.slots.set(index, item);
+                    // publish the item to the consumer
+                    this.sequences.lazySet(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                // the consumer hasn't freed this slot yet
+                return false;
+            }
+            // another producer claimed this position, retry with the new tail
+        }
+    }
+
+    /**
+     * Moves up to {@code target.length} published items into the given array. Must only be called
+     * by one consumer at a time.
+     *
+     * @param target the array the items are copied to
+     * @return the number of items which have been copied
+     */
+    protected int drainTo(T[] target) {
+        int count = 0;
+        long position = this.head.get();
+        while (count < target.length) {
+            int index = (int) (position & this.mask);
+            if (this.sequences.get(index) != position + 1) {
+                // slot is empty or claimed but not published yet
+                break;
+            }
+
+            target[count++] = this.slots.get(index);
+            this.slots.set(index, null);
+            // hand the slot back to the producers for the next lap
+            this.sequences.lazySet(index, position + this.mask + 1);
+            position++;
+        }
+        this.head.set(position);
+
+        return count;
+    }
+
+    /**
+     * @return the number of claimed slots, this includes items which are about to be published
+     */
+    protected int size() {
+        long size = this.tail.get() - this.head.get();
+        return (int) Math.max(0, Math.min(size, this.capacity()));
+    }
+
+    /**
+     * @return true if no slot is claimed at the moment
+     */
+    protected boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    /**
+     * @return the number of items this buffer can hold
+     */
+    protected int capacity() {
+        return this.mask + 1;
+    }
+}
@@ -0,0 +1,147 @@
+package com.microsoft.applicationinsights.library;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.hardware.display.DisplayManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Display;
+
+import com.microsoft.applicationinsights.logging.InternalLogging;
+
+/**
+ * Keeps the screen resolution of the telemetry context up to date. The resolution is measured
+ * again when the configuration changes (e.g. on rotation) or a display changes, so creating an
+ * envelope doesn't query the window manager.
+ */
+class ScreenResolutionTracker implements ComponentCallbacks {
+
+    /**
+     * The tag for logging
+     */
+    private static final String TAG = "ScreenResolutionTracker";
+
+    /**
+     * The singleton INSTANCE of this class
+     */
+    private static ScreenResolutionTracker instance;
+
+    /**
+     * Synchronization LOCK for setting static context
+     */
+    private static final Object LOCK = new Object();
+
+    /**
+     * The application context which is used to measure the screen
+     */
+    private final Context context;
+
+    /**
+     * The telemetry context which holds the screen resolution
+     */
+    private final TelemetryContext telemetryContext;
+
+    protected ScreenResolutionTracker(Context context, TelemetryContext telemetryContext) {
+        this.context = context;
+        this.telemetryContext = telemetryContext;
+    }
+
+    /**
+     * Start tracking the screen resolution. Configuration changes are reported on devices with
+     * API level 14+, display changes on devices with API level 17+, on older devices the
+     * resolution is measured once.
+     *
+     * @param context          the android context
+     * @param telemetryContext the telemetry context which holds the screen resolution
+     */
+    protected static void start(Context context, TelemetryContext telemetryContext) {
+        if (context == null || telemetryContext == null) {
+            return;
+        }
+
+        synchronized (ScreenResolutionTracker.LOCK) {
+            if (ScreenResolutionTracker.instance == null) {
+                Context appContext = context.getApplicationContext();
+                if (appContext == null) {
+                    appContext = context;
+                }
+
+                ScreenResolutionTracker tracker = new ScreenResolutionTracker(appContext, telemetryContext);
+                tracker.update();
+                tracker.register();
+                ScreenResolutionTracker.instance = tracker;
+            }
+        }
+    }
+
+    /**
+     * Measure the screen and update the telemetry context.
+     */
+    protected void update() {
+        try {
+            this.telemetryContext.updateScreenResolution(this.context);
+        } catch (RuntimeException e) {
+            InternalLogging.warn(TAG, "Couldn't update screen resolution: " + e.toString());
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    private void register() {
+        if (Util.isLifecycleTrackingAvailable()) {
+            this.context.registerComponentCallbacks(this);
+            InternalLogging.info(TAG, "Registered component callbacks");
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            DisplayManager displayManager =
+                  (DisplayManager) this.context.getSystemService(Context.DISPLAY_SERVICE);
+            if (displayManager != null) {
+                // a separate class, so the listener interface is only loaded where it exists. The
+                // tracker may be created off the main thread, which may not have a looper.
+                displayManager.registerDisplayListener(new DisplayListener(this),
+                      new Handler(Looper.getMainLooper()));
+                InternalLogging.info(TAG, "Registered display listener");
+            }
+        }
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        this.update();
+    }
+
+    @Override
+    public void onLowMemory() {
+        // unused but required to implement ComponentCallbacks
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    private static class DisplayListener implements DisplayManager.DisplayListener {
+
+        private final ScreenResolutionTracker tracker;
+
+        DisplayListener(ScreenResolutionTracker tracker) {
+            this.tracker = tracker;
+        }
+
+        @Override
+        public void onDisplayAdded(int displayId) {
+            // only the default display is measured
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+            // only the default display is measured
+        }
+
+        @Override
+        public void onDisplayChanged(int displayId) {
+            if (displayId == Display.DEFAULT_DISPLAY) {
+                this.tracker.update();
+            }
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package com.microsoft.applicationinsights.library;
+
+import com.microsoft.applicationinsights.logging.InternalLogging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An append-only log of serialized batches which is split into numbered segments. Batches are
+ * appended to the active segment, which is kept open, so persisting a batch doesn't create a file.
+ * Once a segment is big enough, it's sealed and a new segment is started. A segment which isn't
+ * full is only sealed when it is requested for sending while no other segment is being sent, or
+ * once it is older than {@link #MAX_SEGMENT_AGE_MS}, so batches which are appended during an
+ * upload share the next segment. Sealed segments are served as a whole and deleted once they have
+ * been acknowledged. A checkpoint file holds the sequence number of the oldest segment which hasn't
+ * been acknowledged, it's only written if an acknowledged segment can't be deleted, so the segment
+ * isn't sent again after a restart. Instances are not thread-safe, {@link SegmentedLogPersistence}
+ * guards them with its lock.
+ */
+class SegmentedLog {
+
+    private static final String TAG = "SegmentedLog";
+
+    /**
+     * The size after which the active segment is sealed
+     */
+    protected static final long SEGMENT_SIZE = 64 * 1024;
+
+    /**
+     * The age after which the active segment is sealed while another segment is being sent
+     */
+    protected static final long MAX_SEGMENT_AGE_MS = 30 * 1000;
+
+    private static final String SEGMENT_EXTENSION = ".log";
+
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    /**
+     * The size of the buffer used to count the items of a segment
+     */
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * The directory holding the segments and the checkpoint
+     */
+    private final File directory;
+
+    /**
+     * Sealed segments which can be served, ordered by sequence number
+     */
+    private final TreeMap<Long, File> sealedSegments;
+
+    /**
+     * Sealed segments which have been served and are waiting for an acknowledgement
+     */
+    private final TreeMap<Long, File> reservedSegments;
+
+    /**
+     * The number of telemetry items per sealed or reserved segment
+     */
+    private final Map<Long, Integer> itemCounts;
+
+    /**
+     * The sequence number of the active segment
+     */
+    private long activeSequence;
+
+    /**
+     * The active segment, null until the first batch has been appended to it
+     */
+    private File activeSegment;
+
+    /**
+     * The open stream of the active segment
+     */
+    private FileOutputStream activeStream;
+
+    /**
+     * The number of bytes in the active segment
+     */
+    private long activeSize;
+
+    /**
+     * The number of telemetry items in the active segment
+     */
+    private int activeItemCount;
+
+    /**
+     * The time at which the first batch has been appended to the active segment, see getTime
+     */
+    private long activeCreationTime;
+
+    /**
+     * The number of bytes in sealed and reserved segments
+     */
+    private long sealedSize;
+
+    /**
+     * The sequence number stored in the checkpoint file
+     */
+    private long checkpoint;
+
+    /**
+     * Open the log in the given directory. Segments which are older than the checkpoint have been
+     * acknowledged and are deleted, all other segments are sealed and their items are counted.
+     *
+     * @param directory the directory of the log, created if necessary
+     */
+    protected SegmentedLog(File directory) {
+        this.directory = directory;
+        this.sealedSegments = new TreeMap<Long, File>();
+        this.reservedSegments = new TreeMap<Long, File>();
+        this.itemCounts = new HashMap<Long, Integer>();
+        if (!directory.exists() && !directory.mkdirs()) {
+            InternalLogging.warn(TAG, "Error creating directory " + directory.toString());
+        }
+
+        this.checkpoint = this.readCheckpoint();
+        long lastSequence = this.checkpoint - 1;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                long sequence = getSequence(file);
+                if (sequence < 0) {
+                    continue;
+                } else if (sequence < this.checkpoint || file.length() == 0) {
+                    this.deleteSegment(file);
+                } else {
+                    this.sealedSegments.put(sequence, file);
+                    this.sealedSize += file.length();
+                    this.itemCounts.put(sequence, countItems(file));
+                }
+                lastSequence = Math.max(lastSequence, sequence);
+            }
+        }
+
+        this.activeSequence = lastSequence + 1;
+    }
+
+    /**
+     * Append a batch to the active segment.
+     *
+     * @param data the bytes to append, from the buffer's position to its limit
+     * @throws IOException if the segment can't be written
+     */
+    protected void append(ByteBuffer data) throws IOException {
+        this.append(data, -1);
+    }
+
+    /**
+     * Append a batch to the active segment.
+     *
+     * @param data      the bytes to append, from the buffer's position to its limit
+     * @param itemCount the number of telemetry items in the batch, -1 to count the lines of the
+     *                  batch, which must be backed by an array then
+     * @throws IOException if the segment can't be written
+     */
+    protected void append(ByteBuffer data, int itemCount) throws IOException {
+        if (itemCount < 0) {
+            itemCount = countItems(data);
+        }
+
+        if (this.activeStream == null) {
+            this.activeSegment = new File(this.directory, getName(this.activeSequence));
+            this.activeStream = new FileOutputStream(this.activeSegment, true);
+            this.activeSize = this.activeSegment.length();
+            this.activeCreationTime = this.getTime();
+        }
+
+        FileChannel channel = this.activeStream.getChannel();
+        while (data.hasRemaining()) {
+            this.activeSize += channel.write(data);
+        }
+        this.activeItemCount += itemCount;
+
+        if (this.activeSize >= SEGMENT_SIZE) {
+            this.seal();
+        }
+    }
+
+    /**
+     * Serve the oldest sealed segment. If there is none, the active segment is sealed so appended
+     * batches don't wait for the segment to fill up, unless another segment is being sent and the
+     * active segment is younger than {@link #MAX_SEGMENT_AGE_MS}. The batches appended meanwhile are
+     * served once the other segment has been acknowledged or released.
+     *
+     * @return the segment, which is reserved until it is acknowledged or released, or null if no
+     * segment can be served
+     */
+    protected File reserve() {
+        if (this.sealedSegments.isEmpty() && this.activeSize > 0
+              && (this.reservedSegments.isEmpty()
+              || this.getTime() - this.activeCreationTime >= MAX_SEGMENT_AGE_MS)) {
+            this.seal();
+        }
+
+        Map.Entry<Long, File> oldest = this.sealedSegments.pollFirstEntry();
+        if (oldest == null) {
+            return null;
+        }
+
+        this.reservedSegments.put(oldest.getKey(), oldest.getValue());
+        return oldest.getValue();
+    }
+
+    /**
+     * Make a reserved segment available again.
+     *
+     * @param segment the reserved segment
+     * @return true if the segment belongs to this log and has been reserved
+     */
+    protected boolean release(File segment) {
+        if (!this.owns(segment)) {
+            return false;
+        }
+
+        long sequence = getSequence(segment);
+        File file = this.reservedSegments.remove(sequence);
+        if (file == null) {
+            return false;
+        }
+
+        this.sealedSegments.put(sequence, file);
+        return true;
+    }
+
+    /**
+     * Delete a segment which has been sent or evicted. The checkpoint is only advanced if the
+     * segment can't be deleted.
+     *
+     * @param segment a sealed segment
+     * @return true if the segment belongs to this log
+     */
+    protected boolean acknowledge(File segment) {
+        if (!this.owns(segment)) {
+            return false;
+        }
+
+        long sequence = getSequence(segment);
+        File file = this.reservedSegments.remove(sequence);
+        if (file == null) {
+            file = this.sealedSegments.remove(sequence);
+        }
+        if (file == null) {
+            return false;
+        }
+
+        this.itemCounts.remove(sequence);
+        this.sealedSize -= file.length();
+        if (!this.deleteSegment(file)) {
+            // the segment would be sent again after a restart, skip it with the checkpoint
+            long oldestPending = this.activeSequence;
+            if (!this.reservedSegments.isEmpty()) {
+                oldestPending = Math.min(oldestPending, this.reservedSegments.firstKey());
+            }
+            if (!this.sealedSegments.isEmpty()) {
+                oldestPending = Math.min(oldestPending, this.sealedSegments.firstKey());
+            }
+            if (oldestPending > this.checkpoint) {
+                this.writeCheckpoint(oldestPending);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the oldest sealed segment which isn't reserved, or null if there is none
+     */
+    protected File oldestSealedSegment() {
+        Map.Entry<Long, File> oldest = this.sealedSegments.firstEntry();
+        return oldest == null ? null : oldest.getValue();
+    }
+
+    /**
+     * @param segment a sealed segment of this log
+     * @return the number of telemetry items in the segment, counted when it has been sealed
+     */
+    protected int itemCount(File segment) {
+        Integer itemCount = this.itemCounts.get(getSequence(segment));
+        return itemCount == null ? 0 : itemCount;
+    }
+
+    /**
+     * @return the number of bytes in all segments
+     */
+    protected long byteCount() {
+        return this.sealedSize + this.activeSize;
+    }
+
+    /**
+     * Close the active segment and start a new one with the next append.
+     */
+    protected void seal() {
+        if (this.activeStream == null) {
+            return;
+        }
+
+        close(this.activeStream);
+        this.activeStream = null;
+        if (this.activeSize > 0) {
+            this.sealedSegments.put(this.activeSequence, this.activeSegment);
+            this.sealedSize += this.activeSize;
+            this.itemCounts.put(this.activeSequence, this.activeItemCount);
+            this.activeSequence++;
+        }
+        this.activeSegment = null;
+        this.activeSize = 0;
+        this.activeItemCount = 0;
+        this.activeCreationTime = 0;
+    }
+
+    /**
+     * @param file any file
+     * @return true if the file is located in the directory of this log
+     */
+    protected boolean owns(File file) {
+        return this.directory.equals(file.getParentFile());
+    }
+
+    /**
+     * Read the checkpoint file.
+     *
+     * @return the sequence number of the oldest segment which hasn't been acknowledged
+     */
+    private long readCheckpoint() {
+        File file = new File(this.directory, CHECKPOINT_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            byte[] bytes = new byte[32];
+            int count = inputStream.read(bytes);
+            return count > 0 ? Long.parseLong(new String(bytes, 0, count, "UTF-8").trim()) : 0;
+        } catch (Exception e) {
+            InternalLogging.warn(TAG, "Couldn't read checkpoint: " + e.toString());
+            return 0;
+        } finally {
+            close(inputStream);
+        }
+    }
+
+    /**
+     * Replace the checkpoint file, the new checkpoint is written to a temporary file which is
+     * renamed so a crash never leaves a truncated checkpoint behind.
+     *
+     * @param sequence the sequence number of the oldest segment which hasn't been acknowledged
+     */
+    private void writeCheckpoint(long sequence) {
+        File temporary = new File(this.directory, CHECKPOINT_FILE + ".tmp");
+        OutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(temporary);
+            outputStream.write(Long.toString(sequence).getBytes("UTF-8"));
+            outputStream.close();
+            outputStream = null;
+            if (temporary.renameTo(new File(this.directory, CHECKPOINT_FILE))) {
+                this.checkpoint = sequence;
+            }
+        } catch (IOException e) {
+            InternalLogging.warn(TAG, "Couldn't write checkpoint: " + e.toString());
+        } finally {
+            close(outputStream);
+        }
+    }
+
+    /**
+     * @param sequence the sequence number of a segment
+     * @return the file name of the segment, padded so segments sort by name
+     */
+    private static String getName(long sequence) {
+        return String.format(Locale.ROOT, "%019d", sequence) + SEGMENT_EXTENSION;
+    }
+
+    /**
+     * @param file a file in the log directory
+     * @return the sequence number of the segment or -1 if the file isn't a segment
+     */
+    private static long getSequence(File file) {
+        String name = file.getName();
+        if (!name.endsWith(SEGMENT_EXTENSION)) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Count the telemetry items of a segment which has been written by a previous process.
+     *
+     * @param segment the segment
+     * @return the number of non-empty lines of the segment
+     */
+    private static int countItems(File segment) {
+        int itemCount = 0;
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(segment);
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            byte previous = '\n';
+            int count;
+            while ((count = inputStream.read(buffer)) > 0) {
+                itemCount += countLineStarts(buffer, 0, count, previous);
+                previous = buffer[count - 1];
+            }
+        } catch (IOException e) {
+            InternalLogging.warn(TAG, "Couldn't count items of segment: " + e.toString());
+        } finally {
+            close(inputStream);
+        }
+        return itemCount;
+    }
+
+    /**
+     * @param data a batch, from the buffer's position to its limit. Must be backed by an array.
+     * @return the number of non-empty lines of the batch
+     */
+    private static int countItems(ByteBuffer data) {
+        int start = data.arrayOffset() + data.position();
+        return countLineStarts(data.array(), start, start + data.remaining(), (byte) '\n');
+    }
+
+    /**
+     * @param previous the byte which precedes the range, a newline at the start of a stream
+     * @return the number of lines which start in the given range and aren't empty
+     */
+    private static int countLineStarts(byte[] bytes, int start, int end, byte previous) {
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (bytes[i] != '\n' && previous == '\n') {
+                count++;
+            }
+            previous = bytes[i];
+        }
+        return count;
+    }
+
+    /**
+     * Test hook to delete a segment.
+     *
+     * @param file the segment
+     * @return true if the segment has been deleted
+     */
+    protected boolean deleteSegment(File file) {
+        if (!file.delete()) {
+            InternalLogging.warn(TAG, "Error deleting segment " + file.toString());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Test hook to get the current time.
+     *
+     * @return the current time in ms, see System.nanoTime
+     */
+    protected long getTime() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                InternalLogging.warn(TAG, "Error closing stream " + e.toString());
+            }
+        }
+    }
+}
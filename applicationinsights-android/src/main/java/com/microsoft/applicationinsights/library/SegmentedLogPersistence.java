@@ -0,0 +1,184 @@
+package com.microsoft.applicationinsights.library;
+
+import android.content.Context;
+
+import com.microsoft.applicationinsights.library.config.EvictionPolicy;
+import com.microsoft.applicationinsights.logging.InternalLogging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * A persistence which appends batches to a {@link SegmentedLog} per priority instead of writing
+ * every batch to a new file. Segments are served through the same contract as batch files:
+ * {@link #nextAvailableFile()} seals and reserves a segment, {@link #deleteFile(File)}
+ * acknowledges it and {@link #makeAvailable(File)} releases it. Batch files written before the log
+ * has been enabled are still served. Segments are stored uncompressed as JSON stream, so
+ * compression and the compact record format don't apply to them, see
+ * {@link com.microsoft.applicationinsights.library.config.Configuration#setSegmentedStorageEnabled(boolean)}.
+ */
+class SegmentedLogPersistence extends Persistence {
+
+    private static final String TAG = "SegmentedLogPersistence";
+
+    private static final String LOG_DIRECTORY = "/log";
+
+    /**
+     * The log of high priority batches
+     */
+    private final SegmentedLog highPriorityLog;
+
+    /**
+     * The log of regular priority batches
+     */
+    private final SegmentedLog regularPriorityLog;
+
+    /**
+     * Restrict access to the default constructor
+     *
+     * @param context android Context object
+     */
+    protected SegmentedLogPersistence(Context context) {
+        super(context);
+        String logPath = context.getFilesDir().getPath() + AI_SDK_DIRECTORY + LOG_DIRECTORY;
+        this.highPriorityLog = new SegmentedLog(new File(logPath + HIGH_PRIO_DIRECTORY));
+        this.regularPriorityLog = new SegmentedLog(new File(logPath + REGULAR_PRIO_DIRECTORY));
+    }
+
+    /**
+     * Appends UTF-8 encoded data to the log of the given priority. Segments are stored
+     * uncompressed as JSON stream, so the batches of a segment can be concatenated. The oldest
+     * segments are evicted afterwards if the storage quota of the priority is exceeded.
+     *
+     * @param data         the bytes to save, from the buffer's position to its limit
+     * @param highPriority the priority we want to use for persisting the data
+     * @param itemCount    the number of telemetry items in the data, -1 to count the lines of the
+     *                     data
+     * @param types        the base types of the telemetry items in the data, not used by the log
+     * @return true if the operation was successful, false otherwise
+     */
+    @Override
+    protected boolean writeToDisk(ByteBuffer data, Boolean highPriority, int itemCount, Set<String> types) {
+        synchronized (Persistence.LOCK) {
+            SegmentedLog log = this.getLog(highPriority);
+            try {
+                log.append(data, itemCount);
+            } catch (IOException e) {
+                InternalLogging.warn(TAG, "Failed to append data with exception: " + e.toString());
+                // start a new segment with the next batch
+                log.seal();
+                return false;
+            }
+
+            this.enforceQuota(log);
+            return true;
+        }
+    }
+
+    /**
+     * Get a reference to the next available segment or batch file. High priority is served before
+     * regular priority, batch files left from before the log has been enabled are served before
+     * regular priority segments.
+     *
+     * @return the next available file.
+     */
+    @Override
+    protected File nextAvailableFile() {
+        synchronized (Persistence.LOCK) {
+            File file = this.highPriorityLog.reserve();
+            if (file == null) {
+                file = super.nextAvailableFile();
+            }
+            if (file == null) {
+                file = this.regularPriorityLog.reserve();
+            }
+
+            return file;
+        }
+    }
+
+    /**
+     * Acknowledge a segment which has been sent or delete a batch file.
+     *
+     * @param file reference to the segment or file we want to delete
+     */
+    @Override
+    protected void deleteFile(File file) {
+        if (file != null) {
+            synchronized (Persistence.LOCK) {
+                if (!this.highPriorityLog.acknowledge(file) && !this.regularPriorityLog.acknowledge(file)) {
+                    super.deleteFile(file);
+                }
+            }
+        } else {
+            InternalLogging.warn(TAG, "Couldn't delete file, the reference to the file was null");
+        }
+    }
+
+    /**
+     * Make a segment or batch file available to be served again
+     *
+     * @param file reference to the segment or file that should be sent again later
+     */
+    @Override
+    protected void makeAvailable(File file) {
+        synchronized (Persistence.LOCK) {
+            if (file != null && !this.highPriorityLog.release(file) && !this.regularPriorityLog.release(file)) {
+                super.makeAvailable(file);
+            }
+        }
+    }
+
+    /**
+     * Check if new data can be stored, see {@link Persistence#isFreeSpaceAvailable(Boolean)}.
+     *
+     * @param highPriority indicates which log to check
+     */
+    @Override
+    protected Boolean isFreeSpaceAvailable(Boolean highPriority) {
+        synchronized (Persistence.LOCK) {
+            if (!super.isFreeSpaceAvailable(highPriority)) {
+                return false;
+            }
+
+            return this.config.getEvictionPolicy() != EvictionPolicy.DropNewest
+                  || this.getLog(highPriority).byteCount() < this.config.getMaxPersistenceBytes();
+        }
+    }
+
+    /**
+     * Evict the oldest sealed segments until the log is within the storage quota. Segments which
+     * are being sent and the active segment are never evicted. Must be called while holding the
+     * LOCK.
+     *
+     * @param log the log which has grown
+     */
+    private void enforceQuota(SegmentedLog log) {
+        if (this.config.getEvictionPolicy() == EvictionPolicy.DropNewest) {
+            return;
+        }
+
+        long maxBytes = this.config.getMaxPersistenceBytes();
+        while (log.byteCount() > maxBytes) {
+            File segment = log.oldestSealedSegment();
+            if (segment == null) {
+                break;
+            }
+
+            long size = segment.length();
+            int itemCount = log.itemCount(segment);
+            log.acknowledge(segment);
+            this.onEvicted(size, itemCount);
+        }
+    }
+
+    /**
+     * @param highPriority the priority of the log
+     * @return the log with the given priority
+     */
+    private SegmentedLog getLog(Boolean highPriority) {
+        return highPriority ? this.highPriorityLog : this.regularPriorityLog;
+    }
+}
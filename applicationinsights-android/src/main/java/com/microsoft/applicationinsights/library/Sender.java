@@ -1,25 +1,38 @@
 package com.microsoft.applicationinsights.library;
 
 import android.annotation.TargetApi;
-import android.os.AsyncTask;
 import android.os.Build;
-import android.os.Looper;
 
-import com.microsoft.applicationinsights.library.config.ISenderConfig;
+import com.microsoft.applicationinsights.library.config.IRequestConfig;
 import com.microsoft.applicationinsights.logging.InternalLogging;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPOutputStream;
 
@@ -30,7 +43,20 @@ class Sender {
 
     private static final String TAG = "Sender";
 
-    private static final int SENDER_COUNT = 3;
+    /**
+     * The maximum number of files which are uploaded in parallel
+     */
+    protected static final int SENDER_COUNT = 3;
+
+    /**
+     * The time an idle sender thread is kept alive
+     */
+    private static final long SENDER_KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * The size of the buffer used to stream a file to the connection
+     */
+    private static final int STREAM_BUFFER_SIZE = 8 * 1024;
     /**
      * Synchronization LOCK for setting static config.
      */
@@ -46,32 +72,79 @@ class Sender {
     /**
      * The configuration for this sender.
      */
-    protected final ISenderConfig config;
+    protected final IRequestConfig config;
     /**
      * Persistence object used to reserve, free, or delete files.
      */
     protected Persistence persistence;
 
     /**
-     * Thread safe counter to keep track of num of operations
+     * Executor dedicated to uploading persisted files, it never runs more than SENDER_COUNT workers
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * The number of workers which have been started and not finished, yet
+     */
+    private final AtomicInteger activeWorkers;
+
+    /**
+     * Set if sending has been triggered while all workers were busy
      */
-    private AtomicInteger operationsCount;
+    private final AtomicBoolean sendRequested;
+
+    /**
+     * Decides when uploads may be retried after recoverable failures
+     */
+    protected SenderBackoff backoff;
+
+    /**
+     * Timer used to resume uploads once the backoff expired
+     */
+    private final Timer retryTimer;
+
+    /**
+     * True while a retry is scheduled on the retry timer
+     */
+    private final AtomicBoolean isRetryScheduled;
+
+    /**
+     * The parsed endpoint, reused for all requests while the configured endpoint doesn't change
+     */
+    private URL endpoint;
 
     /**
      * Restrict access to the default constructor
      *
      * @param config the telemetryconfig object used to configure the telemetry module
      */
-    protected Sender(ISenderConfig config) {
+    protected Sender(IRequestConfig config) {
         this.config = config;
-        this.operationsCount = new AtomicInteger(0);
+        this.activeWorkers = new AtomicInteger(0);
+        this.sendRequested = new AtomicBoolean(false);
+        this.isRetryScheduled = new AtomicBoolean(false);
+        this.retryTimer = new Timer("Application Insights Sender Retry", true);
         this.persistence = Persistence.getInstance();
+        this.backoff = new SenderBackoff(ApplicationInsights.INSTANCE.getContext());
+
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Application Insights Sender");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        this.executor = new ThreadPoolExecutor(SENDER_COUNT, SENDER_COUNT,
+              SENDER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>(), threadFactory);
+        this.executor.allowCoreThreadTimeOut(true);
     }
 
     /**
      * Initialize the INSTANCE of sender.
      */
-    protected static void initialize(ISenderConfig config) {
+    protected static void initialize(IRequestConfig config) {
         // note: isSenderLoaded must be volatile for the double-checked LOCK to work
         if (!Sender.isSenderLoaded) {
             synchronized (Sender.LOCK) {
@@ -94,65 +167,146 @@ class Sender {
     }
 
     protected void triggerSending() {
-        Util.executeTask(createSenderTask());
+        sendNextFile();
     }
 
-    private AsyncTask<Void, Void, Void> createSenderTask() {
-        return new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... params) {
-                sendNextFile();
-                return null;
+    /**
+     * Starts a worker which sends persisted files until none is left or sending fails. Triggers
+     * are coalesced: if SENDER_COUNT workers are running already, one of them will do another
+     * pass once it is done instead of starting a new worker. This method never blocks and can be
+     * called from any thread. While uploads are paused after a recoverable failure, a single retry
+     * is scheduled for the end of the pause instead.
+     */
+    protected void sendNextFile() {
+        long pause = this.backoff.getRemainingPause();
+        if (pause > 0) {
+            this.scheduleRetry(pause);
+            return;
+        }
+
+        while (true) {
+            int workers = this.activeWorkers.get();
+            if (workers >= SENDER_COUNT) {
+                this.sendRequested.set(true);
+                InternalLogging.info(TAG, "All senders are busy, coalescing request", "");
+                return;
             }
-        };
-    }
 
-    protected void sendNextFile() {
-        //as sendNextFile() NOT guarranteed to be executed from a background thread, we need to
-        //create an async task if necessary
-        if (Looper.myLooper() == Looper.getMainLooper()) {
-            InternalLogging.info(TAG, "Kick of new async task", "");
-            Util.executeTask(createSenderTask());
-        } else {
-            if (runningRequestCount() < SENDER_COUNT) {
-                this.operationsCount.getAndIncrement();
-                System.out.println("Sending Operation Instance " + runningRequestCount());
-                // Send the persisted data
-                if (this.persistence != null) {
-                    File fileToSend = this.persistence.nextAvailableFile();
-                    if (fileToSend != null) {
-                        send(fileToSend);
-                    }
+            if (this.activeWorkers.compareAndSet(workers, workers + 1)) {
+                try {
+                    this.executor.execute(new SendTask());
+                } catch (RejectedExecutionException e) {
+                    this.activeWorkers.decrementAndGet();
+                    InternalLogging.warn(TAG, "Couldn't start sender: " + e.toString());
                 }
-                this.operationsCount.getAndDecrement();
-            } else {
-                InternalLogging.info(TAG, "We have already 10 pending reguests", "");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Schedules a single call to {@link Sender#sendNextFile()}, further calls are ignored until
+     * the scheduled retry ran.
+     *
+     * @param delay the delay in ms
+     */
+    protected void scheduleRetry(long delay) {
+        if (this.isRetryScheduled.compareAndSet(false, true)) {
+            InternalLogging.info(TAG, "Uploads are paused, retrying in", delay + "ms");
+            try {
+                this.retryTimer.schedule(new RetryTask(), delay);
+            } catch (IllegalStateException e) {
+                this.isRetryScheduled.set(false);
+                InternalLogging.warn(TAG, "Couldn't schedule retry: " + e.toString());
             }
         }
     }
 
+    /**
+     * Sends files until persistence doesn't provide any more files or a file couldn't be sent.
+     */
+    protected void sendAvailableFiles() {
+        if (this.persistence == null) {
+            return;
+        }
+
+        // another worker might have paused uploads in the meantime
+        File fileToSend = this.backoff.isPaused() ? null : this.persistence.nextAvailableFile();
+        while (fileToSend != null) {
+            if (!send(fileToSend)) {
+                // the file has been made available again, stop until the backoff expired
+                break;
+            }
+            fileToSend = this.backoff.isPaused() ? null : this.persistence.nextAvailableFile();
+        }
+
+        if (this.backoff.isPaused()) {
+            this.scheduleRetry(this.backoff.getRemainingPause());
+        }
+    }
 
-    protected void send(File fileToSend) {
-        String persistedData = this.persistence.load(fileToSend);
-        if (!persistedData.isEmpty()) {
+    /**
+     * Sends a single file.
+     *
+     * @param fileToSend reference to the file we want to send
+     * @return true if the file has been processed, false if it has to be sent again later
+     */
+    protected boolean send(File fileToSend) {
+        boolean isProcessed = false;
+        if (fileToSend.length() > 0) {
             try {
-                this.sendRequestWithPayload(persistedData, fileToSend);
+                isProcessed = this.sendRequestWithPayload(fileToSend);
             } catch (IOException e) {
                 InternalLogging.warn(TAG, "Couldn't send request with IOException: " + e.toString());
+                this.backoff.onFailure(-1);
+                this.persistence.makeAvailable(fileToSend);
             }
         } else {
             this.persistence.deleteFile(fileToSend);
+            this.backoff.forget(fileToSend);
+            isProcessed = true;
         }
+
+        return isProcessed;
     }
 
     protected int runningRequestCount() {
-        return this.operationsCount.get();
+        return this.activeWorkers.get();
     }
 
-    protected void sendRequestWithPayload(String payload, File fileToSend) throws IOException {
-        Writer writer = null;
-        URL url = new URL(config.getEndpointUrl());
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    /**
+     * Get the URL of the configured endpoint. The URL is parsed once and reused, so consecutive
+     * requests of a worker are sent to the same host and port and can share a pooled connection.
+     *
+     * @return the endpoint URL
+     * @throws IOException if the configured endpoint isn't a valid URL
+     */
+    protected synchronized URL getEndpoint() throws IOException {
+        String endpointUrl = config.getEndpointUrl();
+        if (this.endpoint == null || !this.endpoint.toString().equals(endpointUrl)) {
+            this.endpoint = new URL(endpointUrl);
+        }
+        return this.endpoint;
+    }
+
+    /**
+     * Streams the content of a file to the endpoint. The file is copied to the connection using a
+     * fixed size buffer, so the memory needed for an upload doesn't depend on the size of the batch.
+     * If more files are pending, they are packed into the same request as long as the byte and item
+     * budgets of the configuration allow it.
+     * The connection isn't disconnected: once the response has been consumed, it returns to the
+     * connection pool of HttpURLConnection and is kept alive for the next file of the backlog.
+     *
+     * @param fileToSend reference to the file we want to send
+     * @return true if the file has been processed, false if it has to be sent again later
+     * @throws IOException if the connection can't be created
+     */
+    protected boolean sendRequestWithPayload(File fileToSend) throws IOException {
+        boolean isProcessed = false;
+        OutputStream outputStream = null;
+        List<File> filesToSend = new ArrayList<File>();
+        filesToSend.add(fileToSend);
+        HttpURLConnection connection = (HttpURLConnection) getEndpoint().openConnection();
         connection.setReadTimeout(config.getSenderReadTimeout());
         connection.setConnectTimeout(config.getSenderConnectTimeout());
         connection.setRequestMethod("POST");
@@ -162,37 +316,157 @@ class Sender {
         connection.setUseCaches(false);
 
         try {
-            if(ApplicationInsights.isDeveloperMode()) {
-                InternalLogging.info(TAG, "Logging payload", payload);
-            }
+            logPayload(fileToSend);
+
+            File nextFile = nextFileToPack(fileToSend.length());
+            if (nextFile == null && !this.persistence.isCompact(fileToSend)) {
+                boolean isCompressed = this.persistence.isCompressed(fileToSend);
+                outputStream = getOutputStream(connection, fileToSend.length(), isCompressed);
+                copy(new FileInputStream(fileToSend), outputStream);
+            } else {
+                outputStream = getPackedOutputStream(connection);
+                long packedBytes = fileToSend.length();
+                int packedItems = copyUncompressed(fileToSend, outputStream);
+                while (nextFile != null) {
+                    if (packedItems >= config.getMaxRequestItemCount()) {
+                        // leave it for the next request
+                        this.persistence.makeAvailable(nextFile);
+                        break;
+                    }
 
-            writer = getWriter(connection);
-            writer.write(payload);
-            writer.flush();
+                    filesToSend.add(nextFile);
+                    logPayload(nextFile);
+                    packedBytes += nextFile.length();
+                    packedItems += copyUncompressed(nextFile, outputStream);
+                    nextFile = nextFileToPack(packedBytes);
+                }
+                InternalLogging.info(TAG, "Packed files into one request",
+                      filesToSend.size() + " files, " + packedItems + " items");
+            }
 
-            // Starts the query
-            connection.connect();
+            // closing the stream completes the request body (and writes the gzip trailer)
+            outputStream.close();
+            outputStream = null;
 
             // read the response code while we're ready to catch the IO exception
             int responseCode = connection.getResponseCode();
 
             // process the response
-            onResponse(connection, responseCode, payload, fileToSend);
+            isProcessed = onResponse(connection, responseCode, filesToSend);
+
+            // the connection can only be reused once the response body has been read completely
+            consumeResponse(connection);
         } catch (IOException e) {
             InternalLogging.warn(TAG, "Couldn't send data with IOException: " + e.toString());
+            // the backend wasn't reached, so this doesn't count as an attempt for these files
+            this.backoff.onFailure(-1);
             if (this.persistence != null) {
                 InternalLogging.info(TAG, "Persisting because of IOException: ", "We're probably offline =)");
-                this.persistence.makeAvailable(fileToSend); //send again later
+                for (File file : filesToSend) {
+                    this.persistence.makeAvailable(file); //send again later
+                }
             }
         } finally {
-            if (writer != null) {
+            if (outputStream != null) {
                 try {
-                    writer.close();
+                    outputStream.close();
                 } catch (IOException e) {
                     // no-op
                 }
             }
         }
+    
+        return isProcessed;
+    }
+
+    /**
+     * Reserves another pending file which can be packed into the current request.
+     *
+     * @param packedBytes the number of bytes which have been packed into the request already
+     * @return the reserved file or null if no file is pending or the budget doesn't allow another
+     * file
+     */
+    protected File nextFileToPack(long packedBytes) {
+        // packed requests are re-compressed on the fly which needs GZIP support, see getOutputStream
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || this.persistence == null) {
+            return null;
+        }
+
+        File nextFile = this.persistence.nextAvailableFile();
+        if (nextFile != null && packedBytes + nextFile.length() > config.getMaxRequestBytes()) {
+            // leave it for the next request
+            this.persistence.makeAvailable(nextFile);
+            nextFile = null;
+        }
+
+        return nextFile;
+    }
+
+    /**
+     * Copies a stream to the connection and closes it.
+     *
+     * @param inputStream  the stream to copy
+     * @param outputStream the stream of the connection
+     * @throws IOException if the stream can't be read or written
+     */
+    private void copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+        try {
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Copies the content of a file as JSON stream to a packed request. Every item of a persisted
+     * file is preceded by a line break, so the content of several files can be appended and still
+     * forms a valid JSON stream, the number of line breaks is the number of items.
+     *
+     * @param file         the file to copy
+     * @param outputStream the stream of the connection
+     * @return the number of items in the file
+     * @throws IOException if the file can't be read or the stream can't be written
+     */
+    private int copyUncompressed(File file, OutputStream outputStream) throws IOException {
+        InputStream inputStream = this.persistence.openJsonStream(file);
+        int itemCount = 0;
+        try {
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            int count = inputStream.read(buffer);
+            if (count > 0 && buffer[0] != '\n') {
+                // a file which hasn't been written by persist still needs a separator
+                outputStream.write('\n');
+                itemCount++;
+            }
+
+            for (; count != -1; count = inputStream.read(buffer)) {
+                for (int i = 0; i < count; i++) {
+                    if (buffer[i] == '\n') {
+                        itemCount++;
+                    }
+                }
+                outputStream.write(buffer, 0, count);
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        return itemCount;
+    }
+
+    /**
+     * Logs the content of a file in developer mode.
+     *
+     * @param file the file which is about to be sent
+     */
+    private void logPayload(File file) {
+        if(ApplicationInsights.isDeveloperMode()) {
+            InternalLogging.info(TAG, "Logging payload", this.persistence.load(file));
+        }
     }
 
     /**
@@ -200,30 +474,65 @@ class Sender {
      *
      * @param connection   a connection containing a response
      * @param responseCode the response code from the connection
-     * @param payload      the payload which generated this response
-     * @param fileToSend   reference to the file we want to send
+     * @param filesToSend  references to the files which have been sent in the request
+     * @return true if the files have been processed, false if they have to be sent again later
      */
-    protected void onResponse(HttpURLConnection connection, int responseCode, String payload, File fileToSend) {
+    protected boolean onResponse(HttpURLConnection connection, int responseCode, List<File> filesToSend) {
         InternalLogging.info(TAG, "response code", Integer.toString(responseCode));
 
         boolean isRecoverableError = isRecoverableError(responseCode);
         if (isRecoverableError) {
-            this.onRecoverable(payload, fileToSend);
+            long retryAfter = -1;
+            if (responseCode == 429 || responseCode == 503) {
+                retryAfter = this.backoff.parseRetryAfter(connection.getHeaderField("Retry-After"));
+            }
+            this.backoff.onFailure(retryAfter);
+            for (File file : filesToSend) {
+                this.onRecoverable(file);
+            }
+        } else if (responseCode == 206) {
+            // keep the items which can be retried, drop the accepted and the rejected ones
+            List<String[]> retryableItems = this.onPartialSuccess(connection, filesToSend);
+            boolean isRetrying = false;
+            for (int i = 0; i < filesToSend.size(); i++) {
+                if (retryableItems.get(i).length > 0) {
+                    this.retryItems(filesToSend.get(i), retryableItems.get(i));
+                    isRetrying = true;
+                }
+            }
+            if (isRetrying) {
+                // the backend is partially unhealthy, keep growing the backoff before the retry
+                this.backoff.onFailure(-1);
+            }
+            for (File file : filesToSend) {
+                if (isRetrying) {
+                    this.backoff.forget(file);
+                } else {
+                    this.backoff.onSuccess(file);
+                }
+                if (this.persistence != null) {
+                    this.persistence.deleteFile(file);
+                }
+            }
         } else {
             //delete in case of success or unrecoverable errors
-            if (this.persistence != null) {
-                this.persistence.deleteFile(fileToSend);
+            for (File file : filesToSend) {
+                this.backoff.onSuccess(file);
+                if (this.persistence != null) {
+                    this.persistence.deleteFile(file);
+                }
             }
 
             //trigger send next file or log unexpected responses
             StringBuilder builder = new StringBuilder();
             if (isExpected(responseCode)) {
                 this.onExpected(connection, builder);
-                sendNextFile();
             } else {
                 this.onUnexpected(connection, responseCode, builder);
             }
         }
+
+        return !isRecoverableError;
     }
 
     protected boolean isRecoverableError(int responseCode) {
@@ -265,17 +574,169 @@ class Sender {
         this.readResponse(connection, builder);
     }
 
+    /**
+     * Process a partial success. The response lists an error for each item which hasn't been
+     * accepted, the index of an error refers to the line of the item in the JSON stream of the
+     * request.
+     *
+     * @param connection  a connection containing a response
+     * @param filesToSend references to the files which have been sent in the request
+     * @return the items which have been rejected with a recoverable status code, one array per
+     * file in the order of the files
+     */
+    protected List<String[]> onPartialSuccess(HttpURLConnection connection, List<File> filesToSend) {
+        StringBuilder builder = new StringBuilder();
+        this.readResponse(connection, builder);
+        Set<Integer> retryableIndices = this.parseRetryableItems(builder.toString());
+
+        // read the files line by line, so only the retryable items are kept in memory
+        List<String[]> retryableItems = new ArrayList<String[]>(filesToSend.size());
+        int index = 0;
+        int retryableCount = 0;
+        for (File file : filesToSend) {
+            List<String> items = new ArrayList<String>();
+            if (!retryableIndices.isEmpty() && this.persistence != null) {
+                BufferedReader reader = null;
+                try {
+                    reader = new BufferedReader(new InputStreamReader(this.persistence.openJsonStream(file), "UTF-8"));
+                    String item;
+                    while ((item = reader.readLine()) != null) {
+                        if (item.length() > 0) {
+                            if (retryableIndices.contains(index)) {
+                                items.add(item);
+                            }
+                            index++;
+                        }
+                    }
+                } catch (IOException e) {
+                    InternalLogging.warn(TAG, "Couldn't read items which can be retried: " + e.toString());
+                } finally {
+                    if (reader != null) {
+                        try {
+                            reader.close();
+                        } catch (IOException e) {
+                            // no-op
+                        }
+                    }
+                }
+            }
+            retryableCount += items.size();
+            retryableItems.add(items.toArray(new String[items.size()]));
+        }
+
+        if (retryableCount > 0) {
+            InternalLogging.info(TAG, "Persisting items which can be retried",
+                  Integer.toString(retryableCount));
+        }
+        return retryableItems;
+    }
+
+    /**
+     * Persist the items of a file which the backend rejected with a recoverable status code. The
+     * items keep the priority and the attempt count of the file, so they are dropped once they
+     * have been rejected MAX_FILE_ATTEMPTS times.
+     *
+     * @param file  reference to the file which contained the items
+     * @param items the items which can be retried
+     */
+    protected void retryItems(File file, String[] items) {
+        if (this.persistence == null) {
+            return;
+        }
+
+        int attempts = this.backoff.recordAttempt(file);
+        if (attempts >= SenderBackoff.MAX_FILE_ATTEMPTS) {
+            InternalLogging.warn(TAG, "Dropping " + items.length + " items after " + attempts
+                  + " attempts: " + file.toString());
+            return;
+        }
+
+        File retryFile = this.persistence.persistToFile(items, this.persistence.isHighPriority(file));
+        if (retryFile != null) {
+            this.backoff.carryAttempts(retryFile, attempts);
+        }
+    }
+
+    /**
+     * Parse the response of a partial success.
+     *
+     * @param response the response body containing itemsReceived, itemsAccepted and errors
+     * @return the indices of the items which can be retried
+     */
+    protected Set<Integer> parseRetryableItems(String response) {
+        Set<Integer> retryableIndices = new HashSet<Integer>();
+        try {
+            JSONObject json = new JSONObject(response);
+            InternalLogging.info(TAG, "Partial success", json.optInt("itemsAccepted") + " of "
+                  + json.optInt("itemsReceived") + " items accepted");
+
+            JSONArray errors = json.optJSONArray("errors");
+            if (errors != null) {
+                for (int i = 0; i < errors.length(); i++) {
+                    JSONObject error = errors.getJSONObject(i);
+                    if (isRecoverableError(error.getInt("statusCode"))) {
+                        retryableIndices.add(error.getInt("index"));
+                    }
+                }
+            }
+        } catch (JSONException e) {
+            InternalLogging.warn(TAG, "Couldn't parse partial success response: " + e.toString());
+        }
+
+        return retryableIndices;
+    }
+
     /**
      * Writes the payload to disk if the response code indicates that the server or network caused
-     * the failure instead of the client.
+     * the failure instead of the client. A file which has been rejected MAX_FILE_ATTEMPTS times is
+     * dropped.
      *
-     * @param payload    the payload which generated this response
      * @param fileToSend reference to the file we sent
      */
-    protected void onRecoverable(String payload, File fileToSend) {
-        InternalLogging.info(TAG, "Recoverable error (probably a server error), persisting data", payload);
+    protected void onRecoverable(File fileToSend) {
+        InternalLogging.info(TAG, "Recoverable error (probably a server error), persisting data", fileToSend.toString());
         if (this.persistence != null) {
-            this.persistence.makeAvailable(fileToSend);
+            int attempts = this.backoff.recordAttempt(fileToSend);
+            if (attempts >= SenderBackoff.MAX_FILE_ATTEMPTS) {
+                InternalLogging.warn(TAG, "Dropping file after " + attempts + " attempts: " + fileToSend.toString());
+                this.persistence.deleteFile(fileToSend);
+                this.backoff.forget(fileToSend);
+            } else {
+                this.persistence.makeAvailable(fileToSend);
+            }
+        }
+    }
+
+    /**
+     * Reads the remainder of the response body and closes it, which returns the connection to the
+     * pool. Does nothing if the response has been read already.
+     *
+     * @param connection the connection which received a response
+     */
+    protected void consumeResponse(HttpURLConnection connection) {
+        InputStream inputStream = null;
+        try {
+            inputStream = connection.getErrorStream();
+            if (inputStream == null) {
+                inputStream = connection.getInputStream();
+            }
+
+            if (inputStream != null) {
+                byte[] buffer = new byte[512];
+                while (inputStream.read(buffer) != -1) {
+                    // discard
+                }
+            }
+        } catch (IOException e) {
+            // the stream has been consumed and closed already, or the connection is broken
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    // no-op
+                }
+            }
         }
     }
 
@@ -318,23 +779,51 @@ class Sender {
     }
 
     /**
-     * Gets a writer from the connection stream (allows for test hooks into the write stream)
+     * Gets an output stream for a request into which several files are packed or a compact record
+     * is rendered. The content is compressed on the fly, so the length of the request isn't known
+     * upfront.
      *
      * @param connection the connection to which the stream will be flushed
-     * @return a writer for the given connection stream
+     * @return an output stream for the given connection
+     * @throws IOException Exception thrown by GZIP
+     */
+    protected OutputStream getPackedOutputStream(HttpURLConnection connection) throws IOException {
+        connection.setChunkedStreamingMode(0);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            // no GZIP for older devices, only a single compact record is rendered there
+            return connection.getOutputStream();
+        }
+
+        connection.addRequestProperty("Content-Encoding", "gzip");
+        return new GZIPOutputStream(connection.getOutputStream(), STREAM_BUFFER_SIZE);
+    }
+
+    /**
+     * Gets an output stream from the connection (allows for test hooks into the write stream). The
+     * connection is put into streaming mode so the request body isn't buffered in memory.
+     *
+     * @param connection    the connection to which the stream will be flushed
+     * @param contentLength the number of bytes which will be written to the stream
+     * @param isCompressed  true if the bytes written to the stream are already gzip-compressed
+     * @return an output stream for the given connection
      * @throws java.io.IOException Exception thrown by GZIP (used in SDK 19+)
      */
     @TargetApi(Build.VERSION_CODES.KITKAT)
-    protected Writer getWriter(HttpURLConnection connection) throws IOException {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            // GZIP if we are running SDK 19 or higher
+    protected OutputStream getOutputStream(HttpURLConnection connection, long contentLength, boolean isCompressed) throws IOException {
+        if (isCompressed) {
+            // the batch has been compressed when it was persisted, send it as-is
+            connection.addRequestProperty("Content-Encoding", "gzip");
+            connection.setFixedLengthStreamingMode((int) contentLength);
+            return connection.getOutputStream();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // GZIP if we are running SDK 19 or higher, the compressed size isn't known upfront
             connection.addRequestProperty("Content-Encoding", "gzip");
-            connection.setRequestProperty("Content-Type", "application/x-json-stream");
-            GZIPOutputStream gzip = new GZIPOutputStream(connection.getOutputStream(), true);
-            return new OutputStreamWriter(gzip);
+            connection.setChunkedStreamingMode(0);
+            return new GZIPOutputStream(connection.getOutputStream(), STREAM_BUFFER_SIZE);
         } else {
             // no GZIP for older devices
-            return new OutputStreamWriter(connection.getOutputStream());
+            connection.setFixedLengthStreamingMode((int) contentLength);
+            return connection.getOutputStream();
         }
     }
 
@@ -348,6 +837,15 @@ class Sender {
     }
 
 
+    /**
+     * Set the backoff used to pause uploads (enables dependency injection).
+     *
+     * @param backoff the backoff to use
+     */
+    protected void setBackoff(SenderBackoff backoff) {
+        this.backoff = backoff;
+    }
+
     /**
      * Set the instance, used for tests
      *
@@ -356,4 +854,36 @@ class Sender {
     protected void setInstance(Sender instance) {
         Sender.instance = instance;
     }
+
+    /**
+     * A worker which sends persisted files on the sender executor
+     */
+    private class SendTask implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                sendAvailableFiles();
+            } finally {
+                activeWorkers.decrementAndGet();
+            }
+
+            // a trigger might have been coalesced after this worker found no more files
+            if (sendRequested.compareAndSet(true, false)) {
+                sendNextFile();
+            }
+        }
+    }
+
+    /**
+     * Resumes uploads once the backoff expired
+     */
+    private class RetryTask extends TimerTask {
+
+        @Override
+        public void run() {
+            isRetryScheduled.set(false);
+            sendNextFile();
+        }
+    }
 }
@@ -0,0 +1,338 @@
+package com.microsoft.applicationinsights.library;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.microsoft.applicationinsights.logging.InternalLogging;
+
+import java.io.File;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Keeps track of failed uploads and decides when the sender may try again. Consecutive failures
+ * pause all uploads with an exponentially growing, jittered delay, a Retry-After header sent by
+ * the backend takes precedence over the computed delay. The state is written to shared preferences
+ * so a restart of the app doesn't reset the backoff while the backend is still unhealthy.
+ */
+class SenderBackoff {
+
+    private static final String TAG = "SenderBackoff";
+
+    /**
+     * The delay after the first failure
+     */
+    protected static final long INITIAL_BACKOFF_MS = 10 * 1000;
+
+    /**
+     * The upper bound of the computed delay
+     */
+    protected static final long MAX_BACKOFF_MS = 10 * 60 * 1000;
+
+    /**
+     * The upper bound of a delay requested through a Retry-After header
+     */
+    protected static final long MAX_RETRY_AFTER_MS = 60 * 60 * 1000;
+
+    /**
+     * The number of times the backend may reject a single file with a recoverable error before the
+     * file is dropped, so a single bad file can't block all uploads forever
+     */
+    protected static final int MAX_FILE_ATTEMPTS = 10;
+
+    private static final String SHARED_PREFERENCES_KEY = "APP_INSIGHTS_SENDER";
+    private static final String FAILURE_COUNT_KEY = "SENDER_FAILURE_COUNT";
+    private static final String NEXT_ATTEMPT_KEY = "SENDER_NEXT_ATTEMPT";
+    private static final String FILE_ATTEMPTS_KEY_PREFIX = "SENDER_FILE_ATTEMPTS_";
+
+    /**
+     * The format of a Retry-After header which contains a date instead of seconds
+     */
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    /**
+     * Shared preferences used to keep the state across restarts, null if no context is available
+     */
+    private final SharedPreferences settings;
+
+    /**
+     * Source of the jitter
+     */
+    private final Random random;
+
+    /**
+     * The number of recoverable failures since the last successful upload
+     */
+    private int failureCount;
+
+    /**
+     * The wall clock time in ms before which no upload should be started
+     */
+    private long nextAttemptTime;
+
+    /**
+     * The number of recoverable responses per file name
+     */
+    private final Map<String, Integer> fileAttempts;
+
+    /**
+     * Create a backoff and restore the state of a previous process.
+     *
+     * @param context the context used to access shared preferences, may be null
+     */
+    protected SenderBackoff(Context context) {
+        this.random = new Random();
+        this.fileAttempts = new HashMap<String, Integer>();
+        this.settings = context == null ? null :
+              context.getSharedPreferences(SHARED_PREFERENCES_KEY, Context.MODE_PRIVATE);
+        this.load();
+        if (this.settings != null) {
+            this.pruneFileAttempts(new File(context.getFilesDir().getPath() + Persistence.AI_SDK_DIRECTORY));
+        }
+    }
+
+    /**
+     * @return the time in ms until uploads may be started again, 0 if uploads are not paused
+     */
+    protected synchronized long getRemainingPause() {
+        return Math.max(0, this.nextAttemptTime - this.getTime());
+    }
+
+    /**
+     * @return true if uploads are paused because the backend is unhealthy
+     */
+    protected boolean isPaused() {
+        return this.getRemainingPause() > 0;
+    }
+
+    /**
+     * Reset the backoff after the backend accepted or permanently rejected a file.
+     *
+     * @param file the file which has been processed
+     */
+    protected synchronized void onSuccess(File file) {
+        boolean wasFailing = this.failureCount > 0;
+        this.failureCount = 0;
+        this.nextAttemptTime = 0;
+        Integer attempts = this.fileAttempts.remove(file.getName());
+
+        if (this.settings != null && (wasFailing || attempts != null)) {
+            SharedPreferences.Editor editor = this.settings.edit();
+            editor.putInt(FAILURE_COUNT_KEY, 0);
+            editor.putLong(NEXT_ATTEMPT_KEY, 0);
+            editor.remove(FILE_ATTEMPTS_KEY_PREFIX + file.getName());
+            editor.apply();
+        }
+    }
+
+    /**
+     * Pause uploads after a recoverable failure.
+     *
+     * @param retryAfter the delay in ms requested by the backend, or a negative value if the
+     *                   backend didn't request a specific delay
+     * @return the delay in ms until the next upload
+     */
+    protected synchronized long onFailure(long retryAfter) {
+        this.failureCount++;
+        long delay = retryAfter >= 0
+              ? Math.min(retryAfter, MAX_RETRY_AFTER_MS)
+              : this.computeDelay(this.failureCount);
+        this.nextAttemptTime = Math.max(this.nextAttemptTime, this.getTime() + delay);
+
+        if (this.settings != null) {
+            SharedPreferences.Editor editor = this.settings.edit();
+            editor.putInt(FAILURE_COUNT_KEY, this.failureCount);
+            editor.putLong(NEXT_ATTEMPT_KEY, this.nextAttemptTime);
+            editor.apply();
+        }
+
+        InternalLogging.info(TAG, "Pausing uploads after " + this.failureCount + " failure(s)",
+              delay + "ms");
+        return delay;
+    }
+
+    /**
+     * Count a recoverable response the backend sent for the given file.
+     *
+     * @param file the file which has been rejected
+     * @return the number of times the file has been rejected
+     */
+    protected synchronized int recordAttempt(File file) {
+        String name = file.getName();
+        Integer previous = this.fileAttempts.get(name);
+        if (previous == null && this.settings != null) {
+            previous = this.settings.getInt(FILE_ATTEMPTS_KEY_PREFIX + name, 0);
+        }
+
+        int attempts = (previous == null ? 0 : previous) + 1;
+        this.fileAttempts.put(name, attempts);
+        if (this.settings != null) {
+            SharedPreferences.Editor editor = this.settings.edit();
+            editor.putInt(FILE_ATTEMPTS_KEY_PREFIX + name, attempts);
+            editor.apply();
+        }
+
+        return attempts;
+    }
+
+    /**
+     * Hand the attempt count of a file over to a file which contains a part of its items, so the
+     * items aren't retried more often than the file would have been.
+     *
+     * @param file     the new file
+     * @param attempts the number of times the items have been rejected
+     */
+    protected synchronized void carryAttempts(File file, int attempts) {
+        String name = file.getName();
+        Integer previous = this.fileAttempts.get(name);
+        if (previous != null) {
+            // the file has been rejected in the meantime
+            attempts += previous;
+        }
+
+        this.fileAttempts.put(name, attempts);
+        if (this.settings != null) {
+            SharedPreferences.Editor editor = this.settings.edit();
+            editor.putInt(FILE_ATTEMPTS_KEY_PREFIX + name, attempts);
+            editor.apply();
+        }
+    }
+
+    /**
+     * Remove the attempt count of a file which won't be sent again.
+     *
+     * @param file the file which has been deleted
+     */
+    protected synchronized void forget(File file) {
+        Integer attempts = this.fileAttempts.remove(file.getName());
+        if (attempts != null && this.settings != null) {
+            SharedPreferences.Editor editor = this.settings.edit();
+            editor.remove(FILE_ATTEMPTS_KEY_PREFIX + file.getName());
+            editor.apply();
+        }
+    }
+
+    /**
+     * Compute the delay after the given number of consecutive failures. The delay doubles with
+     * every failure and half of it is randomized, so many devices which went offline at the same
+     * time don't retry in lockstep.
+     *
+     * @param failures the number of consecutive failures, at least 1
+     * @return the delay in ms
+     */
+    protected long computeDelay(int failures) {
+        long delay = MAX_BACKOFF_MS;
+        if (failures < 31) {
+            delay = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << (failures - 1));
+        }
+
+        long half = delay / 2;
+        return half + (long) (this.random.nextDouble() * half);
+    }
+
+    /**
+     * Parse the value of a Retry-After header.
+     *
+     * @param value the header value, either a number of seconds or an HTTP date
+     * @return the requested delay in ms, or -1 if the value is missing or invalid
+     */
+    protected long parseRetryAfter(String value) {
+        if (value == null) {
+            return -1;
+        }
+
+        value = value.trim();
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds < 0 ? -1 : seconds * 1000;
+        } catch (NumberFormatException e) {
+            // not a number, try the date format
+        }
+
+        try {
+            SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+            long date = format.parse(value).getTime();
+            return Math.max(0, date - this.getTime());
+        } catch (ParseException e) {
+            InternalLogging.warn(TAG, "Couldn't parse Retry-After header: " + value);
+            return -1;
+        }
+    }
+
+    /**
+     * Restore the state of a previous process.
+     */
+    private void load() {
+        if (this.settings == null) {
+            return;
+        }
+
+        this.failureCount = this.settings.getInt(FAILURE_COUNT_KEY, 0);
+        this.nextAttemptTime = this.settings.getLong(NEXT_ATTEMPT_KEY, 0);
+
+        // guard against a clock which has been set back while the app wasn't running
+        long maxNextAttemptTime = this.getTime() + MAX_RETRY_AFTER_MS;
+        if (this.nextAttemptTime > maxNextAttemptTime) {
+            this.nextAttemptTime = maxNextAttemptTime;
+        }
+    }
+
+    /**
+     * Remove the attempt counts of files which don't exist anymore. Files which are evicted to
+     * enforce the storage quota are deleted without an upload, so their counts are removed here.
+     *
+     * @param directory the directory which contains the persisted files
+     */
+    private void pruneFileAttempts(File directory) {
+        Set<String> names = new HashSet<String>();
+        collectFileNames(directory, names);
+
+        SharedPreferences.Editor editor = null;
+        for (String key : this.settings.getAll().keySet()) {
+            if (key.startsWith(FILE_ATTEMPTS_KEY_PREFIX)
+                  && !names.contains(key.substring(FILE_ATTEMPTS_KEY_PREFIX.length()))) {
+                if (editor == null) {
+                    editor = this.settings.edit();
+                }
+                editor.remove(key);
+            }
+        }
+
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    /**
+     * Add the names of all files in the directory and its subdirectories.
+     */
+    private static void collectFileNames(File directory, Set<String> names) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collectFileNames(file, names);
+            } else {
+                names.add(file.getName());
+            }
+        }
+    }
+
+    /**
+     * Test hook to get the current time.
+     *
+     * @return the current wall clock time in ms
+     */
+    protected long getTime() {
+        return System.currentTimeMillis();
+    }
+}
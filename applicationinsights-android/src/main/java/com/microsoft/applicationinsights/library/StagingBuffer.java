@@ -0,0 +1,218 @@
+package com.microsoft.applicationinsights.library;
+
+import com.microsoft.applicationinsights.logging.InternalLogging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A memory-mapped file into which queued items are copied as soon as they are enqueued. Writes to
+ * the mapping end up in the page cache right away, so they survive the process being killed
+ * without a managed exception (e.g. by the low memory killer) without paying for an fsync per
+ * item. Items are consumed in the order they have been appended, once they have been persisted.
+ * Records which haven't been consumed when the process died are recovered on the next start.
+ * <p/>
+ * The file starts with a header of two ints: a magic number and the offset of the first record
+ * which hasn't been consumed. Each record is an int holding the length of the UTF-8 encoded item
+ * plus one, followed by the item. A zero marks the end of the records, it is written before the
+ * length of a new record is published, so a partially written record is never recovered.
+ */
+class StagingBuffer {
+
+    private static final String TAG = "StagingBuffer";
+
+    /**
+     * The default size of the mapped file
+     */
+    protected static final int DEFAULT_CAPACITY = 256 * 1024;
+
+    private static final int MAGIC = 0x41495342;
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final int HEAD_OFFSET = 4;
+
+    private static final int LENGTH_SIZE = 4;
+
+    /**
+     * The mapped file
+     */
+    private final MappedByteBuffer buffer;
+
+    /**
+     * The offset of the first record which hasn't been consumed
+     */
+    private int head;
+
+    /**
+     * The offset at which the next record is appended
+     */
+    private int tail;
+
+    /**
+     * The number of records which haven't been consumed
+     */
+    private int pendingCount;
+
+    /**
+     * Map the given file, it is created or resized if necessary. Records of a previous process are
+     * kept until they are consumed.
+     *
+     * @param file     the file to map
+     * @param capacity the size of the file in bytes
+     * @throws IOException if the file can't be mapped
+     */
+    protected StagingBuffer(File file, int capacity) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            // the mapping stays valid after the file has been closed
+            this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        this.head = this.buffer.getInt(0) == MAGIC ? this.buffer.getInt(HEAD_OFFSET) : HEADER_SIZE;
+        if (this.head < HEADER_SIZE || this.head > capacity - LENGTH_SIZE) {
+            this.head = HEADER_SIZE;
+            this.buffer.putInt(HEADER_SIZE, 0);
+        }
+
+        // find the end of the records which have been left by a previous process
+        this.tail = this.head;
+        int length = this.readLength(this.tail);
+        while (length >= 0) {
+            this.tail += LENGTH_SIZE + length;
+            this.pendingCount++;
+            length = this.readLength(this.tail);
+        }
+        this.buffer.putInt(this.tail, 0);
+
+        this.buffer.putInt(HEAD_OFFSET, this.head);
+        this.buffer.putInt(0, MAGIC);
+    }
+
+    /**
+     * Copy an item into the buffer.
+     *
+     * @param item the serialized item
+     * @return true if the item has been appended, false if there isn't enough room
+     */
+    protected synchronized boolean append(String item) {
+        byte[] bytes = encode(item);
+        if (!this.hasRoom(bytes.length)) {
+            return false;
+        }
+
+        int start = this.tail + LENGTH_SIZE;
+        this.buffer.position(start);
+        this.buffer.put(bytes);
+        this.buffer.putInt(start + bytes.length, 0);
+        this.buffer.putInt(this.tail, bytes.length + 1);
+
+        this.tail = start + bytes.length;
+        this.pendingCount++;
+        return true;
+    }
+
+    /**
+     * Mark the oldest records as consumed, once the buffer is empty it starts over at the
+     * beginning of the file.
+     *
+     * @param count the number of items which have been persisted
+     */
+    protected synchronized void consume(int count) {
+        count = Math.min(count, this.pendingCount);
+        if (count <= 0) {
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            this.head += LENGTH_SIZE + this.readLength(this.head);
+        }
+        this.pendingCount -= count;
+
+        if (this.pendingCount == 0) {
+            // terminate the records at the start before the header points there
+            this.buffer.putInt(HEADER_SIZE, 0);
+            this.head = HEADER_SIZE;
+            this.tail = HEADER_SIZE;
+        }
+        this.buffer.putInt(HEAD_OFFSET, this.head);
+    }
+
+    /**
+     * @return the items which haven't been consumed, oldest first
+     */
+    protected synchronized String[] pendingItems() {
+        List<String> items = new ArrayList<String>(this.pendingCount);
+        int offset = this.head;
+        for (int i = 0; i < this.pendingCount; i++) {
+            int length = this.readLength(offset);
+            byte[] bytes = new byte[length];
+            this.buffer.position(offset + LENGTH_SIZE);
+            this.buffer.get(bytes);
+            items.add(decode(bytes));
+            offset += LENGTH_SIZE + length;
+        }
+
+        return items.toArray(new String[items.size()]);
+    }
+
+    /**
+     * @return the number of items which haven't been consumed
+     */
+    protected synchronized int pendingCount() {
+        return this.pendingCount;
+    }
+
+    /**
+     * @param length the length of an encoded item
+     * @return true if a record of the given length and the end marker fit behind the last record
+     */
+    private boolean hasRoom(int length) {
+        return (long) this.tail + LENGTH_SIZE + length + LENGTH_SIZE <= this.buffer.capacity();
+    }
+
+    /**
+     * Read the length of the record at the given offset.
+     *
+     * @param offset the offset of the record
+     * @return the length of the item, or -1 if there is no complete record at the offset
+     */
+    private int readLength(int offset) {
+        if (offset > this.buffer.capacity() - LENGTH_SIZE) {
+            return -1;
+        }
+
+        int length = this.buffer.getInt(offset) - 1;
+        if (length < 0 || offset + LENGTH_SIZE + length > this.buffer.capacity() - LENGTH_SIZE) {
+            return -1;
+        }
+
+        return length;
+    }
+
+    private static byte[] encode(String item) {
+        try {
+            return item.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            InternalLogging.warn(TAG, "Couldn't encode item: " + e.toString());
+            return new byte[0];
+        }
+    }
+
+    private static String decode(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            InternalLogging.warn(TAG, "Couldn't decode item: " + e.toString());
+            return "";
+        }
+    }
+}
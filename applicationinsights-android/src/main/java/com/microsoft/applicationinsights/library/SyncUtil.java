@@ -51,6 +51,7 @@ class SyncUtil implements ComponentCallbacks2 {
             if (level == TRIM_MEMORY_UI_HIDDEN) {
                 InternalLogging.info(TAG, "UI of the app is hidden");
                 InternalLogging.info(TAG, "Syncing data");
+                TelemetryClient.getInstance().flushMetrics();
                 Channel.getInstance().synchronize();
             } else if (level == TRIM_MEMORY_RUNNING_LOW) {
                 InternalLogging.info(TAG, "Memory running low, syncing data");
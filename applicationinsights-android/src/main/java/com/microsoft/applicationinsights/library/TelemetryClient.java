@@ -2,17 +2,15 @@ package com.microsoft.applicationinsights.library;
 
 import android.app.Application;
 
+import com.microsoft.applicationinsights.contracts.DependencyKind;
+import com.microsoft.applicationinsights.contracts.RemoteDependencyData;
 import com.microsoft.applicationinsights.contracts.TelemetryData;
 import com.microsoft.applicationinsights.library.config.Configuration;
 import com.microsoft.applicationinsights.logging.InternalLogging;
 
 import java.lang.ref.WeakReference;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.RejectedExecutionHandler;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 /**
  * The public API for recording application insights telemetry.
@@ -47,9 +45,24 @@ public class TelemetryClient {
     private static final Object LOCK = new Object();
 
     /**
-     * Executor service for running track operations on several threads.
+     * Queue which hands track operations to a single worker thread.
      */
-    private ThreadPoolExecutor threadPoolExecutor;
+    private IngestionQueue ingestionQueue;
+
+    /**
+     * Aggregates tracked metrics and the values of metric series.
+     */
+    private MetricAggregator metricAggregator;
+
+    /**
+     * Aggregates tracked dependency calls.
+     */
+    private DependencyAggregator dependencyAggregator;
+
+    /**
+     * A flag, which determines if values passed to trackMetric and trackDependency are aggregated.
+     */
+    private boolean isTrackAggregated;
 
     /**
      * A flag, which determines if auto page views should be disabled.
@@ -81,30 +94,18 @@ public class TelemetryClient {
      */
     protected TelemetryClient(boolean telemetryEnabled) {
         this.telemetryEnabled = telemetryEnabled;
-        configThreadPool();
-    }
-
-    private void configThreadPool(){
-        int corePoolSize = 5;
-        int maxPoolSize = 10;
-        int queueSize = 5;
-        long timeout = 1;
-        ArrayBlockingQueue<Runnable> queue= new ArrayBlockingQueue<Runnable>(queueSize);
-        ThreadFactory threadFactory = new ThreadFactory() {
-            @Override
-            public Thread newThread(Runnable r) {
-                Thread thread = new Thread(r);
-                thread.setDaemon(false);
-                return thread;
-            }
-        };
-        RejectedExecutionHandler handler = new RejectedExecutionHandler() {
-            @Override
-            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
-                InternalLogging.error(TAG, "too many track() calls at a time");
-            }
-        };
-        threadPoolExecutor = new ThreadPoolExecutor(corePoolSize, maxPoolSize, timeout, TimeUnit.SECONDS, queue, threadFactory, handler);
+        Configuration configuration = ApplicationInsights.getConfiguration();
+        this.ingestionQueue = new IngestionQueue(configuration);
+        long aggregationIntervalMs = configuration.getMetricAggregationIntervalMs();
+        this.isTrackAggregated = aggregationIntervalMs > 0;
+        this.metricAggregator = new MetricAggregator(this.ingestionQueue);
+        // metric series are always aggregated
+        this.metricAggregator.start(this.isTrackAggregated ? aggregationIntervalMs
+              : MetricAggregator.DEFAULT_INTERVAL_MS);
+        if (this.isTrackAggregated) {
+            this.dependencyAggregator = new DependencyAggregator(this.ingestionQueue);
+            this.dependencyAggregator.start(aggregationIntervalMs);
+        }
     }
 
     /**
@@ -184,12 +185,14 @@ public class TelemetryClient {
      * Sends information about any object that extend TelemetryData interface to Application Insights.
      * For most use-cases, the other tracking methods will be sufficient. Providing this generic method
      * for very specific uses.
+     * Note: the object is handed over to Application Insights and sent on a background thread, so it
+     * must not be modified after it has been tracked.
      *
      * @param telemetry an object that extends TelemetryData
      */
     public void track(TelemetryData telemetry) {
         if (isTelemetryEnabled()) {
-            this.threadPoolExecutor.execute(new TrackDataOperation(telemetry));
+            this.ingestionQueue.enqueue(new TrackDataOperation(telemetry));
         }
     }
 
@@ -206,7 +209,7 @@ public class TelemetryClient {
           Map<String, String> properties,
           Map<String, Double> measurements) {
         if (isTelemetryEnabled()) {
-            this.threadPoolExecutor.execute(new TrackDataOperation(TrackDataOperation.DataType.EVENT,
+            this.ingestionQueue.enqueue(new TrackDataOperation(TrackDataOperation.DataType.EVENT,
                     eventName, properties, measurements));
         }
     }
@@ -229,7 +232,7 @@ public class TelemetryClient {
      */
     public void trackTrace(String message, Map<String, String> properties) {
         if (isTelemetryEnabled()) {
-            this.threadPoolExecutor.execute(new TrackDataOperation(TrackDataOperation.DataType.TRACE,
+            this.ingestionQueue.enqueue(new TrackDataOperation(TrackDataOperation.DataType.TRACE,
                     message, properties, null));
         }
     }
@@ -248,15 +251,130 @@ public class TelemetryClient {
 
     /**
      * Sends information about an aggregated metric to Application Insights. Note: all data sent via
-     * this method will be aggregated. To log non-aggregated data use
-     * {@link TelemetryClient#trackEvent(String, Map, Map)} with measurements.
+     * this method will be aggregated. If an
+     * {@link Configuration#setMetricAggregationIntervalMs aggregation interval} has been set, values
+     * with the same name and properties are sent as a single data point per interval. To log
+     * non-aggregated data use {@link TelemetryClient#trackEvent(String, Map, Map)} with
+     * measurements.
      *
      * @param name  The name of the metric
      * @param value The value of the metric
      */
     public void trackMetric(String name, double value, Map<String, String> properties) {
         if (isTelemetryEnabled()) {
-            this.threadPoolExecutor.execute(new TrackDataOperation(TrackDataOperation.DataType.METRIC, name, value, properties));
+            if (!this.isTrackAggregated || !this.metricAggregator.track(name, value, properties)) {
+                this.ingestionQueue.enqueue(new TrackDataOperation(TrackDataOperation.DataType.METRIC, name, value, properties));
+            }
+        }
+    }
+
+    /**
+     * Send the metrics and dependency calls which have been aggregated so far without waiting for
+     * the end of the aggregation interval.
+     */
+    protected void flushMetrics() {
+        this.metricAggregator.flush();
+        DependencyAggregator aggregator = this.dependencyAggregator;
+        if (aggregator != null) {
+            aggregator.flush();
+        }
+    }
+
+    /**
+     * Run a task once the track calls which have been queued so far have been handed to the
+     * channel. On the main thread the ingestion worker processes the calls and runs the task, so
+     * the caller never waits. Other threads process the calls and run the task themselves.
+     *
+     * @param whenProcessed the task to run afterwards, e.g. synchronizing the channel
+     */
+    protected static void flushIngestionQueue(Runnable whenProcessed) {
+        TelemetryClient client = TelemetryClient.instance;
+        if (client == null) {
+            whenProcessed.run();
+        } else if (Util.isMainThread()) {
+            client.ingestionQueue.flush(whenProcessed);
+        } else {
+            client.ingestionQueue.drain();
+            whenProcessed.run();
+        }
+    }
+
+    /**
+     * Gets the series of a metric. Recording values through a series is cheaper than calling
+     * {@link TelemetryClient#trackMetric(String, double, Map)} for each value, because the series
+     * is looked up once and recording doesn't allocate. Values are aggregated even if
+     * {@link Configuration#setMetricAggregationIntervalMs} is 0, in that case at the default
+     * interval.
+     *
+     * @param name       The name of the metric
+     * @param properties Custom properties associated with the metric, may be null
+     * @return the series of the metric, values recorded into it are dropped if tracking telemetry
+     * is disabled
+     */
+    public MetricSeries getMetricSeries(String name, Map<String, String> properties) {
+        if (isTelemetryEnabled()) {
+            return this.metricAggregator.getSeries(name, properties, false);
+        }
+        return new MetricSeries(name, properties == null ? null : new HashMap<String, String>(properties), false);
+    }
+
+    /**
+     * Gets the histogram series of a metric. In addition to the aggregate of
+     * {@link TelemetryClient#getMetricSeries(String, Map)}, the data point of a histogram series
+     * has the estimated percentiles of the values as properties p50, p90 and p99. The estimates
+     * have a relative error of at most 2 percent, values which are zero or negative are counted
+     * as zero.
+     *
+     * @param name       The name of the metric
+     * @param properties Custom properties associated with the metric, may be null
+     * @return the histogram series of the metric, values recorded into it are dropped if tracking
+     * telemetry is disabled
+     */
+    public MetricSeries getHistogramSeries(String name, Map<String, String> properties) {
+        if (isTelemetryEnabled()) {
+            return this.metricAggregator.getSeries(name, properties, true);
+        }
+        return new MetricSeries(name, properties == null ? null : new HashMap<String, String>(properties), true);
+    }
+
+    /**
+     * {@code kind} defaults to {@link DependencyKind#OTHER}.
+     * {@code resultCode} defaults to {@code null}.
+     * {@code properties} defaults to {@code null}.
+     *
+     * @see TelemetryClient#trackDependency(DependencyKind, String, String, long, boolean, String, Map)
+     */
+    public void trackDependency(String name, String commandName, long durationMs, boolean success) {
+        trackDependency(DependencyKind.OTHER, name, commandName, durationMs, success, null, null);
+    }
+
+    /**
+     * Sends information about a call to a remote dependency to Application Insights. If an
+     * {@link Configuration#setMetricAggregationIntervalMs aggregation interval} has been set, calls
+     * with the same kind, name, command name, outcome, result code and properties are sent as a
+     * single item with count, min and max of the durations per interval. To time HTTP calls use
+     * {@link DependencyTimer}.
+     *
+     * @param kind        The kind of the dependency, e.g. HTTP
+     * @param name        The name of the dependency, e.g. the host
+     * @param commandName The command which has been executed, e.g. the method and path
+     * @param durationMs  The duration of the call in milliseconds
+     * @param success     True if the call succeeded
+     * @param resultCode  The result code of the call, e.g. the HTTP status code, may be null
+     * @param properties  Custom properties associated with the call, may be null
+     */
+    public void trackDependency(DependencyKind kind, String name, String commandName, long durationMs,
+                                boolean success, String resultCode, Map<String, String> properties) {
+        if (isTelemetryEnabled()) {
+            DependencyAggregator aggregator = this.dependencyAggregator;
+            if (aggregator == null || !aggregator.track(kind, name, commandName, durationMs, success,
+                  resultCode, properties)) {
+                RemoteDependencyData data = DependencyAggregator.createData(kind, name, commandName,
+                      success, resultCode, properties);
+                data.setValue(durationMs);
+                data.setCount(1);
+                this.ingestionQueue.enqueue(new TrackDataOperation(data));
+            }
         }
     }
 
@@ -285,7 +403,7 @@ public class TelemetryClient {
      */
     public void trackPageView(String pageName, Map<String, String> properties, Map<String, Double> measurements) {
         if (isTelemetryEnabled()) {
-            this.threadPoolExecutor.execute(new TrackDataOperation(TrackDataOperation.DataType.PAGE_VIEW,
+            this.ingestionQueue.enqueue(new TrackDataOperation(TrackDataOperation.DataType.PAGE_VIEW,
                     pageName, properties, measurements));
         }
     }
@@ -295,10 +413,30 @@ public class TelemetryClient {
      */
     public void trackNewSession() {
         if (isTelemetryEnabled()) {
-            this.threadPoolExecutor.execute(new TrackDataOperation(TrackDataOperation.DataType.NEW_SESSION));
+            this.ingestionQueue.enqueue(new TrackDataOperation(TrackDataOperation.DataType.NEW_SESSION));
         }
     }
 
+    /**
+     * Queue an automatically collected item, which is sent even if tracking telemetry data
+     * manually is disabled.
+     *
+     * @param operation the operation which creates the item
+     */
+    protected void enqueue(TrackDataOperation operation) {
+        this.ingestionQueue.enqueue(operation);
+    }
+
+    /**
+     * Gets the number of track calls which have been dropped because they couldn't be queued, see
+     * {@link Configuration#setOverflowPolicy}.
+     *
+     * @return the number of dropped items
+     */
+    public long getDroppedItemCount() {
+        return this.ingestionQueue.getDroppedCount();
+    }
+
     /**
      * Determines, whether tracking telemetry data is enabled or not.
      *
@@ -29,6 +29,8 @@ import java.lang.reflect.Method;
 import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.UUID;
 
 /**
@@ -61,13 +63,21 @@ public class TelemetryContext {
      */
     private static final Object LOCK = new Object();
 
+    /**
+     * Synchronization LOCK for changing this context, readers use the published snapshot instead
+     */
+    private final Object INSTANCE_LOCK = new Object();
 
-    private final Object IKEY_LOCK = new Object();
+    /**
+     * The delay after which changed user information is written to shared preferences, so a burst
+     * of changes is written at once
+     */
+    private static final long SAVE_USER_INFO_DELAY_MS = 100;
 
     /**
-     * Synchronization LOCK for setting static context
+     * The timer which writes changed user information to shared preferences
      */
-    private final Object INSTANCE_LOCK = new Object();
+    private static Timer preferencesTimer;
 
     /**
      * The shared preferences INSTANCE for reading persistent context
@@ -119,6 +129,21 @@ public class TelemetryContext {
      */
     private final Operation operation;
 
+    /**
+     * The immutable snapshot of this context, replaced whenever the context is changed
+     */
+    private volatile ContextSnapshot snapshot;
+
+    /**
+     * The version of the published snapshot
+     */
+    private int version;
+
+    /**
+     * True if user information has been changed and not been written to shared preferences, yet
+     */
+    private boolean isUserInfoDirty;
+
     private TelemetryContext() {
         this.operation = new Operation();
         this.device = new Device();
@@ -126,6 +151,7 @@ public class TelemetryContext {
         this.user = new User();
         this.internal = new Internal();
         this.application = new Application();
+        this.publish();
     }
 
     /**
@@ -335,20 +361,62 @@ public class TelemetryContext {
      */
     protected void saveUserInfo() {
         SharedPreferences.Editor editor = this.settings.edit();
-        editor.putString(TelemetryContext.USER_ID_KEY, getUserId());
-        editor.putString(TelemetryContext.USER_ACQ_KEY, getUserAcqusitionDate());
-        editor.putString(TelemetryContext.USER_ACCOUNT_ID_KEY, getAccountId());
-        editor.putString(TelemetryContext.USER_AUTH_USER_ID_KEY, getAuthenticatedUserId());
-        editor.putString(TelemetryContext.USER_AUTH_ACQ_DATE_KEY, getAuthenticatedUserAcquisitionDate());
-        editor.putString(TelemetryContext.USER_ANON_ACQ_DATE_KEY, getAnonymousUserAcquisitionDate());
+        synchronized (this.INSTANCE_LOCK) {
+            this.isUserInfoDirty = false;
+            editor.putString(TelemetryContext.USER_ID_KEY, getUserId());
+            editor.putString(TelemetryContext.USER_ACQ_KEY, getUserAcqusitionDate());
+            editor.putString(TelemetryContext.USER_ACCOUNT_ID_KEY, getAccountId());
+            editor.putString(TelemetryContext.USER_AUTH_USER_ID_KEY, getAuthenticatedUserId());
+            editor.putString(TelemetryContext.USER_AUTH_ACQ_DATE_KEY, getAuthenticatedUserAcquisitionDate());
+            editor.putString(TelemetryContext.USER_ANON_ACQ_DATE_KEY, getAnonymousUserAcquisitionDate());
+        }
         editor.apply();
     }
 
+    /**
+     * Write user information to shared preferences after a short delay, all changes which are made
+     * in the meantime are written at once. Must be called while holding the INSTANCE_LOCK.
+     */
+    private void scheduleSaveUserInfo() {
+        if (this.isUserInfoDirty) {
+            // a write is pending already
+            return;
+        }
+
+        this.isUserInfoDirty = true;
+        synchronized (TelemetryContext.LOCK) {
+            if (preferencesTimer == null) {
+                preferencesTimer = new Timer("Application Insights Context", true);
+            }
+            preferencesTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    saveUserInfoIfDirty();
+                }
+            }, SAVE_USER_INFO_DELAY_MS);
+        }
+    }
+
+    /**
+     * Write user information to shared preferences if there are pending changes.
+     */
+    private void saveUserInfoIfDirty() {
+        boolean isDirty;
+        synchronized (this.INSTANCE_LOCK) {
+            isDirty = this.isUserInfoDirty;
+        }
+        if (isDirty) {
+            saveUserInfo();
+        }
+    }
+
     /**
      * Load user information to shared preferences.
      *
      */
     protected void loadUserInfo() {
+        // pending changes must not be overwritten with what has been written before
+        saveUserInfoIfDirty();
         User user = new User();
 
         String userId = this.settings.getString(TelemetryContext.USER_ID_KEY, null);
@@ -503,292 +571,329 @@ public class TelemetryContext {
         return appIdForEnvelope;
     }
 
+    /**
+     * @return a copy of the current context tags, which can be modified
+     */
     protected Map<String, String> getContextTags() {
-        Map<String, String> contextTags = new LinkedHashMap<String, String>();
+        return new LinkedHashMap<String, String>(this.snapshot.getTags());
+    }
 
-        synchronized (this.application){
-            this.application.addToHashMap(contextTags);
-        }
-        synchronized (this.internal){
-            this.internal.addToHashMap(contextTags);
-        }
-        synchronized (this.operation){
-            this.operation.addToHashMap(contextTags);
-        }
-        synchronized (this.device){
-            this.device.addToHashMap(contextTags);
-        }
-        synchronized (this.session){
-            this.session.addToHashMap(contextTags);
-        }
-        synchronized (this.user) {
-            this.user.addToHashMap(contextTags);
-        }
+    /**
+     * Get the immutable snapshot of this context. Reading it doesn't take any lock, envelopes which
+     * are created until the context is changed share the snapshot.
+     *
+     * @return the snapshot of the current context
+     */
+    protected ContextSnapshot getSnapshot() {
+        return this.snapshot;
+    }
 
-        return contextTags;
+    /**
+     * Publish a new snapshot after this context has been changed (copy-on-write). Must be called
+     * while holding the INSTANCE_LOCK, or from the constructor.
+     */
+    private void publish() {
+        Map<String, String> contextTags = new LinkedHashMap<String, String>();
+        this.application.addToHashMap(contextTags);
+        this.internal.addToHashMap(contextTags);
+        this.operation.addToHashMap(contextTags);
+        this.device.addToHashMap(contextTags);
+        this.session.addToHashMap(contextTags);
+        this.user.addToHashMap(contextTags);
+
+        this.snapshot = new ContextSnapshot(++this.version, this.instrumentationKey,
+              this.appIdForEnvelope, contextTags);
     }
 
     public String getInstrumentationKey() {
-        synchronized(IKEY_LOCK){
-            return this.instrumentationKey;
-        }
+        return this.snapshot.getInstrumentationKey();
     }
 
-    public synchronized void setInstrumentationKey(String instrumentationKey) {
-        synchronized(IKEY_LOCK){
+    public void setInstrumentationKey(String instrumentationKey) {
+        synchronized (this.INSTANCE_LOCK) {
             this.instrumentationKey = instrumentationKey;
+            this.publish();
         }
     }
 
     public String getScreenResolution() {
-        synchronized (this.application) {
+        synchronized (this.INSTANCE_LOCK) {
             return this.device.getScreenResolution();
         }
     }
 
     public void setScreenResolution(String screenResolution) {
-        synchronized (this.application) {
-            this.device.setScreenResolution(screenResolution);
+        synchronized (this.INSTANCE_LOCK) {
+            String previous = this.device.getScreenResolution();
+            if (previous == null ? screenResolution != null : !previous.equals(screenResolution)) {
+                this.device.setScreenResolution(screenResolution);
+                this.publish();
+            }
         }
     }
 
     public String getAppVersion() {
-        synchronized (this.application) {
+        synchronized (this.INSTANCE_LOCK) {
             return this.application.getVer();
         }
     }
 
     public void setAppVersion(String appVersion) {
-        synchronized (this.application){
+        synchronized (this.INSTANCE_LOCK) {
             this.application.setVer(appVersion);
+            this.publish();
         }
     }
 
     public String getUserId() {
-        synchronized (this.user) {
+        synchronized (this.INSTANCE_LOCK) {
             return this.user.getId();
         }
     }
 
     public void setUserId(String userId) {
-        synchronized (this.user){
+        synchronized (this.INSTANCE_LOCK) {
             this.user.setId(userId);
+            this.publish();
             if (this == instance) {
-                saveUserInfo();
+                scheduleSaveUserInfo();
             }
         }
     }
 
     public String getUserAcqusitionDate() {
-        synchronized (this.user){
+        synchronized (this.INSTANCE_LOCK) {
             return this.user.getAccountAcquisitionDate();
         }
     }
 
     public void setUserAcqusitionDate(String userAcqusitionDate) {
-        synchronized (this.user){
+        synchronized (this.INSTANCE_LOCK) {
             this.user.setAccountAcquisitionDate(userAcqusitionDate);
+            this.publish();
             if (this == instance) {
-                saveUserInfo();
+                scheduleSaveUserInfo();
             }
         }
     }
 
     public String getAccountId() {
-        synchronized (this.user){
+        synchronized (this.INSTANCE_LOCK) {
             return this.user.getAccountId();
         }
     }
 
     public void setAccountId(String accountId) {
-        synchronized (this.user){
+        synchronized (this.INSTANCE_LOCK) {
             this.user.setAccountId(accountId);
+            this.publish();
             if (this == instance) {
-                saveUserInfo();
+                scheduleSaveUserInfo();
             }
         }
     }
 
     public String getAuthenticatedUserId() {
-        synchronized (this.user){
+        synchronized (this.INSTANCE_LOCK) {
             return this.user.getAuthUserId();
         }
     }
 
     public void setAuthenticatedUserId(String authenticatedUserId) {
-        synchronized (this.user){
+        synchronized (this.INSTANCE_LOCK) {
             this.user.setAuthUserId(authenticatedUserId);
+            this.publish();
             if (this == instance) {
-                saveUserInfo();
+                scheduleSaveUserInfo();
             }
         }
     }
 
     public String getAuthenticatedUserAcquisitionDate() {
-        synchronized (this.user){
+        synchronized (this.INSTANCE_LOCK) {
             return this.user.getAuthUserAcquisitionDate();
         }
     }
 
     public void setAuthenticatedUserAcquisitionDate(String authenticatedUserAcquisitionDate) {
-        synchronized (this.user){
+        synchronized (this.INSTANCE_LOCK) {
             this.user.setAuthUserAcquisitionDate(authenticatedUserAcquisitionDate);
+            this.publish();
             if (this == instance) {
-                saveUserInfo();
+                scheduleSaveUserInfo();
             }
         }
     }
 
     public String getAnonymousUserAcquisitionDate() {
-        synchronized (this.user){
+        synchronized (this.INSTANCE_LOCK) {
             return this.user.getAnonUserAcquisitionDate();
         }
     }
 
     public void setAnonymousUserAcquisitionDate(String anonymousUserAcquisitionDate) {
-        synchronized (this.user){
+        synchronized (this.INSTANCE_LOCK) {
             this.user.setAnonUserAcquisitionDate(anonymousUserAcquisitionDate);
+            this.publish();
             if (this == instance) {
-                saveUserInfo();
+                scheduleSaveUserInfo();
             }
         }
     }
 
     public String getSdkVersion() {
-        synchronized (this.internal){
+        synchronized (this.INSTANCE_LOCK) {
             return this.internal.getSdkVersion();
         }
     }
 
     public void setSdkVersion(String sdkVersion) {
-        synchronized (this.internal){
+        synchronized (this.INSTANCE_LOCK) {
             this.internal.setSdkVersion(sdkVersion);
+            this.publish();
         }
     }
 
     public String getSessionId() {
-        synchronized (this.session){
+        synchronized (this.INSTANCE_LOCK) {
             return this.session.getId();
         }
     }
 
     public void setSessionId(String sessionId) {
-        synchronized (this.session){
+        synchronized (this.INSTANCE_LOCK) {
             this.session.setId(sessionId);
+            this.publish();
         }
     }
 
     public String getIsFirstSession() {
-        synchronized (this.session){
+        synchronized (this.INSTANCE_LOCK) {
             return this.session.getIsFirst();
         }
     }
 
     public void setIsFirstSession(String isFirst) {
-        synchronized (this.session){
+        synchronized (this.INSTANCE_LOCK) {
             this.session.setIsFirst(isFirst);
+            this.publish();
         }
     }
 
     public String getIsNewSession() {
-        synchronized (this.session){
+        synchronized (this.INSTANCE_LOCK) {
             return this.session.getIsNew();
         }
     }
 
     public void setIsNewSession(String isFirst) {
-        synchronized (this.session){
+        synchronized (this.INSTANCE_LOCK) {
             this.session.setIsNew(isFirst);
+            this.publish();
         }
     }
 
     public String getOsVersion() {
-        synchronized (this.device) {
+        synchronized (this.INSTANCE_LOCK) {
             return this.device.getOsVersion();
         }
     }
 
     public void setOsVersion(String osVersion) {
-        synchronized (this.device) {
+        synchronized (this.INSTANCE_LOCK) {
             this.device.setOsVersion(osVersion);
+            this.publish();
         }
     }
 
     public String getOsName() {
-        synchronized (this.device) {
+        synchronized (this.INSTANCE_LOCK) {
             return this.device.getOs();
         }
     }
 
     public void setOsName(String osName) {
-        synchronized (this.device) {
+        synchronized (this.INSTANCE_LOCK) {
             this.device.setOs(osName);
+            this.publish();
         }
     }
 
     public String getDeviceModel() {
-        synchronized (this.device){
+        synchronized (this.INSTANCE_LOCK) {
             return this.device.getModel();
         }
     }
 
     public void setDeviceModel(String deviceModel) {
-        synchronized (this.device){
+        synchronized (this.INSTANCE_LOCK) {
             this.device.setModel(deviceModel);
+            this.publish();
         }
     }
 
     public String getDeviceOemName() {
-        synchronized (this.device) {
+        synchronized (this.INSTANCE_LOCK) {
             return this.device.getOemName();
         }
     }
 
     public void setDeviceOemName(String deviceOemName) {
-        synchronized (this.device) {
+        synchronized (this.INSTANCE_LOCK) {
             this.device.setOemName(deviceOemName);
+            this.publish();
         }
     }
 
     public String getOsLocale() {
-        synchronized (this.device){
+        synchronized (this.INSTANCE_LOCK) {
             return this.device.getLocale();
         }
     }
 
     public void setOsLocale(String osLocale) {
-        synchronized (this.device){
+        synchronized (this.INSTANCE_LOCK) {
             this.device.setLocale(osLocale);
+            this.publish();
         }
     }
 
     public String getDeviceId() {
-        return this.device.getId();
+        synchronized (this.INSTANCE_LOCK) {
+            return this.device.getId();
+        }
     }
 
     public void setDeviceId(String deviceId) {
-        synchronized (this.device){
+        synchronized (this.INSTANCE_LOCK) {
             this.device.setId(deviceId);
+            this.publish();
         }
     }
 
     public String getDeviceType() {
-        return this.device.getType();
+        synchronized (this.INSTANCE_LOCK) {
+            return this.device.getType();
+        }
     }
 
     public void setDeviceType(String deviceType) {
-        synchronized (this.device){
+        synchronized (this.INSTANCE_LOCK) {
             this.device.setType(deviceType);
+            this.publish();
         }
     }
 
     public String getNetworkType() {
-        return this.device.getNetwork();
+        synchronized (this.INSTANCE_LOCK) {
+            return this.device.getNetwork();
+        }
     }
 
     public void setNetworkType(String networkType) {
-        synchronized (this.device) {
+        synchronized (this.INSTANCE_LOCK) {
             this.device.setNetwork(networkType);
+            this.publish();
         }
     }
 }
@@ -0,0 +1,155 @@
+package com.microsoft.applicationinsights.library;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Formats epoch milliseconds as ISO 8601 UTC timestamps (yyyy-MM-ddTHH:mm:ss.SSSZ) without a
+ * Calendar. The date and time up to the seconds are computed once per second and cached in an
+ * immutable object, items which are tracked within the same second only write the milliseconds.
+ * The cached second is published through a volatile field and never modified, so threads which
+ * race on it at most format the same second twice and the formatter is thread-safe.
+ */
+class TimestampFormatter {
+
+    /**
+     * The length of a formatted timestamp
+     */
+    protected static final int LENGTH = 24;
+
+    /**
+     * The length of the cached part, yyyy-MM-ddTHH:mm:ss
+     */
+    private static final int SECONDS_LENGTH = 19;
+
+    private static final long MS_PER_SECOND = 1000L;
+
+    private static final long SECONDS_PER_DAY = 24L * 60 * 60;
+
+    /**
+     * The last epoch second which has been formatted
+     */
+    private static volatile Second lastSecond = new Second(0);
+
+    private TimestampFormatter() {
+    }
+
+    /**
+     * @param epochMillis the milliseconds since 1970-01-01T00:00:00Z
+     * @return the ISO 8601 timestamp
+     */
+    protected static String format(long epochMillis) {
+        char[] buffer = new char[LENGTH];
+        if (!format(epochMillis, buffer, 0)) {
+            return formatSlowly(epochMillis);
+        }
+        return new String(buffer);
+    }
+
+    /**
+     * Write the timestamp into a buffer.
+     *
+     * @param epochMillis the milliseconds since 1970-01-01T00:00:00Z
+     * @param buffer      the buffer, it must have room for {@link #LENGTH} chars at the offset
+     * @param offset      the offset at which the timestamp is written
+     * @return false if the year isn't within 0 and 9999 and nothing has been written
+     */
+    protected static boolean format(long epochMillis, char[] buffer, int offset) {
+        long epochSecond = floorDiv(epochMillis, MS_PER_SECOND);
+        int millis = (int) (epochMillis - epochSecond * MS_PER_SECOND);
+
+        Second second = lastSecond;
+        if (second.epochSecond != epochSecond) {
+            second = new Second(epochSecond);
+            lastSecond = second;
+        }
+        if (second.chars == null) {
+            return false;
+        }
+
+        System.arraycopy(second.chars, 0, buffer, offset, SECONDS_LENGTH);
+        buffer[offset + 19] = '.';
+        buffer[offset + 20] = (char) ('0' + millis / 100);
+        buffer[offset + 21] = (char) ('0' + millis / 10 % 10);
+        buffer[offset + 22] = (char) ('0' + millis % 10);
+        buffer[offset + 23] = 'Z';
+        return true;
+    }
+
+    /**
+     * Format timestamps out of the supported range, the format is local to the call.
+     */
+    private static String formatSlowly(long epochMillis) {
+        DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(epochMillis));
+    }
+
+    private static long floorDiv(long dividend, long divisor) {
+        long quotient = dividend / divisor;
+        if ((dividend % divisor != 0) && ((dividend < 0) != (divisor < 0))) {
+            quotient--;
+        }
+        return quotient;
+    }
+
+    /**
+     * An epoch second and its formatted date and time, never modified after construction
+     */
+    private static class Second {
+
+        private final long epochSecond;
+
+        /**
+         * The formatted date and time, null if the year isn't within 0 and 9999
+         */
+        private final char[] chars;
+
+        Second(long epochSecond) {
+            this.epochSecond = epochSecond;
+
+            long epochDay = floorDiv(epochSecond, SECONDS_PER_DAY);
+            int secondOfDay = (int) (epochSecond - epochDay * SECONDS_PER_DAY);
+
+            // civil date of a day count, see http://howardhinnant.github.io/date_algorithms.html
+            long days = epochDay + 719468;
+            long era = floorDiv(days, 146097);
+            int dayOfEra = (int) (days - era * 146097);
+            int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            int shiftedMonth = (5 * dayOfYear + 2) / 153;
+            int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+            int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+            long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+            if (year < 0 || year > 9999) {
+                this.chars = null;
+                return;
+            }
+
+            char[] result = new char[SECONDS_LENGTH];
+            writeDigits(result, 0, (int) year, 4);
+            result[4] = '-';
+            writeDigits(result, 5, month, 2);
+            result[7] = '-';
+            writeDigits(result, 8, day, 2);
+            result[10] = 'T';
+            writeDigits(result, 11, secondOfDay / 3600, 2);
+            result[13] = ':';
+            writeDigits(result, 14, secondOfDay / 60 % 60, 2);
+            result[16] = ':';
+            writeDigits(result, 17, secondOfDay % 60, 2);
+            this.chars = result;
+        }
+
+        private static void writeDigits(char[] buffer, int offset, int value, int count) {
+            for (int i = offset + count - 1; i >= offset; i--) {
+                buffer[i] = (char) ('0' + value % 10);
+                value /= 10;
+            }
+        }
+    }
+}
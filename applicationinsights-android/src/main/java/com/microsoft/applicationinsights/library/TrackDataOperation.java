@@ -1,14 +1,11 @@
 package com.microsoft.applicationinsights.library;
 
+import com.microsoft.applicationinsights.contracts.DataPoint;
 import com.microsoft.applicationinsights.contracts.TelemetryData;
 import com.microsoft.telemetry.Data;
 import com.microsoft.telemetry.Domain;
 import com.microsoft.telemetry.IChannel;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -25,8 +22,11 @@ class TrackDataOperation implements Runnable {
     private boolean handled;
     // metric
     private double metric;
-    // unmanaged exceptions
-    private Throwable exception;
+    // aggregated metric
+    private DataPoint aggregate;
+    // unmanaged exceptions, captured when tracked
+    private String exceptionType;
+    private StackTraceElement[] exceptionStack;
     // page views
     private long duration;
     // custom
@@ -34,20 +34,13 @@ class TrackDataOperation implements Runnable {
 
     protected TrackDataOperation(TelemetryData telemetry) {
         this.type = DataType.NONE;
-        try {
-            this.telemetry = (TelemetryData) deepCopy(telemetry);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        // the caller hands the object over and must not modify it after tracking
+        this.telemetry = telemetry;
     }
 
     protected TrackDataOperation(DataType type, String name) {
         this.type = type;
-        try {
-            this.name = (String) deepCopy(name);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        this.name = name; // no need to copy as strings are immutable
     }
 
     protected TrackDataOperation(DataType type) {
@@ -60,23 +53,26 @@ class TrackDataOperation implements Runnable {
         this.metric = metric;  // no need to copy as enum is pass by value
     }
 
+    protected TrackDataOperation(DataPoint aggregate, Map<String, String> properties) {
+        this.type = DataType.AGGREGATED_METRIC;
+        // the aggregator hands over the data point and its own copy of the properties
+        this.aggregate = aggregate;
+        this.properties = properties;
+    }
+
     protected TrackDataOperation(DataType type,
                                  String name,
                                  Map<String, String> properties,
                                  Map<String, Double> measurements) {
         this.type = type; // no need to copy as enum is pass by value
-        try {
-            this.name = (String) deepCopy(name);
-            if (properties != null) {
-                this.properties = new HashMap<String, String>(properties);
-            }
-            if (measurements != null) {
-                this.measurements = new HashMap<String, Double>(measurements);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+        this.name = name; // no need to copy as strings are immutable
+        // keys and values are immutable, a shallow copy decouples the maps from the caller
+        if (properties != null) {
+            this.properties = new HashMap<String, String>(properties);
+        }
+        if (measurements != null) {
+            this.measurements = new HashMap<String, Double>(measurements);
         }
-
     }
 
     protected TrackDataOperation(DataType type,
@@ -93,12 +89,15 @@ class TrackDataOperation implements Runnable {
                                  Map<String, String> properties,
                                  Map<String, Double> measurements) {
         this(type, "", properties, measurements);
-        try {
-            this.exception = (Throwable) deepCopy(exception);
-
-        } catch (Exception e) {
-            e.printStackTrace();
+        Throwable localException = exception;
+        if (localException == null) {
+            localException = new Exception();
         }
+
+        // the stack trace is already a copy and its elements are immutable
+        this.exceptionType = localException.getClass().getName();
+        this.exceptionMessage = localException.getMessage();
+        this.exceptionStack = localException.getStackTrace();
     }
 
     protected TrackDataOperation(DataType type,
@@ -107,70 +106,97 @@ class TrackDataOperation implements Runnable {
                                  String stacktrace,
                                  boolean handled) {
         this.type = type; // no need to copy as enum is pass by value
-        try {
-            this.name = (String) deepCopy(name);
-            this.exceptionMessage = (String) deepCopy(message);
-            this.exceptionStacktrace = (String) deepCopy(stacktrace);
-            this.handled = handled;
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        this.name = name; // no need to copy as strings are immutable
+        this.exceptionMessage = message;
+        this.exceptionStacktrace = stacktrace;
+        this.handled = handled;
     }
 
     @Override
     public void run() {
+        this.process(false);
+    }
+
+    /**
+     * Process this operation and return the serialized item instead of queueing it in the
+     * channel, so it can be written to disk in a batch. Used once the ingestion queue is full.
+     *
+     * @return the serialized item, or null if it has been handled otherwise or dropped
+     */
+    protected String spill() {
+        return this.process(true);
+    }
+
+    private String process(boolean serializeOnly) {
         boolean highPrioItem = (type == DataType.MANAGED_EXCEPTION && !handled);
         if (!Persistence.getInstance().isFreeSpaceAvailable(highPrioItem)) {
-            return;
+            return null;
         }
 
-        Data<Domain> telemetry = getTelemetry();
+        Data<Domain> telemetry = getTelemetry(EnvelopeFactory.getInstance());
         if (telemetry != null) {
             IChannel channel = ChannelManager.getInstance().getChannel();
             if (highPrioItem) {
                 ((Channel) Channel.getInstance()).processException(telemetry);
             } else {
                 telemetry.getBaseData().QualifiedName = telemetry.getBaseType();
-                Map<String, String> tags = EnvelopeFactory.getInstance().getContext().getContextTags();
+                Map<String, String> tags = null;
                 if (this.type == DataType.NEW_SESSION) {
                     //updating IsNew tag from session context doesn't work because editing shared prefs
                     //doesn't happen timely enough so we can be sure isNew is true for all cases
                     //so we set it to true explicitly
+                    tags = EnvelopeFactory.getInstance().getContext().getContextTags();
                     tags.put("ai.session.isNew", "true");
                 }
+                if (serializeOnly && channel instanceof Channel) {
+                    return ((Channel) channel).serialize(telemetry);
+                }
                 channel.log(telemetry, tags);
             }
         }
+        return null;
     }
 
-    private Data<Domain> getTelemetry() {
+    /**
+     * Create the telemetry data of this operation.
+     *
+     * @param factory the factory which creates the data, a test hook
+     * @return the data or null if it can't be created
+     */
+    protected Data<Domain> getTelemetry(EnvelopeFactory factory) {
         Data<Domain> telemetry = null;
         if ((this.type == DataType.MANAGED_EXCEPTION)) {
-            telemetry = EnvelopeFactory.getInstance().createExceptionData(this.name, this.exceptionMessage, this.exceptionStacktrace, this.handled);
+            telemetry = factory.createExceptionData(this.name, this.exceptionMessage, this.exceptionStacktrace, this.handled);
         } else {
             switch (this.type) {
                 case NONE:
                     if (this.telemetry != null) {
-                        telemetry = EnvelopeFactory.getInstance().createData(this.telemetry);
+                        telemetry = factory.createData(this.telemetry);
                     }
                     break;
                 case EVENT:
-                    telemetry = EnvelopeFactory.getInstance().createEventData(this.name, this.properties, this.measurements);
+                    telemetry = factory.createEventData(this.name, this.properties, this.measurements);
                     break;
                 case PAGE_VIEW:
-                    telemetry = EnvelopeFactory.getInstance().createPageViewData(this.name, this.duration, this.properties, this.measurements);
+                    telemetry = factory.createPageViewData(this.name, this.duration, this.properties, this.measurements);
+                    break;
+                case PAGE_VIEW_PERF:
+                    telemetry = factory.createPageViewPerfData(this.name, this.duration, this.properties, this.measurements);
                     break;
                 case TRACE:
-                    telemetry = EnvelopeFactory.getInstance().createTraceData(this.name, this.properties);
+                    telemetry = factory.createTraceData(this.name, this.properties);
                     break;
                 case METRIC:
-                    telemetry = EnvelopeFactory.getInstance().createMetricData(this.name, this.metric, this.properties);
+                    telemetry = factory.createMetricData(this.name, this.metric, this.properties);
+                    break;
+                case AGGREGATED_METRIC:
+                    telemetry = factory.createMetricData(this.aggregate, this.properties);
                     break;
                 case NEW_SESSION:
-                    telemetry = EnvelopeFactory.getInstance().createNewSessionData();
+                    telemetry = factory.createNewSessionData();
                     break;
                 case HANDLED_EXCEPTION:
-                    telemetry = EnvelopeFactory.getInstance().createExceptionData(this.exception, this.properties, this.measurements);
+                    telemetry = factory.createExceptionData(this.exceptionType, this.exceptionMessage, this.exceptionStack, this.properties, this.measurements);
                     break;
                 default:
                     break;
@@ -179,20 +205,14 @@ class TrackDataOperation implements Runnable {
         return telemetry;
     }
 
-    private Object deepCopy(Object serializableObject) throws Exception {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        new ObjectOutputStream(outputStream).writeObject(serializableObject);
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(outputStream.toByteArray());
-
-        return new ObjectInputStream(inputStream).readObject();
-    }
-
     protected enum DataType {
         NONE,
         EVENT,
         TRACE,
         METRIC,
+        AGGREGATED_METRIC,
         PAGE_VIEW,
+        PAGE_VIEW_PERF,
         HANDLED_EXCEPTION,
         MANAGED_EXCEPTION,
         NEW_SESSION
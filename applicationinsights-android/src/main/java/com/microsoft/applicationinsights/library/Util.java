@@ -1,27 +1,17 @@
 package com.microsoft.applicationinsights.library;
 
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Debug;
+import android.os.Looper;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
-import java.util.TimeZone;
 
 class Util {
 
     private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
-    private static final DateFormat DATE_FORMAT =
-            new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
-
-    static {
-        TimeZone timeZone = TimeZone.getTimeZone("UTC");
-        DATE_FORMAT.setTimeZone(timeZone);
-    }
 
     private Util() {
         // hide default constructor
@@ -34,12 +24,8 @@ class Util {
      * @return an ISO 8601 string representation of the date
      */
     protected static String dateToISO8601(Date date) {
-        Date localDate = date;
-        if (localDate == null) {
-            localDate = new Date();
-        }
-
-        return DATE_FORMAT.format(localDate);
+        long time = date == null ? System.currentTimeMillis() : date.getTime();
+        return TimestampFormatter.format(time);
     }
 
     /**
@@ -129,13 +115,12 @@ class Util {
     }
 
     /**
-     * Executes an async task depending on the os version the app runs on
+     * Determines if the caller runs on the main thread, which must never wait for disk or
+     * telemetry processing.
+     *
+     * @return YES if the calling thread is the main thread of the app
      */
-    public static void executeTask(AsyncTask<Void, ?, ?> asyncTask) {
-        if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.HONEYCOMB_MR1) {
-            asyncTask.execute();
-        } else {
-            asyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-        }
+    protected static boolean isMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
     }
 }
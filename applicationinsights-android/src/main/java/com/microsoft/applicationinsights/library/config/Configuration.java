@@ -2,21 +2,37 @@ package com.microsoft.applicationinsights.library.config;
 
 import com.microsoft.applicationinsights.library.ApplicationInsights;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
-public class Configuration implements ISenderConfig, ISessionConfig, IQueueConfig {
+public class Configuration implements ISenderConfig, ISessionConfig, IQueueConfig, IPersistenceConfig, IRequestConfig, IIngestionConfig {
 
     // Default values for queue config
     static final int DEBUG_MAX_BATCH_COUNT = 5;
     static final int DEBUG_MAX_BATCH_INTERVAL_MS = 3 * 1000;
     static final int DEFAULT_MAX_BATCH_COUNT = 100;
     static final int DEFAULT_MAX_BATCH_INTERVAL_MS = 15 * 1000;
+    static final int DEFAULT_INGESTION_QUEUE_CAPACITY = 4096;
+    static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.SpillToDisk;
+    static final long DEFAULT_MAX_OVERFLOW_BLOCK_MS = 100;
+    static final long DEFAULT_METRIC_AGGREGATION_INTERVAL_MS = 0;
 
     // Default values for sender config
     static final String DEFAULT_ENDPOINT_URL = "https://dc.services.visualstudio.com/v2/track";
     static final int DEFAULT_SENDER_READ_TIMEOUT = 10 * 1000;
     static final int DEFAULT_SENDER_CONNECT_TIMEOUT = 15 * 1000;
+    static final int DEFAULT_MAX_REQUEST_BYTES = 512 * 1024;
+    static final int DEFAULT_MAX_REQUEST_ITEM_COUNT = 500;
+
+    // Default values for persistence config
+    static final long DEFAULT_MAX_PERSISTENCE_BYTES = 2 * 1024 * 1024;
+    static final EvictionPolicy DEFAULT_EVICTION_POLICY = EvictionPolicy.DropOldest;
+    static final String[] DEFAULT_EVICTABLE_TYPES = {"MetricData", "MessageData"};
 
     // Default values for session config
     protected static final int DEFAULT_SESSION_INTERVAL = 20 * 1000; // 20 seconds
@@ -31,6 +47,31 @@ public class Configuration implements ISenderConfig, ISessionConfig, IQueueConfi
      */
     private AtomicInteger maxBatchIntervalMs;
 
+    /**
+     * Whether enqueued items are copied into a memory-mapped staging buffer
+     */
+    private AtomicBoolean stagingBufferEnabled;
+
+    /**
+     * The number of track calls which can be queued until they are processed
+     */
+    private AtomicInteger ingestionQueueCapacity;
+
+    /**
+     * The policy used once the ingestion queue is full
+     */
+    private volatile OverflowPolicy overflowPolicy;
+
+    /**
+     * The maximum time a track call is blocked by OverflowPolicy.Block
+     */
+    private AtomicLong maxOverflowBlockMs;
+
+    /**
+     * The interval at which tracked metrics are aggregated into a single data point
+     */
+    private AtomicLong metricAggregationIntervalMs;
+
     /**
      * The url to which payloads will be sent
      */
@@ -47,6 +88,41 @@ public class Configuration implements ISenderConfig, ISessionConfig, IQueueConfi
      */
     private AtomicInteger senderConnectTimeoutMs;
 
+    /**
+     * The maximum number of bytes of persisted data which are packed into a single request
+     */
+    private AtomicInteger maxRequestBytes;
+
+    /**
+     * The number of telemetry items after which no further files are packed into a request
+     */
+    private AtomicInteger maxRequestItemCount;
+
+    /**
+     * The maximum number of bytes stored for each priority
+     */
+    private AtomicLong maxPersistenceBytes;
+
+    /**
+     * The policy used to make room for new telemetry once the storage quota is exhausted
+     */
+    private volatile EvictionPolicy evictionPolicy;
+
+    /**
+     * The telemetry types which are evicted first by EvictionPolicy.DropByType
+     */
+    private volatile Set<String> evictableTypes;
+
+    /**
+     * Whether batches are appended to a segmented log instead of being written to one file each
+     */
+    private AtomicBoolean segmentedStorageEnabled;
+
+    /**
+     * Whether batches are stored in the compact binary record format
+     */
+    private AtomicBoolean compactRecordFormatEnabled;
+
     /**
      * The interval at which sessions are renewed
      */
@@ -62,11 +138,25 @@ public class Configuration implements ISenderConfig, ISessionConfig, IQueueConfi
         //TODO: If running on a device with developer mode enabled, the default values will be set (move to getter)
         this.maxBatchCount = new AtomicInteger(DEFAULT_MAX_BATCH_COUNT);
         this.maxBatchIntervalMs = new AtomicInteger(DEFAULT_MAX_BATCH_INTERVAL_MS);
+        this.stagingBufferEnabled = new AtomicBoolean(false);
+        this.ingestionQueueCapacity = new AtomicInteger(DEFAULT_INGESTION_QUEUE_CAPACITY);
+        this.overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+        this.maxOverflowBlockMs = new AtomicLong(DEFAULT_MAX_OVERFLOW_BLOCK_MS);
+        this.metricAggregationIntervalMs = new AtomicLong(DEFAULT_METRIC_AGGREGATION_INTERVAL_MS);
 
         // Initialize default values for sender config
         this.endpointUrl = DEFAULT_ENDPOINT_URL;
         this.senderReadTimeoutMs = new AtomicInteger(DEFAULT_SENDER_READ_TIMEOUT);
         this.senderConnectTimeoutMs = new AtomicInteger(DEFAULT_SENDER_CONNECT_TIMEOUT);
+        this.maxRequestBytes = new AtomicInteger(DEFAULT_MAX_REQUEST_BYTES);
+        this.maxRequestItemCount = new AtomicInteger(DEFAULT_MAX_REQUEST_ITEM_COUNT);
+
+        // Initialize default values for persistence config
+        this.maxPersistenceBytes = new AtomicLong(DEFAULT_MAX_PERSISTENCE_BYTES);
+        this.evictionPolicy = DEFAULT_EVICTION_POLICY;
+        this.setEvictableTypes(new HashSet<String>(Arrays.asList(DEFAULT_EVICTABLE_TYPES)));
+        this.segmentedStorageEnabled = new AtomicBoolean(false);
+        this.compactRecordFormatEnabled = new AtomicBoolean(false);
 
         // Initialize default values for session config
         this.sessionIntervalMs = new AtomicLong(DEFAULT_SESSION_INTERVAL);
@@ -116,6 +206,104 @@ public class Configuration implements ISenderConfig, ISessionConfig, IQueueConfi
         this.maxBatchIntervalMs.set(maxBatchIntervalMs);
     }
 
+    /**
+     * Get whether enqueued items are copied into a memory-mapped staging buffer.
+     *
+     * @return true if items are staged
+     */
+    public boolean isStagingBufferEnabled() {
+        return this.stagingBufferEnabled.get();
+    }
+
+    /**
+     * Set whether enqueued items are copied into a memory-mapped staging buffer. Staged items are
+     * recovered on the next start if the process is killed before they have been persisted, e.g.
+     * by the low memory killer. Must be set before Application Insights is started.
+     *
+     * @param stagingBufferEnabled true to stage items
+     */
+    public void setStagingBufferEnabled(boolean stagingBufferEnabled) {
+        this.stagingBufferEnabled.set(stagingBufferEnabled);
+    }
+
+    /**
+     * Get the number of track calls which can be queued until they are processed.
+     *
+     * @return the capacity of the ingestion queue
+     */
+    public int getIngestionQueueCapacity() {
+        return this.ingestionQueueCapacity.get();
+    }
+
+    /**
+     * Set the number of track calls which can be queued until they are processed. The capacity is
+     * rounded up to a power of two. Must be set before Application Insights is started.
+     *
+     * @param ingestionQueueCapacity the capacity of the ingestion queue
+     */
+    public void setIngestionQueueCapacity(int ingestionQueueCapacity) {
+        this.ingestionQueueCapacity.set(ingestionQueueCapacity);
+    }
+
+    /**
+     * Get the policy used once the ingestion queue is full.
+     *
+     * @return the overflow policy
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return this.overflowPolicy;
+    }
+
+    /**
+     * Set the policy used once the ingestion queue is full.
+     *
+     * @param overflowPolicy the overflow policy
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Get the maximum time a track call is blocked by OverflowPolicy.Block.
+     *
+     * @return the maximum time in ms
+     */
+    public long getMaxOverflowBlockMs() {
+        return this.maxOverflowBlockMs.get();
+    }
+
+    /**
+     * Set the maximum time a track call is blocked by OverflowPolicy.Block, the item is dropped
+     * if there is no room after this time.
+     *
+     * @param maxOverflowBlockMs the maximum time in ms
+     */
+    public void setMaxOverflowBlockMs(long maxOverflowBlockMs) {
+        this.maxOverflowBlockMs.set(maxOverflowBlockMs);
+    }
+
+    /**
+     * Get the interval at which tracked metrics are aggregated into a single data point.
+     *
+     * @return the aggregation interval in ms, 0 if metrics aren't aggregated
+     */
+    public long getMetricAggregationIntervalMs() {
+        return this.metricAggregationIntervalMs.get();
+    }
+
+    /**
+     * Set the interval at which tracked metrics are aggregated into a single data point per metric
+     * name and properties. Tracked dependency calls are aggregated at the same interval. Must be
+     * set before Application Insights is started.
+     *
+     * @param metricAggregationIntervalMs the aggregation interval in ms, 0 (the default) to send
+     *                                    each value passed to trackMetric and each dependency
+     *                                    call, metric series are aggregated every 60 seconds then
+     */
+    public void setMetricAggregationIntervalMs(long metricAggregationIntervalMs) {
+        this.metricAggregationIntervalMs.set(metricAggregationIntervalMs);
+    }
+
     /**
      * Get the url to which payloads will be sent.
      *
@@ -170,6 +358,150 @@ public class Configuration implements ISenderConfig, ISessionConfig, IQueueConfi
         this.senderConnectTimeoutMs.set(senderConnectTimeout);
     }
 
+    /**
+     * Get the maximum number of bytes of persisted data which are packed into a single request.
+     *
+     * @return the byte budget of a request
+     */
+    public int getMaxRequestBytes() {
+        return this.maxRequestBytes.get();
+    }
+
+    /**
+     * Set the maximum number of bytes of persisted data which are packed into a single request.
+     * A single file which exceeds the budget is still sent on its own.
+     *
+     * @param maxRequestBytes the byte budget of a request
+     */
+    public void setMaxRequestBytes(int maxRequestBytes) {
+        this.maxRequestBytes.set(maxRequestBytes);
+    }
+
+    /**
+     * Get the number of telemetry items after which no further files are packed into a request.
+     *
+     * @return the item budget of a request
+     */
+    public int getMaxRequestItemCount() {
+        return this.maxRequestItemCount.get();
+    }
+
+    /**
+     * Set the number of telemetry items after which no further files are packed into a request.
+     *
+     * @param maxRequestItemCount the item budget of a request
+     */
+    public void setMaxRequestItemCount(int maxRequestItemCount) {
+        this.maxRequestItemCount.set(maxRequestItemCount);
+    }
+
+    /**
+     * Get the maximum number of bytes stored for each priority.
+     *
+     * @return the storage quota in bytes
+     */
+    public long getMaxPersistenceBytes() {
+        return this.maxPersistenceBytes.get();
+    }
+
+    /**
+     * Set the maximum number of bytes stored for each priority.
+     *
+     * @param maxPersistenceBytes the storage quota in bytes
+     */
+    public void setMaxPersistenceBytes(long maxPersistenceBytes) {
+        this.maxPersistenceBytes.set(maxPersistenceBytes);
+    }
+
+    /**
+     * Get the policy used to make room for new telemetry once the storage quota is exhausted.
+     *
+     * @return the eviction policy
+     */
+    public EvictionPolicy getEvictionPolicy() {
+        return this.evictionPolicy;
+    }
+
+    /**
+     * Set the policy used to make room for new telemetry once the storage quota is exhausted.
+     *
+     * @param evictionPolicy the eviction policy
+     */
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * Get the telemetry types which are evicted first by EvictionPolicy.DropByType.
+     *
+     * @return the base types, e.g. "MetricData"
+     */
+    public Set<String> getEvictableTypes() {
+        return this.evictableTypes;
+    }
+
+    /**
+     * Set the telemetry types which are evicted first by EvictionPolicy.DropByType.
+     *
+     * @param evictableTypes the base types, e.g. "MetricData"
+     */
+    public void setEvictableTypes(Set<String> evictableTypes) {
+        this.evictableTypes = Collections.unmodifiableSet(new HashSet<String>(evictableTypes));
+    }
+
+    /**
+     * Get whether batches are appended to a segmented log instead of being written to one file
+     * each.
+     *
+     * @return true if the segmented log is used
+     */
+    public boolean isSegmentedStorageEnabled() {
+        return this.segmentedStorageEnabled.get();
+    }
+
+    /**
+     * Set whether batches are appended to a segmented log instead of being written to one file
+     * each. The log avoids creating and deleting a file for every batch. Must be set before
+     * Application Insights is started, files written in the other mode are still sent. Segments
+     * are stored uncompressed as JSON, so the log can't be combined with the compact record
+     * format.
+     *
+     * @param segmentedStorageEnabled true to use the segmented log
+     * @throws IllegalStateException if the log is enabled while the compact record format is
+     *                               enabled
+     */
+    public void setSegmentedStorageEnabled(boolean segmentedStorageEnabled) {
+        if (segmentedStorageEnabled && this.isCompactRecordFormatEnabled()) {
+            throw new IllegalStateException("The segmented log can't be combined with the compact record format");
+        }
+        this.segmentedStorageEnabled.set(segmentedStorageEnabled);
+    }
+
+    /**
+     * Get whether batches are stored in the compact binary record format.
+     *
+     * @return true if the compact record format is used
+     */
+    public boolean isCompactRecordFormatEnabled() {
+        return this.compactRecordFormatEnabled.get();
+    }
+
+    /**
+     * Set whether batches are stored in the compact binary record format. Keys and repeated
+     * context values are written once per batch instead of once per item, which reduces disk usage
+     * for high-frequency telemetry. Files are rendered to JSON while they are sent, files written
+     * in the other format are still read. Can't be combined with the segmented log.
+     *
+     * @param compactRecordFormatEnabled true to use the compact record format
+     * @throws IllegalStateException if the format is enabled while the segmented log is enabled
+     */
+    public void setCompactRecordFormatEnabled(boolean compactRecordFormatEnabled) {
+        if (compactRecordFormatEnabled && this.isSegmentedStorageEnabled()) {
+            throw new IllegalStateException("The compact record format can't be combined with the segmented log");
+        }
+        this.compactRecordFormatEnabled.set(compactRecordFormatEnabled);
+    }
+
     /**
      * Get the interval at which sessions are renewed.
      */
@@ -0,0 +1,20 @@
+package com.microsoft.applicationinsights.library.config;
+
+/**
+ * The policies to make room for new telemetry once the storage quota is exhausted
+ */
+public enum EvictionPolicy {
+    /**
+     * Delete the oldest batches which aren't being sent
+     */
+    DropOldest,
+    /**
+     * Don't store new batches until older ones have been sent
+     */
+    DropNewest,
+    /**
+     * Delete the oldest batches which only contain evictable telemetry types first, then the
+     * oldest batches
+     */
+    DropByType
+}
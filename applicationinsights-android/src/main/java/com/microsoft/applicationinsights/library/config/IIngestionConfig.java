@@ -0,0 +1,40 @@
+package com.microsoft.applicationinsights.library.config;
+
+public interface IIngestionConfig extends IQueueConfig {
+
+    /**
+     * Gets the number of track calls which can be queued until they are processed
+     * @return the capacity of the ingestion queue
+     */
+    int getIngestionQueueCapacity();
+
+    /**
+     * Sets the number of track calls which can be queued until they are processed
+     * @param ingestionQueueCapacity the capacity of the ingestion queue
+     */
+    void setIngestionQueueCapacity(int ingestionQueueCapacity);
+
+    /**
+     * Gets the policy used once the ingestion queue is full
+     * @return the overflow policy
+     */
+    OverflowPolicy getOverflowPolicy();
+
+    /**
+     * Sets the policy used once the ingestion queue is full
+     * @param overflowPolicy the overflow policy
+     */
+    void setOverflowPolicy(OverflowPolicy overflowPolicy);
+
+    /**
+     * Gets the maximum time a track call is blocked by OverflowPolicy.Block
+     * @return the maximum time in ms
+     */
+    long getMaxOverflowBlockMs();
+
+    /**
+     * Sets the maximum time a track call is blocked by OverflowPolicy.Block
+     * @param maxOverflowBlockMs the maximum time in ms
+     */
+    void setMaxOverflowBlockMs(long maxOverflowBlockMs);
+}
@@ -0,0 +1,84 @@
+package com.microsoft.applicationinsights.library.config;
+
+import java.util.Set;
+
+public interface IPersistenceConfig {
+
+    /**
+     * Gets the maximum number of bytes stored for each priority
+     *
+     * @return the storage quota in bytes
+     */
+    long getMaxPersistenceBytes();
+
+    /**
+     * Sets the maximum number of bytes stored for each priority
+     *
+     * @param maxPersistenceBytes the storage quota in bytes
+     */
+    void setMaxPersistenceBytes(long maxPersistenceBytes);
+
+    /**
+     * Gets the policy used to make room for new telemetry once the storage quota is exhausted
+     *
+     * @return the eviction policy
+     */
+    EvictionPolicy getEvictionPolicy();
+
+    /**
+     * Sets the policy used to make room for new telemetry once the storage quota is exhausted
+     *
+     * @param evictionPolicy the eviction policy
+     */
+    void setEvictionPolicy(EvictionPolicy evictionPolicy);
+
+    /**
+     * Gets the telemetry types which are evicted first by {@link EvictionPolicy#DropByType}
+     *
+     * @return the base types, e.g. "MetricData"
+     */
+    Set<String> getEvictableTypes();
+
+    /**
+     * Sets the telemetry types which are evicted first by {@link EvictionPolicy#DropByType}
+     *
+     * @param evictableTypes the base types, e.g. "MetricData"
+     */
+    void setEvictableTypes(Set<String> evictableTypes);
+
+    /**
+     * Gets whether batches are appended to a segmented log instead of being written to one file
+     * each
+     *
+     * @return true if the segmented log is used
+     */
+    boolean isSegmentedStorageEnabled();
+
+    /**
+     * Sets whether batches are appended to a segmented log instead of being written to one file
+     * each. Must be set before Application Insights is started. Segments are stored uncompressed
+     * as JSON, so the log can't be combined with the compact record format.
+     *
+     * @param segmentedStorageEnabled true to use the segmented log
+     * @throws IllegalStateException if the log is enabled while the compact record format is
+     *                               enabled
+     */
+    void setSegmentedStorageEnabled(boolean segmentedStorageEnabled);
+
+    /**
+     * Gets whether batches are stored in the compact binary record format
+     *
+     * @return true if the compact record format is used
+     */
+    boolean isCompactRecordFormatEnabled();
+
+    /**
+     * Sets whether batches are stored in the compact binary record format, which writes repeated
+     * keys and context values once per batch. Files are rendered to JSON when they are sent.
+     * Can't be combined with the segmented log.
+     *
+     * @param compactRecordFormatEnabled true to use the compact record format
+     * @throws IllegalStateException if the format is enabled while the segmented log is enabled
+     */
+    void setCompactRecordFormatEnabled(boolean compactRecordFormatEnabled);
+}
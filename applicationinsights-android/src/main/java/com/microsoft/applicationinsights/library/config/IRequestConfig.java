@@ -0,0 +1,32 @@
+package com.microsoft.applicationinsights.library.config;
+
+public interface IRequestConfig extends ISenderConfig {
+
+    /**
+     * Gets the maximum number of bytes of persisted data which are packed into a single request
+     *
+     * @return the byte budget of a request
+     */
+    int getMaxRequestBytes();
+
+    /**
+     * Sets the maximum number of bytes of persisted data which are packed into a single request
+     *
+     * @param maxRequestBytes the byte budget of a request
+     */
+    void setMaxRequestBytes(int maxRequestBytes);
+
+    /**
+     * Gets the number of telemetry items after which no further files are packed into a request
+     *
+     * @return the item budget of a request
+     */
+    int getMaxRequestItemCount();
+
+    /**
+     * Sets the number of telemetry items after which no further files are packed into a request
+     *
+     * @param maxRequestItemCount the item budget of a request
+     */
+    void setMaxRequestItemCount(int maxRequestItemCount);
+}
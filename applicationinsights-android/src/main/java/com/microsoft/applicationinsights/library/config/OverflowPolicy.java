@@ -0,0 +1,20 @@
+package com.microsoft.applicationinsights.library.config;
+
+/**
+ * The policies to handle track calls once the ingestion queue is full
+ */
+public enum OverflowPolicy {
+    /**
+     * Drop the oldest queued item to make room for the new one
+     */
+    DropOldest,
+    /**
+     * Block the caller until there is room, for at most the configured time, then drop the new item
+     */
+    Block,
+    /**
+     * Write the item to disk instead of sending it with the queue, the items are turned into
+     * envelopes and written in batches on a background thread
+     */
+    SpillToDisk
+}